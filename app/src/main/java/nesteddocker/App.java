@@ -20,6 +20,8 @@ import com.github.flordan.rolerunner.RoleRunner;
 import com.github.flordan.rolerunner.docker.DockerRoleRunner;
 import com.github.flordan.rolerunner.image.ImageIdentifier;
 
+import java.time.Duration;
+
 
 public class App {
 
@@ -32,17 +34,16 @@ public class App {
             System.out.println("Role Ubuntu image available");
         }else{
             System.out.println("Role Ubuntu image not available");
-            r.fetchImage(iId);
+            r.fetchImageAsync(iId).join();
         }
         System.out.println(r.getAvailableImages());
-        r.startRole(iId);
+        r.startRoleAsync(iId, Duration.ofMinutes(5));
 
 
 
         ImageIdentifier alpineIId= new ImageIdentifier("alpine", "latest");
-        r.startRole(alpineIId);
-        Thread.sleep(3_000l);
-        r.startRole(iId);
+        r.startRoleAsync(alpineIId, Duration.ofMinutes(5)).join();
+        r.startRoleAsync(iId, Duration.ofMinutes(5)).join();
 
         synchronized(App.class) {
             App.class.wait();
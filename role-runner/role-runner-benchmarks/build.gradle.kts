@@ -0,0 +1,35 @@
+plugins {
+    id("java")
+    alias(libs.plugins.jmh)
+}
+
+group = "com.github.flordan"
+version = "1.0"
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    implementation(project(":role-runner"))
+    implementation(project(":role-runner:role-runner-docker"))
+
+    //docker, to decode the events as the engine does
+    implementation("com.github.docker-java:docker-java-core:3.3.2")
+}
+
+// Apply a specific Java toolchain to ease working on different environments.
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(17))
+    }
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    resultFormat.set("JSON")
+    // e.g., gradle :role-runner:role-runner-benchmarks:jmh -PjmhIncludes=ImageIdentifier
+    if (project.hasProperty("jmhIncludes")) {
+        includes.set(listOf(project.property("jmhIncludes").toString()))
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.benchmarks;
+
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.container.ContainerManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContainerLifecycleBenchmark {
+
+    private Stubs.StubImage image;
+    private ContainerManager manager;
+
+    @Setup
+    public void setUp() {
+        image = new Stubs.StubImage();
+        manager = new ContainerManager();
+    }
+
+    /**
+     * PENDING to DESTROYED through every intermediate status.
+     */
+    @Benchmark
+    public Container fullLifecycle() {
+        Stubs.StubContainer cntr = new Stubs.StubContainer(image, manager);
+        cntr.created();
+        cntr.stop();
+        cntr.destroy();
+        return cntr;
+    }
+
+    /**
+     * Start and stop requests superseding each other while the container is starting.
+     */
+    @Benchmark
+    public Container startStopToggle(ToggledContainer state) {
+        state.cntr.stop();
+        state.cntr.start();
+        return state.cntr;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Container contendedStartStop(SharedContainer state) {
+        state.cntr.stop();
+        state.cntr.start();
+        return state.cntr;
+    }
+
+    @State(Scope.Thread)
+    public static class ToggledContainer {
+        Stubs.ParkedContainer cntr;
+
+        @Setup
+        public void setUp(ContainerLifecycleBenchmark bench) {
+            cntr = new Stubs.ParkedContainer(bench.image);
+            cntr.created();
+            cntr.start();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedContainer {
+        Stubs.ParkedContainer cntr;
+
+        @Setup
+        public void setUp(ContainerLifecycleBenchmark bench) {
+            cntr = new Stubs.ParkedContainer(bench.image);
+            cntr.created();
+            cntr.start();
+        }
+    }
+}
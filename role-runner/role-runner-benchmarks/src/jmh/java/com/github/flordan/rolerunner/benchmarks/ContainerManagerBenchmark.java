@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.benchmarks;
+
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.container.ContainerManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steady-state churn on a manager already tracking many containers: each operation adds one container and removes
+ * the oldest one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContainerManagerBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int tracked;
+
+    private ContainerManager manager;
+    private Stubs.StubImage image;
+
+    @Setup
+    public void setUp() {
+        manager = new ContainerManager();
+        image = new Stubs.StubImage();
+    }
+
+    @State(Scope.Thread)
+    public static class Ring {
+        Container[] cntrs;
+        int next;
+
+        @Setup
+        public void setUp(ContainerManagerBenchmark bench) {
+            cntrs = new Container[bench.tracked];
+            for (int i = 0; i < cntrs.length; i++) {
+                cntrs[i] = new Stubs.StubContainer(bench.image, null);
+                bench.manager.createdContainer(cntrs[i]);
+            }
+        }
+    }
+
+    private int churn(Ring ring) {
+        int slot = ring.next++ % ring.cntrs.length;
+        manager.destroyedContainer(ring.cntrs[slot]);
+        Container cntr = new Stubs.StubContainer(image, null);
+        ring.cntrs[slot] = cntr;
+        manager.createdContainer(cntr);
+        return manager.size();
+    }
+
+    @Benchmark
+    public int churn1(Ring ring) {
+        return churn(ring);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int churn8(Ring ring) {
+        return churn(ring);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.core.DefaultObjectMapperHolder;
+import com.github.flordan.rolerunner.docker.DockerManager;
+import com.github.flordan.rolerunner.docker.HexId;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a line of the daemon event stream into what the engine dispatches: the JSON decoding done by
+ * docker-java and the id, label and image parsing done by the handlers. DockerManager is only referenced for its
+ * label constants, which are inlined, so no daemon is contacted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventDecodingBenchmark {
+
+    private static final String ID = "4f2b6e0c9a1d8b7e3c5a2f1e0d9c8b7a6f5e4d3c2b1a09f8e7d6c5b4a3928170";
+
+    private ObjectMapper mapper;
+    private byte[] json;
+    private Event event;
+
+    @Setup
+    public void setUp() throws IOException {
+        mapper = DefaultObjectMapperHolder.INSTANCE.getObjectMapper();
+        json = ("{\"status\":\"create\",\"id\":\"" + ID + "\",\"from\":\"registry.example.com/role:1.0\","
+            + "\"Type\":\"container\",\"Action\":\"create\",\"Actor\":{\"ID\":\"" + ID + "\",\"Attributes\":{"
+            + "\"image\":\"registry.example.com/role:1.0\",\"name\":\"bench\","
+            + "\"" + DockerManager.MANAGED_LABEL + "\":\"true\","
+            + "\"" + DockerManager.REQUEST_LABEL + "\":\"6b1c1e0a-3b9e-4b8e-9d7a-2f4c8e1d0a55\"}},"
+            + "\"scope\":\"local\",\"time\":1700000000,\"timeNano\":1700000000123456789}")
+            .getBytes(StandardCharsets.UTF_8);
+        event = decode();
+    }
+
+    @Benchmark
+    public Event decode() throws IOException {
+        return mapper.readValue(json, Event.class);
+    }
+
+    @Benchmark
+    public void handle(Blackhole bh) {
+        bh.consume(HexId.parse(event.getId()));
+        Map<String, String> attributes = event.getActor().getAttributes();
+        bh.consume(attributes.get(DockerManager.REQUEST_LABEL));
+        bh.consume(ImageIdentifier.parse(event.getFrom()));
+    }
+
+    @Benchmark
+    public void decodeAndHandle(Blackhole bh) throws IOException {
+        Event e = decode();
+        bh.consume(HexId.parse(e.getId()));
+        bh.consume(e.getActor().getAttributes().get(DockerManager.REQUEST_LABEL));
+        bh.consume(ImageIdentifier.parse(e.getFrom()));
+    }
+}
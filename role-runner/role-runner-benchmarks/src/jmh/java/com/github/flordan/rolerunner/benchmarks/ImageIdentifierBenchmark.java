@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.benchmarks;
+
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ImageIdentifierBenchmark {
+
+    @Param({"busybox", "busybox:1.36", "localhost:5000/team/role:2.1.0",
+        "registry.example.com/role@sha256:4f2b6e0c9a1d8b7e3c5a2f1e0d9c8b7a6f5e4d3c2b1a09f8e7d6c5b4a3928170"})
+    public String name;
+
+    @Param({"1000"})
+    public int images;
+
+    private ImageIdentifier iId;
+    private ImageIdentifier other;
+    private TreeMap<ImageIdentifier, Object> map;
+    private Map<ImageIdentifier, Object> hashMap;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        iId = ImageIdentifier.parse(name);
+        other = ImageIdentifier.parse(name + "-other");
+        map = new TreeMap<>();
+        names = new String[images];
+        for (int i = 0; i < images; i++) {
+            names[i] = "role-" + i + ":" + (i % 7);
+            map.put(ImageIdentifier.parse(names[i]), names[i]);
+        }
+        map.put(iId, name);
+        hashMap = new HashMap<>(map);
+    }
+
+    @Benchmark
+    public ImageIdentifier parse() {
+        return ImageIdentifier.parse(name);
+    }
+
+    @Benchmark
+    public int compareTo() {
+        return iId.compareTo(other);
+    }
+
+    @Benchmark
+    public Object lookup() {
+        return map.get(iId);
+    }
+
+    @Benchmark
+    public Object hashLookup() {
+        return hashMap.get(iId);
+    }
+
+    /**
+     * Parsing references not seen recently, so the intern cache misses.
+     */
+    @Benchmark
+    public ImageIdentifier parseUncached() {
+        return ImageIdentifier.parse("team/role-" + (next++ & 0xFFFFF) + ":1.0");
+    }
+
+    @Benchmark
+    public Object parseAndLookup() {
+        String n = names[next++ % names.length];
+        return map.get(ImageIdentifier.parse(n));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.benchmarks;
+
+import com.github.flordan.rolerunner.image.Image;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import com.github.flordan.rolerunner.image.ImageManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * obtainImage on images already present, the path every role request goes through, with increasing contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageManagerBenchmark {
+
+    private static final int IMAGES = 64;
+
+    private ImageManager manager;
+    private ImageIdentifier[] iIds;
+    private AtomicLong missing;
+
+    @Setup
+    public void setUp() {
+        Stubs.StubImageHandler handler = new Stubs.StubImageHandler();
+        manager = new ImageManager(handler);
+        iIds = new ImageIdentifier[IMAGES];
+        for (int i = 0; i < IMAGES; i++) {
+            iIds[i] = new ImageIdentifier("role-" + i, "1.0");
+            handler.add(iIds[i], new Stubs.StubImage(manager));
+        }
+        missing = new AtomicLong();
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        int next;
+    }
+
+    private void obtain(Caller caller, Blackhole bh) {
+        ImageIdentifier iId = iIds[caller.next++ % IMAGES];
+        manager.obtainImage(iId, new ImageManager.ObtainCallback() {
+            @Override
+            public void obtained(Image img) {
+                bh.consume(img);
+            }
+        });
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void obtainPresent1(Caller caller, Blackhole bh) {
+        obtain(caller, bh);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void obtainPresent4(Caller caller, Blackhole bh) {
+        obtain(caller, bh);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void obtainPresent16(Caller caller, Blackhole bh) {
+        obtain(caller, bh);
+    }
+
+    /**
+     * Every call misses and goes through the request and fetch notification of a new image.
+     */
+    @Benchmark
+    @Threads(4)
+    public void obtainMissing4(Blackhole bh) {
+        ImageIdentifier iId = new ImageIdentifier("missing-" + missing.incrementAndGet(), "1.0");
+        manager.obtainImage(iId, new ImageManager.ObtainCallback() {
+            @Override
+            public void obtained(Image img) {
+                bh.consume(img);
+            }
+        });
+    }
+}
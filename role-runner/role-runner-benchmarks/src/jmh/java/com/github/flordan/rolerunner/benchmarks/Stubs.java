@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.benchmarks;
+
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.container.ContainerManager;
+import com.github.flordan.rolerunner.image.Image;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import com.github.flordan.rolerunner.image.ImageManager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory engine for the benchmarks: every engine action completes synchronously on the calling thread.
+ */
+final class Stubs {
+
+    private Stubs() {
+    }
+
+    static class StubImageHandler implements ImageManager.ImageHandler {
+        private final Map<ImageIdentifier, Image> images = new ConcurrentHashMap<>();
+
+        void add(ImageIdentifier iId, Image img) {
+            images.put(iId, img);
+            img.addTag(iId);
+        }
+
+        @Override
+        public void requestImage(ImageIdentifier iId, ImageManager handler) {
+            StubImage img = new StubImage(handler);
+            add(iId, img);
+            img.fetched();
+        }
+
+        @Override
+        public Image getImage(ImageIdentifier iId) {
+            return images.get(iId);
+        }
+
+        @Override
+        public Set<ImageIdentifier> getAvailableImages() {
+            return images.keySet();
+        }
+    }
+
+    static class StubImage extends Image {
+
+        StubImage() {
+            super();
+        }
+
+        StubImage(ImageManager monitor) {
+            super(monitor);
+        }
+
+        @Override
+        public void delete() {
+            deleted();
+        }
+
+        @Override
+        public void createContainer(ContainerManager monitor) {
+            StubContainer cntr = new StubContainer(this, monitor);
+            addContainer(cntr);
+            cntr.created();
+        }
+    }
+
+    static class StubContainer extends Container {
+
+        StubContainer(Image image, ContainerManager monitor) {
+            super(image, monitor);
+        }
+
+        @Override
+        public void specificStart() {
+            started();
+        }
+
+        @Override
+        public void specificStop() {
+            stopped();
+        }
+
+        @Override
+        public void specificDestroy() {
+            destroyed();
+        }
+
+        @Override
+        public boolean canExec() {
+            return false;
+        }
+
+        @Override
+        public int exec(List<String> command, Duration timeout) {
+            throw new IllegalStateException("Cannot run commands in " + this);
+        }
+    }
+
+    /**
+     * Never hears back from the engine, so it stays in the status reached by its first engine action.
+     */
+    static class ParkedContainer extends Container {
+
+        ParkedContainer(Image image) {
+            super(image);
+        }
+
+        @Override
+        public void specificStart() {
+        }
+
+        @Override
+        public void specificStop() {
+        }
+
+        @Override
+        public void specificDestroy() {
+        }
+
+        @Override
+        public boolean canExec() {
+            return false;
+        }
+
+        @Override
+        public int exec(List<String> command, Duration timeout) {
+            throw new IllegalStateException("Cannot run commands in " + this);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit learned from the latency of the calls. The limit grows additively while the latency stays close
+ * to the lowest one observed in the last minutes and shrinks multiplicatively when it degrades or a call times out.
+ * Calls over the limit wait in FIFO order.
+ *
+ * Waiters park on a lock condition rather than on a monitor so queued virtual threads do not pin their carriers.
+ */
+public class AdaptiveLimiter {
+
+    private static final double TOLERANCE = 2.0;
+    private static final double BACKOFF = 0.9;
+    private static final double DROP_BACKOFF = 0.5;
+    private static final double SMOOTHING = 0.2;
+    // The no-load latency is the minimum of the current and the previous window, so it follows a daemon that became
+    // slower for good within two windows while a burst of overload, shorter than that, does not raise it
+    private static final long BASELINE_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final ReentrantLock lock;
+    // Each waiter parks on its own condition so only the head of the queue is woken up
+    private final Deque<Condition> waiting;
+
+    private double limit;
+    private int inFlight;
+    private double baselineNanos;
+    private double windowMinNanos;
+    private double previousMinNanos;
+    private long windowStart;
+    private double smoothedNanos;
+    private long acquired;
+    private long rejections;
+    private long drops;
+    private long queueTimeNanos;
+    private long maxQueueTimeNanos;
+
+    public AdaptiveLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits [" + minLimit + ", " + maxLimit + "]");
+        }
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.lock = new ReentrantLock();
+        this.waiting = new ArrayDeque<>();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejections() {
+        lock.lock();
+        try {
+            return rejections;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDrops() {
+        lock.lock();
+        try {
+            return drops;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxQueueTimeNanos() {
+        lock.lock();
+        try {
+            return maxQueueTimeNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAverageQueueTimeNanos() {
+        lock.lock();
+        try {
+            return acquired == 0 ? 0 : queueTimeNanos / acquired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getLatencyNanos() {
+        lock.lock();
+        try {
+            return (long) smoothedNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a slot; a negative maxWaitNanos waits for as long as needed.
+     *
+     * @throws RejectedExecutionException if no slot became available in time
+     */
+    public void acquire(long maxWaitNanos) {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (waiting.isEmpty() && inFlight < (int) limit) {
+                admit(start);
+                return;
+            }
+            Condition ticket = lock.newCondition();
+            waiting.add(ticket);
+            boolean interrupted = false;
+            try {
+                while (waiting.peekFirst() != ticket || inFlight >= (int) limit) {
+                    if (maxWaitNanos < 0) {
+                        ticket.awaitUninterruptibly();
+                        continue;
+                    }
+                    long waitNanos = maxWaitNanos - (System.nanoTime() - start);
+                    if (waitNanos <= 0) {
+                        waiting.remove(ticket);
+                        rejections++;
+                        signalHead();
+                        throw new RejectedExecutionException(
+                            "Docker " + name + " call rejected after waiting " + (maxWaitNanos / 1_000_000) + " ms");
+                    }
+                    try {
+                        ticket.awaitNanos(waitNanos);
+                    } catch (InterruptedException ie) {
+                        interrupted = true;
+                    }
+                }
+                waiting.removeFirst();
+                admit(start);
+                // The limit may admit the next one too
+                signalHead();
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a slot if one is free and nobody is waiting for it; never blocks.
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (waiting.isEmpty() && inFlight < (int) limit) {
+                admit(System.nanoTime());
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a slot that was not used for any call, leaving the limit untouched.
+     */
+    public void cancel() {
+        lock.lock();
+        try {
+            inFlight--;
+            signalHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held
+    private void signalHead() {
+        Condition head = waiting.peekFirst();
+        if (head != null && inFlight < (int) limit) {
+            head.signal();
+        }
+    }
+
+    private void admit(long start) {
+        inFlight++;
+        acquired++;
+        long queued = System.nanoTime() - start;
+        queueTimeNanos += queued;
+        maxQueueTimeNanos = Math.max(maxQueueTimeNanos, queued);
+    }
+
+    /**
+     * Frees the slot and adapts the limit to the latency of the call. Calls that failed for a reason other than a
+     * timeout still tell how busy the daemon is.
+     */
+    public void release(long latencyNanos, Throwable failure) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (isTimeout(failure)) {
+                drops++;
+                limit = Math.max(minLimit, limit * DROP_BACKOFF);
+            } else {
+                sample(latencyNanos);
+            }
+            signalHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sample(long latencyNanos) {
+        smoothedNanos = smoothedNanos == 0 ? latencyNanos
+            : smoothedNanos + SMOOTHING * (latencyNanos - smoothedNanos);
+        long now = System.nanoTime();
+        if (windowMinNanos == 0 || now - windowStart >= BASELINE_WINDOW_NANOS) {
+            previousMinNanos = windowMinNanos;
+            windowMinNanos = latencyNanos;
+            windowStart = now;
+        } else {
+            windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+        }
+        baselineNanos = previousMinNanos == 0 ? windowMinNanos : Math.min(previousMinNanos, windowMinNanos);
+        if (smoothedNanos > baselineNanos * TOLERANCE) {
+            limit = Math.max(minLimit, limit * BACKOFF);
+        } else if (inFlight + 1 >= (int) limit / 2) {
+            // Only grow when the current limit is actually used; otherwise the latency says nothing about it
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    private static boolean isTimeout(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof SocketTimeoutException || t instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return name + "[limit=" + (int) limit + ", inFlight=" + inFlight + ", queued=" + waiting.size()
+                + ", rejections=" + rejections + "]";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Last samples of the resource usage of a container, kept in ring buffers preallocated when the container is tracked so
+ * recording a sample allocates nothing.
+ */
+public class ContainerStats {
+
+    public enum Metric {
+        /**
+         * CPU time consumed, in nanoseconds; its rate is the number of cores in use.
+         */
+        CPU(true),
+        /**
+         * Memory in use, in bytes.
+         */
+        MEMORY(false),
+        NET_RX(true),
+        NET_TX(true),
+        BLOCK_READ(true),
+        BLOCK_WRITE(true);
+
+        private final boolean counter;
+
+        Metric(boolean counter) {
+            this.counter = counter;
+        }
+
+        /**
+         * Whether the daemon reports the metric as an accumulated total; the p95 and max of counters are taken over
+         * the per-second rates between samples, the ones of gauges over the sampled values.
+         */
+        public boolean isCounter() {
+            return counter;
+        }
+    }
+
+    private static final Metric[] METRICS = Metric.values();
+
+    private final int capacity;
+    private final long[] times;
+    // Sample i of metric m is at values[m * capacity + i]
+    private final long[] values;
+    private final long[] scratch;
+    private int next;
+    private int size;
+
+    public ContainerStats(int capacity) {
+        this.capacity = capacity;
+        this.times = new long[capacity];
+        this.values = new long[capacity * METRICS.length];
+        this.scratch = new long[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getSamples() {
+        return size;
+    }
+
+    /**
+     * Adds a sample taken at timeNanos (System.nanoTime()), overwriting the oldest one when the buffer is full.
+     */
+    public synchronized void record(long timeNanos, long cpu, long memory, long netRx, long netTx, long blockRead,
+        long blockWrite) {
+        times[next] = timeNanos;
+        values[Metric.CPU.ordinal() * capacity + next] = cpu;
+        values[Metric.MEMORY.ordinal() * capacity + next] = memory;
+        values[Metric.NET_RX.ordinal() * capacity + next] = netRx;
+        values[Metric.NET_TX.ordinal() * capacity + next] = netTx;
+        values[Metric.BLOCK_READ.ordinal() * capacity + next] = blockRead;
+        values[Metric.BLOCK_WRITE.ordinal() * capacity + next] = blockWrite;
+        next = (next + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    /**
+     * Aggregates the samples of the metric taken within the window before the latest one.
+     */
+    public synchronized Aggregate aggregate(Metric metric, Duration window) {
+        int count = collect(metric, window, scratch, 0);
+        return new Aggregate(rate(metric, window), scratch, count);
+    }
+
+    /**
+     * Increase of the metric per second over the window; for counters, drops in the total (e.g., after a restart) are
+     * skipped.
+     */
+    synchronized double rate(Metric metric, Duration window) {
+        int first = firstWithin(window);
+        if (first < 0 || size - first < 2) {
+            return 0;
+        }
+        int base = metric.ordinal() * capacity;
+        long increase = 0;
+        for (int i = first + 1; i < size; i++) {
+            long delta = values[base + slot(i)] - values[base + slot(i - 1)];
+            if (delta > 0 || !metric.isCounter()) {
+                increase += delta;
+            }
+        }
+        long elapsed = times[slot(size - 1)] - times[slot(first)];
+        return elapsed <= 0 ? 0 : increase * 1e9 / elapsed;
+    }
+
+    /**
+     * Copies the values of the metric within the window (the per-second rates for counters) into dest from offset on
+     * and returns the number copied; dest must have room for getCapacity() values.
+     */
+    synchronized int collect(Metric metric, Duration window, long[] dest, int offset) {
+        int first = firstWithin(window);
+        if (first < 0) {
+            return 0;
+        }
+        int base = metric.ordinal() * capacity;
+        int count = 0;
+        if (metric.isCounter()) {
+            for (int i = first + 1; i < size; i++) {
+                long delta = values[base + slot(i)] - values[base + slot(i - 1)];
+                long elapsed = times[slot(i)] - times[slot(i - 1)];
+                if (delta >= 0 && elapsed > 0) {
+                    dest[offset + count++] = (long) (delta * 1e9 / elapsed);
+                }
+            }
+        } else {
+            for (int i = first; i < size; i++) {
+                dest[offset + count++] = values[base + slot(i)];
+            }
+        }
+        return count;
+    }
+
+    // Index, from the oldest sample, of the first sample within the window; -1 if there are none
+    private int firstWithin(Duration window) {
+        if (size == 0) {
+            return -1;
+        }
+        long since = times[slot(size - 1)] - window.toNanos();
+        int first = size - 1;
+        while (first > 0 && times[slot(first - 1)] - since >= 0) {
+            first--;
+        }
+        return first;
+    }
+
+    private int slot(int i) {
+        return (next - size + i + capacity) % capacity;
+    }
+
+
+    /**
+     * Rate, 95th percentile and maximum of a metric over a window.
+     */
+    public static class Aggregate {
+        private final double rate;
+        private final long p95;
+        private final long max;
+        private final int samples;
+
+        Aggregate(double rate, long[] values, int count) {
+            this.rate = rate;
+            this.samples = count;
+            if (count == 0) {
+                this.p95 = 0;
+                this.max = 0;
+            } else {
+                Arrays.sort(values, 0, count);
+                this.p95 = values[(int) Math.ceil(count * 0.95) - 1];
+                this.max = values[count - 1];
+            }
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public long getP95() {
+            return p95;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        @Override
+        public String toString() {
+            return "rate " + rate + "/s, p95 " + p95 + ", max " + max + " (" + samples + " samples)";
+        }
+    }
+}
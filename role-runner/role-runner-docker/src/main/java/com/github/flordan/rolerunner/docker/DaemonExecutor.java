@@ -0,0 +1,251 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import com.github.flordan.rolerunner.metrics.RoleRunnerMetrics;
+
+import java.lang.reflect.InvocationTargetException;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the blocking calls to the Docker daemon. Each kind of operation is bounded by its own adaptive limit so a burst
+ * of one kind (e.g., a mass teardown) cannot starve the others and the daemon is not pushed past the point where its
+ * latency degrades.
+ */
+public class DaemonExecutor {
+
+    public enum Operation {
+        LIST_IMAGES,
+        LIST_CONTAINERS,
+        CREATE_CONTAINER,
+        START_CONTAINER,
+        STOP_CONTAINER,
+        KILL_CONTAINER,
+        REMOVE_CONTAINER,
+        INSPECT_IMAGE,
+        INSPECT_CONTAINER,
+        EXEC,
+        REMOVE_IMAGE,
+        INFO
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 32;
+    public static final int INITIAL_CONCURRENCY = 4;
+    public static final Duration DEFAULT_MAX_QUEUE_TIME = Duration.ofSeconds(30);
+
+    private final ExecutorService executor;
+    // Runs the submitted tasks apart from the calls, so tasks blocked on calls of their own never hold a call's thread
+    private final ExecutorService callbacks;
+    private final boolean virtual;
+    private final Map<Operation, AdaptiveLimiter> limiters;
+    // Asynchronous calls waiting for a slot; they only get a thread once admitted
+    private final Map<Operation, Queue<Runnable>> pending;
+    private volatile long maxQueueNanos;
+
+    private DaemonExecutor(ExecutorService executor, ExecutorService callbacks, boolean virtual, int maxConcurrency) {
+        this.executor = executor;
+        this.callbacks = callbacks;
+        this.virtual = virtual;
+        this.limiters = new EnumMap<>(Operation.class);
+        this.pending = new EnumMap<>(Operation.class);
+        for (Operation op : Operation.values()) {
+            int initial = Math.min(INITIAL_CONCURRENCY, maxConcurrency);
+            this.limiters.put(op, new AdaptiveLimiter(op.name(), initial, 1, maxConcurrency));
+            this.pending.put(op, new ConcurrentLinkedQueue<>());
+        }
+        this.maxQueueNanos = DEFAULT_MAX_QUEUE_TIME.toNanos();
+    }
+
+    /**
+     * Runs each call on its own virtual thread. Virtual threads are only available from JDK 21 on; on older runtimes
+     * (the JDK 17 toolchain and image of this project) the calls run on a cached pool of daemon platform threads. Since
+     * calls only get a thread once admitted, the pool never grows past the sum of the limits.
+     */
+    public static DaemonExecutor virtualThreads(int maxConcurrency) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+            return new DaemonExecutor(executor, executor, true, maxConcurrency);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            ExecutorService executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "docker-call");
+                t.setDaemon(true);
+                return t;
+            });
+            return new DaemonExecutor(executor, callbackPool(), false, maxConcurrency);
+        }
+    }
+
+    public static DaemonExecutor platformThreads(int poolSize) {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "docker-call-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        return new DaemonExecutor(executor, callbackPool(), false, poolSize);
+    }
+
+    private static ExecutorService callbackPool() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "docker-callback-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtual;
+    }
+
+    public AdaptiveLimiter getLimiter(Operation op) {
+        return limiters.get(op);
+    }
+
+    public int getLimit(Operation op) {
+        return limiters.get(op).getLimit();
+    }
+
+    public int getInFlight(Operation op) {
+        return limiters.get(op).getInFlight();
+    }
+
+    public int getQueued(Operation op) {
+        return limiters.get(op).getQueued() + pending.get(op).size();
+    }
+
+    public long getRejections(Operation op) {
+        return limiters.get(op).getRejections();
+    }
+
+    public Duration getMaxQueueTime() {
+        return Duration.ofNanos(maxQueueNanos);
+    }
+
+    /**
+     * Sets how long a synchronous call may wait for a slot before being rejected.
+     */
+    public void setMaxQueueTime(Duration maxQueueTime) {
+        this.maxQueueNanos = maxQueueTime.toNanos();
+    }
+
+    /**
+     * Runs the call asynchronously. Asynchronous calls wait for a slot as long as needed: nobody would be notified of
+     * their rejection. They wait in a queue, without a thread, until the limit of the operation admits them.
+     */
+    public void execute(Operation op, Runnable call) {
+        pending.get(op).add(call);
+        dispatch(op);
+    }
+
+    // Hands queued calls to threads while the limit has free slots
+    private void dispatch(Operation op) {
+        AdaptiveLimiter limiter = limiters.get(op);
+        Queue<Runnable> queue = pending.get(op);
+        while (!queue.isEmpty() && limiter.tryAcquire()) {
+            Runnable call = queue.poll();
+            if (call == null) {
+                limiter.cancel();
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        admitted(op, () -> {
+                            call.run();
+                            return null;
+                        });
+                    } catch (RuntimeException re) {
+                        System.out.println("Docker " + op + " call failed: " + re.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                // Shut down
+                limiter.cancel();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs a task off the calling thread, outside of the limits. Meant for callbacks that make daemon calls of their
+     * own (e.g., creating the containers of a pulled image), which are limited as usual. Tasks run on threads of their
+     * own: on a fixed pool, a burst of them could otherwise take every thread the calls they wait for need.
+     */
+    public void submit(Runnable task) {
+        callbacks.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                re.printStackTrace(System.out);
+            }
+        });
+    }
+
+    /**
+     * Runs the call on the calling thread once the limit of the operation admits it.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the call waited longer than the max queue time
+     */
+    public <T> T call(Operation op, Supplier<T> call) {
+        return run(op, maxQueueNanos, call);
+    }
+
+    private <T> T run(Operation op, long maxWaitNanos, Supplier<T> call) {
+        try {
+            limiters.get(op).acquire(maxWaitNanos);
+        } catch (RejectedExecutionException ree) {
+            // The queued calls may have been held back by this one
+            dispatch(op);
+            throw ree;
+        }
+        return admitted(op, call);
+    }
+
+    private <T> T admitted(Operation op, Supplier<T> call) {
+        AdaptiveLimiter limiter = limiters.get(op);
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            return call.get();
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            limiter.release(elapsed, failure);
+            RoleRunnerMetrics.daemonCall(op.name(), elapsed, failure != null);
+            dispatch(op);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        callbacks.shutdown();
+    }
+}
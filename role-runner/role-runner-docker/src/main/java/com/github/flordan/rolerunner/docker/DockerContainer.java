@@ -19,9 +19,17 @@ package com.github.flordan.rolerunner.docker;
 import com.github.flordan.rolerunner.container.Container;
 import com.github.flordan.rolerunner.container.ContainerManager;
 
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.List;
+
 public class DockerContainer extends Container {
+    private final DockerManager engine;
     private final String id;
+    private final HexId key;
     private final String name;
+    private volatile boolean managed;
+    private volatile InetAddress address;
 
     public DockerContainer(String id, String name, DockerImage image) {
         this(id, name, image, null);
@@ -29,8 +37,11 @@ public class DockerContainer extends Container {
 
     public DockerContainer(String id, String name, DockerImage image, ContainerManager handler) {
         super(image, handler);
+        this.engine = image.getEngine();
         this.id = id;
+        this.key = HexId.parse(id);
         this.name = name;
+        setHealthChecked(Boolean.TRUE.equals(image.getHealthCheck()));
         created();
     }
 
@@ -38,21 +49,70 @@ public class DockerContainer extends Container {
         return id;
     }
 
+    public HexId getKey() {
+        return key;
+    }
+
     public String getName() {
         return name;
     }
 
+    /**
+     * Whether the container carries the label set on the containers created by a RoleRunner.
+     */
+    public boolean isManaged() {
+        return managed;
+    }
+
+    void setManaged(boolean managed) {
+        this.managed = managed;
+    }
+
     @Override
     public void specificStart() {
-        DockerManager.startContainer(this);
+        // A restarted container may be given another address
+        address = null;
+        engine.startContainer(this);
     }
 
     @Override
     public void specificStop() {
-        DockerManager.stopContainer(this);
+        address = null;
+        engine.stopContainer(this);
     }
 
     public void specificDestroy() {
-        DockerManager.destroyContainer(this);
+        engine.destroyContainer(this);
+    }
+
+    @Override
+    public void kill() {
+        engine.killContainer(this);
+    }
+
+    /**
+     * Address of the running container, inspected once and kept until it stops.
+     */
+    @Override
+    public InetAddress getAddress() {
+        InetAddress address = this.address;
+        if (address == null) {
+            address = engine.getAddress(this);
+            Status status = getStatus();
+            if (status == Status.RUNNING || status == Status.READY) {
+                this.address = address;
+            }
+        }
+        return address;
+    }
+
+    @Override
+    public boolean canExec() {
+        return true;
+    }
+
+    @Override
+    public int exec(List<String> command, Duration timeout) {
+        return engine.exec(this, command, timeout);
     }
 }
@@ -17,6 +17,7 @@
 package com.github.flordan.rolerunner.docker;
 
 import com.github.flordan.rolerunner.container.ContainerManager;
+import com.github.flordan.rolerunner.container.ContainerSpec;
 import com.github.flordan.rolerunner.exception.ImageNotFoundException;
 import com.github.flordan.rolerunner.image.Image;
 import com.github.flordan.rolerunner.image.ImageManager;
@@ -25,29 +26,58 @@ import java.util.HashSet;
 import java.util.Set;
 
 public class DockerImage extends Image {
+    private final DockerManager engine;
     private final String ID;
+    private final HexId key;
+    private volatile Boolean healthCheck;
 
-    public DockerImage(String ID) {
-        this(ID, null);
+    public DockerImage(DockerManager engine, String ID) {
+        this(engine, ID, null);
     }
 
-    public DockerImage(String ID, ImageManager handler) {
+    public DockerImage(DockerManager engine, String ID, ImageManager handler) {
         super(handler);
+        this.engine = engine;
         this.ID = ID;
+        this.key = HexId.parse(ID);
+    }
+
+    public DockerManager getEngine() {
+        return engine;
     }
 
     public String getID() {
         return ID;
     }
 
+    public HexId getKey() {
+        return key;
+    }
+
+    /**
+     * Whether the image defines a HEALTHCHECK, null until the image is inspected.
+     */
+    public Boolean getHealthCheck() {
+        return healthCheck;
+    }
+
+    void setHealthCheck(boolean healthCheck) {
+        this.healthCheck = healthCheck;
+    }
+
 
     @Override
     public void delete() {
-        DockerManager.deleteImage(this);
+        engine.deleteImage(this);
     }
 
     @Override
     public void createContainer(ContainerManager monitor) throws ImageNotFoundException {
-        DockerManager.createContainer(this, monitor);
+        engine.createContainer(this, monitor);
+    }
+
+    @Override
+    public void createContainer(ContainerManager monitor, ContainerSpec spec) throws ImageNotFoundException {
+        engine.createContainer(this, monitor, spec);
     }
 }
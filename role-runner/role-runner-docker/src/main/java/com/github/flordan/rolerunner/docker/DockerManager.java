@@ -18,7 +18,9 @@ package com.github.flordan.rolerunner.docker;
 
 import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.api.async.ResultCallback;
-import com.github.dockerjava.api.command.CreateContainerResponse;
+import com.github.dockerjava.api.command.CreateContainerCmd;
+import com.github.dockerjava.api.command.EventsCmd;
+import com.github.dockerjava.api.command.InspectContainerResponse;
 import com.github.dockerjava.api.command.InspectImageResponse;
 import com.github.dockerjava.api.command.PullImageResultCallback;
 import com.github.dockerjava.api.exception.ConflictException;
@@ -26,96 +28,632 @@ import com.github.dockerjava.api.exception.NotFoundException;
 import com.github.dockerjava.api.model.Bind;
 import com.github.dockerjava.api.model.Container;
 import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.api.model.Frame;
+import com.github.dockerjava.api.model.HealthCheck;
 import com.github.dockerjava.api.model.HostConfig;
 import com.github.dockerjava.api.model.Image;
+import com.github.dockerjava.api.model.Info;
 import com.github.dockerjava.api.model.PullResponseItem;
 import com.github.dockerjava.api.model.Volume;
 import com.github.dockerjava.core.DefaultDockerClientConfig;
 import com.github.dockerjava.core.DockerClientImpl;
 import com.github.dockerjava.httpclient5.ApacheDockerHttpClient;
+import com.github.flordan.rolerunner.container.Container.Status;
+import com.github.flordan.rolerunner.docker.DaemonExecutor.Operation;
 import com.github.flordan.rolerunner.container.ContainerManager;
+import com.github.flordan.rolerunner.container.ContainerSpec;
 import com.github.flordan.rolerunner.exception.ImageNotFoundException;
 import com.github.flordan.rolerunner.image.ImageIdentifier;
 import com.github.flordan.rolerunner.image.ImageManager;
+import com.github.flordan.rolerunner.image.PullProgress;
+import com.github.flordan.rolerunner.image.PullScheduler;
+import com.github.flordan.rolerunner.scheduling.Resources;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Container engine backed by a Docker daemon. Engines are created with a Builder and only connect to their daemon when
+ * first used, so several daemons can be driven from the same process.
+ */
 public class DockerManager {
 
-    private static final DockerClient CLIENT;
-    private static final Map<String, DockerImage> IMAGES;
-    private static final Map<ImageIdentifier, DockerImage> TAGS;
-    private static final Map<String, DockerContainer> CONTAINERS;
-    private static final Map<ImageIdentifier, ImageManager> REQ_TAGS;
-    private static final Map<String, ContainerManager> REQ_CONTAINERS;
+    public static final String MANAGED_LABEL = "com.github.flordan.rolerunner.managed";
+    public static final String REQUEST_LABEL = "com.github.flordan.rolerunner.request";
+    /**
+     * Label with the id of the engine that created the container, so each engine only prunes its own.
+     */
+    public static final String OWNER_LABEL = "com.github.flordan.rolerunner.owner";
+    private static final Map<String, String> MANAGED_LABELS = Map.of(MANAGED_LABEL, "true");
+    private static final Duration RECONCILIATION_PERIOD = Duration.ofSeconds(30);
+    private static final Duration RECONNECTION_DELAY = Duration.ofSeconds(1);
+    private static final Duration SNAPSHOT_FLUSH_PERIOD = Duration.ofSeconds(1);
+    /**
+     * System property with the path of the registry snapshot; "none" disables it.
+     */
+    public static final String SNAPSHOT_PROPERTY = "rolerunner.docker.snapshot";
 
-    static {
-        DefaultDockerClientConfig config = DefaultDockerClientConfig.createDefaultConfigBuilder().build();
-        ApacheDockerHttpClient httpClient = new ApacheDockerHttpClient.Builder()
-            .dockerHost(config.getDockerHost())
-            .sslConfig(config.getSSLConfig())
-            .maxConnections(100)
-            .connectionTimeout(Duration.ofSeconds(30))
-            .responseTimeout(Duration.ofSeconds(45))
-            .build();
-        CLIENT = DockerClientImpl.getInstance(config, httpClient);
+    // Writable paths of the containers with a read-only root filesystem, emptied on every stop
+    private static final Map<String, String> READ_ONLY_ROOT_TMPFS = Map.of("/tmp", "rw,exec", "/run", "rw", "/var/tmp", "rw");
 
-        IMAGES = new TreeMap<>();
-        TAGS = new TreeMap<>();
-        CONTAINERS = new TreeMap<>();
+    // Pulls in flight per daemon address, so the engines of the process sharing a daemon pull each image once
+    private static final Map<String, Map<ImageIdentifier, PendingPull>> IN_FLIGHT = new HashMap<>();
 
-        CLIENT.eventsCmd().exec(new DockerMonitor());
-        loadCurrentState();
+    private final String host;
+    private final Boolean tlsVerify;
+    private final String certPath;
+    private final int maxConnections;
+    private final Duration connectionTimeout;
+    private final Duration responseTimeout;
+    private final Path snapshotFile;
+    private final boolean defaultSnapshot;
+    private final String instanceId;
+    private final DockerRegistry registry;
+    private final Map<ImageIdentifier, PendingPull> reqTags;
+    private final PullScheduler pulls;
+    private final Map<String, ContainerManager> reqContainers;
+    private final ScheduledExecutorService reconciler;
+    private final AtomicLong lastEventNanos;
+    private final AtomicLong reconnections;
+    private final AtomicLong driftCount;
+    private final StatsCollector stats;
+    private volatile DaemonExecutor executor;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private volatile DockerMonitor monitor;
+    private volatile Resources capacity;
+    private volatile String daemonAddress;
+    private DockerClient client;
+    private RegistrySnapshot snapshot;
+    private Thread snapshotHook;
+    private EventDispatcher events;
+    private Set<String> suspectedDrifts;
 
-        REQ_TAGS = new TreeMap<>();
-        REQ_CONTAINERS = new TreeMap<>();
+    private DockerManager(Builder builder) {
+        this.host = builder.host;
+        this.tlsVerify = builder.tlsVerify;
+        this.certPath = builder.certPath;
+        // Each stats stream holds a connection for as long as its container runs
+        this.maxConnections = builder.maxConnections + builder.statsStreams;
+        this.connectionTimeout = builder.connectionTimeout;
+        this.responseTimeout = builder.responseTimeout;
+        this.snapshotFile = builder.snapshotFile;
+        this.defaultSnapshot = builder.defaultSnapshot;
+        this.instanceId = UUID.randomUUID().toString();
+        this.registry = new DockerRegistry(this);
+        this.executor = builder.executor != null
+            ? builder.executor
+            : DaemonExecutor.virtualThreads(DaemonExecutor.DEFAULT_MAX_CONCURRENCY);
+        this.reqTags = new HashMap<>();
+        this.pulls = new PullScheduler();
+        this.reqContainers = new ConcurrentHashMap<>();
+        this.lastEventNanos = new AtomicLong();
+        this.reconnections = new AtomicLong();
+        this.driftCount = new AtomicLong();
+        this.suspectedDrifts = new HashSet<>();
+        this.stats = builder.statsStreams > 0 ? new StatsCollector(builder.statsStreams, builder.statsSamples) : null;
+        this.reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "docker-reconciler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.connected = false;
     }
 
-    private DockerManager() throws InstantiationException {
-        throw new InstantiationException();
+    public static Builder builder() {
+        return new Builder();
     }
 
-    private static void loadCurrentState() {
-        List<Image> images = CLIENT.listImagesCmd().exec();
-        for (Image i : images) {
-            String id = i.getId();
-            DockerImage di = new DockerImage(id);
+    /**
+     * Connects to the daemon the first time the engine is used: builds the HTTP client, restores the registry from the
+     * snapshot (or lists the daemon state) and opens the event stream.
+     */
+    public void connect() {
+        if (connected) {
+            return;
+        }
+        synchronized (this) {
+            if (connected) {
+                return;
+            }
+            DefaultDockerClientConfig.Builder configBuilder = DefaultDockerClientConfig.createDefaultConfigBuilder();
+            if (host != null) {
+                configBuilder.withDockerHost(host);
+            }
+            if (tlsVerify != null) {
+                configBuilder.withDockerTlsVerify(tlsVerify);
+            }
+            if (certPath != null) {
+                configBuilder.withDockerCertPath(certPath);
+            }
+            DefaultDockerClientConfig config = configBuilder.build();
+            ApacheDockerHttpClient httpClient = new ApacheDockerHttpClient.Builder()
+                .dockerHost(config.getDockerHost())
+                .sslConfig(config.getSSLConfig())
+                .maxConnections(maxConnections)
+                .connectionTimeout(connectionTimeout)
+                .responseTimeout(responseTimeout)
+                .build();
+            client = DockerClientImpl.getInstance(config, httpClient);
+
+            String dockerHost = config.getDockerHost().toString();
+            daemonAddress = dockerHost;
+            Path file = defaultSnapshot ? defaultSnapshotFile(dockerHost) : snapshotFile;
+            snapshot = file == null ? null : new RegistrySnapshot(file, dockerHost);
+            Set<HexId> restored = null;
+            if (snapshot != null) {
+                try {
+                    restored = snapshot.load(registry);
+                    registry.setJournal(snapshot);
+                } catch (IOException ioe) {
+                    System.out.println("Registry snapshot disabled: " + ioe.getMessage());
+                    saveSnapshotOnExit();
+                    snapshot = null;
+                }
+            }
+
+            int lanes = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+            events = new EventDispatcher("docker-events", lanes, this::handle);
+            // Set before listing the state: the calls below go through the public entry points
+            connected = true;
+            openEventStream();
+            if (restored == null) {
+                loadCurrentState();
+            } else {
+                // Queries are served from the snapshot while it is checked against the daemon
+                Set<HexId> fromSnapshot = restored;
+                reconciler.execute(() -> verifyState(fromSnapshot));
+            }
+
+            long period = RECONCILIATION_PERIOD.toMillis();
+            reconciler.scheduleWithFixedDelay(this::reconcile, period, period, TimeUnit.MILLISECONDS);
+            if (snapshot != null) {
+                long flushPeriod = SNAPSHOT_FLUSH_PERIOD.toMillis();
+                reconciler.scheduleWithFixedDelay(this::saveSnapshot, flushPeriod, flushPeriod,
+                    TimeUnit.MILLISECONDS);
+                snapshotHook = new Thread(this::saveSnapshotOnExit, "docker-snapshot-saver");
+                Runtime.getRuntime().addShutdownHook(snapshotHook);
+            }
+        }
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Whether the daemon runs on this host: reached through a local socket or pipe, or over TCP on the loopback.
+     */
+    public boolean isLocal() {
+        String address = host != null ? host : System.getenv("DOCKER_HOST");
+        if (address == null || address.startsWith("unix://") || address.startsWith("npipe://")) {
+            return true;
+        }
+        String authority = address.replaceFirst("^[a-z]+://", "");
+        return authority.startsWith("localhost") || authority.startsWith("127.") || authority.startsWith("[::1]");
+    }
+
+    /**
+     * Stops the background tasks, saves the snapshot and closes the event stream and the connection to the daemon.
+     */
+    public synchronized void close() {
+        closed = true;
+        reconciler.shutdownNow();
+        List<PendingPull> pending;
+        synchronized (reqTags) {
+            pending = new ArrayList<>(reqTags.values());
+        }
+        for (PendingPull pull : pending) {
+            // Engines following these pulls take them over
+            pull.abort(new IllegalStateException("Docker engine closed"));
+        }
+        executor.shutdown();
+        pulls.shutdown();
+        if (connected) {
+            if (snapshot != null) {
+                saveSnapshotOnExit();
+                if (Thread.currentThread() != snapshotHook) {
+                    try {
+                        Runtime.getRuntime().removeShutdownHook(snapshotHook);
+                    } catch (IllegalStateException ise) {
+                        // The JVM is already exiting
+                    }
+                }
+            }
+            if (stats != null) {
+                stats.close();
+            }
+            events.shutdown();
+            try {
+                DockerMonitor current = monitor;
+                if (current != null) {
+                    current.close();
+                }
+                client.close();
+            } catch (IOException ioe) {
+                System.out.println("Could not close Docker client: " + ioe.getMessage());
+            }
+        }
+    }
+
+    private void saveSnapshotOnExit() {
+        try {
+            snapshot.close();
+        } catch (IOException ioe) {
+            System.out.println("Could not save registry snapshot: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Snapshot file of the daemon unless set with the system property: one per daemon address, so engines of
+     * different daemons never share it.
+     */
+    private static Path defaultSnapshotFile(String dockerHost) {
+        String path = System.getProperty(SNAPSHOT_PROPERTY);
+        if ("none".equals(path)) {
+            return null;
+        }
+        return path != null
+            ? Paths.get(path)
+            : Paths.get(System.getProperty("user.home"), ".rolerunner",
+                "docker-registry-" + dockerHost.replaceAll("[^A-Za-z0-9.-]+", "_") + ".snapshot");
+    }
+
+    private void saveSnapshot() {
+        try {
+            snapshot.flush();
+            if (snapshot.needsCompaction(registry)) {
+                snapshot.compact(registry);
+            }
+        } catch (IOException ioe) {
+            System.out.println("Could not save registry snapshot: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Checks the state restored from the snapshot against the daemon: images and containers missing from the snapshot
+     * are added, those restored but gone are removed and container states only move forward, as in the
+     * reconciliation. Container changes run on the event lane of the container, ordered with its events.
+     */
+    private void verifyState(Set<HexId> restored) {
+        try {
+            long start = System.nanoTime();
+            List<Image> images = executor.call(Operation.LIST_IMAGES, () -> client.listImagesCmd().exec());
+            Set<HexId> seen = new HashSet<>();
+            for (Image i : images) {
+                DockerImage di = registerImage(i);
+                seen.add(di.getKey());
+                if (restored.contains(di.getKey())) {
+                    Set<ImageIdentifier> listed = new HashSet<>();
+                    if (i.getRepoTags() != null) {
+                        for (String tag : i.getRepoTags()) {
+                            ImageIdentifier iId = ImageIdentifier.tryParse(tag);
+                            if (iId != null) {
+                                listed.add(iId);
+                            }
+                        }
+                    }
+                    for (ImageIdentifier iId : new ArrayList<>(di.getTags())) {
+                        if (!listed.contains(iId)) {
+                            registry.untag(iId, di);
+                        }
+                    }
+                }
+            }
+            for (DockerImage di : new ArrayList<>(registry.getImages())) {
+                if (restored.contains(di.getKey()) && !seen.contains(di.getKey())) {
+                    DockerImage removed = registry.removeImage(di.getID());
+                    if (removed != null) {
+                        removed.deleted();
+                    }
+                }
+            }
+
+            List<Container> containers = executor.call(Operation.LIST_CONTAINERS,
+                () -> client.listContainersCmd().withShowAll(true).exec());
+            seen.clear();
+            for (Container c : containers) {
+                String id = c.getId();
+                seen.add(HexId.parse(id));
+                events.execute(id, () -> {
+                    DockerContainer dc = registry.getContainer(id);
+                    if (dc == null) {
+                        registerContainer(c);
+                        return;
+                    }
+                    switch (c.getState()) {
+                        case "running":
+                            if (isBefore(dc, Status.RUNNING)) {
+                                startedContainer(id);
+                            }
+                            if (isHealthy(c)) {
+                                healthyContainer(id, true);
+                            }
+                            break;
+                        case "exited":
+                        case "dead":
+                            if (isBefore(dc, Status.STOPPED)) {
+                                deadContainer(id);
+                            }
+                            break;
+                        default:
+                            // Transitional daemon state
+                    }
+                });
+            }
+            for (DockerContainer dc : registry.getContainers()) {
+                if (restored.contains(dc.getKey()) && !seen.contains(dc.getKey())) {
+                    String id = dc.getId();
+                    events.execute(id, () -> destroyedContainer(id));
+                }
+            }
+            System.out.println("Verified registry snapshot in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (RuntimeException re) {
+            System.out.println("Could not verify registry snapshot, retrying: " + re.getMessage());
+            reconciler.schedule(() -> verifyState(restored), RECONNECTION_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void openEventStream() {
+        long since = lastEventNanos.get();
+        EventsCmd cmd = client.eventsCmd();
+        if (since > 0) {
+            // Resume from the last processed event; the new monitor drops the ones already seen
+            cmd = cmd.withSince(String.format("%d.%09d", since / 1_000_000_000L, since % 1_000_000_000L));
+        }
+        monitor = cmd.exec(new DockerMonitor(since));
+    }
+
+    private void reconnectEventStream() {
+        if (closed) {
+            return;
+        }
+        reconnections.incrementAndGet();
+        reconciler.schedule(() -> {
+            try {
+                openEventStream();
+            } catch (RuntimeException re) {
+                System.out.println("Could not reopen Docker event stream: " + re.getMessage());
+                reconnectEventStream();
+            }
+        }, RECONNECTION_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public DaemonExecutor getDaemonExecutor() {
+        return executor;
+    }
+
+    /**
+     * Replaces the executor running the blocking daemon calls; e.g., with a fixed pool of platform threads.
+     */
+    public void setDaemonExecutor(DaemonExecutor newExecutor) {
+        DaemonExecutor old = executor;
+        executor = newExecutor;
+        old.shutdown();
+    }
+
+    public long getLastEventTimeNanos() {
+        return lastEventNanos.get();
+    }
+
+    public long getEventStreamReconnections() {
+        return reconnections.get();
+    }
+
+    public long getDriftCount() {
+        return driftCount.get();
+    }
+
+    /**
+     * Compares the managed containers reported by the daemon with the registry. A difference is only repaired when
+     * it is still there on the next check, to leave time to the events in flight when the list was taken.
+     */
+    private void reconcile() {
+        try {
+            List<Container> listed = executor.call(Operation.LIST_CONTAINERS,
+                () -> client.listContainersCmd()
+                    .withShowAll(true)
+                    .withLabelFilter(MANAGED_LABELS)
+                    .exec());
+            Set<String> drifts = new HashSet<>();
+            Set<String> seen = new HashSet<>();
+            for (Container c : listed) {
+                String id = c.getId();
+                seen.add(id);
+                DockerContainer dc = registry.getContainer(id);
+                if (dc == null) {
+                    String request = c.getLabels() != null ? c.getLabels().get(REQUEST_LABEL) : null;
+                    boolean pendingCreate = request != null && reqContainers.containsKey(request);
+                    if (!pendingCreate && checkDrift(drifts, id + "/create")) {
+                        events.execute(id, () -> registerContainer(c));
+                    }
+                    continue;
+                }
+                switch (c.getState()) {
+                    case "running":
+                        if (isBefore(dc, Status.RUNNING)
+                            && checkDrift(drifts, id + "/start")) {
+                            events.execute(id, () -> startedContainer(id));
+                        } else if (dc.getStatus() == Status.RUNNING && isHealthy(c)
+                            && checkDrift(drifts, id + "/healthy")) {
+                            events.execute(id, () -> healthyContainer(id, true));
+                        }
+                        break;
+                    case "exited":
+                    case "dead":
+                        if (isBefore(dc, Status.STOPPED)
+                            && checkDrift(drifts, id + "/die")) {
+                            events.execute(id, () -> deadContainer(id));
+                        }
+                        break;
+                    default:
+                        // Transitional daemon state
+                }
+            }
+            for (DockerContainer dc : registry.getContainers()) {
+                String id = dc.getId();
+                if (dc.isManaged() && !seen.contains(id) && checkDrift(drifts, id + "/destroy")) {
+                    events.execute(id, () -> destroyedContainer(id));
+                }
+            }
+            suspectedDrifts = drifts;
+        } catch (RuntimeException re) {
+            System.out.println("Could not reconcile Docker state: " + re.getMessage());
+        }
+    }
+
+    private boolean checkDrift(Set<String> drifts, String drift) {
+        drifts.add(drift);
+        if (suspectedDrifts.contains(drift)) {
+            driftCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isHealthy(Container c) {
+        // The listing only reports the health in the status text, e.g. "Up 2 minutes (healthy)"
+        return c.getStatus() != null && c.getStatus().endsWith("(healthy)");
+    }
+
+    private static boolean isBefore(DockerContainer dc, Status status) {
+        return dc.getStatus().ordinal() < status.ordinal();
+    }
+
+    private void registerContainer(Container c) {
+        String containerID = c.getId();
+        if (registry.getContainer(containerID) != null) {
+            return;
+        }
+        DockerImage di = registry.getImage(c.getImageId());
+        if (di == null) {
+            return;
+        }
+        DockerContainer dc = new DockerContainer(containerID, c.getNames()[0], di);
+        dc.setManaged(c.getLabels() != null && c.getLabels().containsKey(MANAGED_LABEL));
+        switch (c.getState()) {
+            case "running":
+                dc.started();
+                if (isHealthy(c)) {
+                    dc.ready();
+                }
+                break;
+            case "exited":
+            case "dead":
+                dc.stopped();
+                break;
+            default:
+                // Assume Created
+        }
+        registry.addContainer(dc);
+        di.addContainer(dc);
+        if ("running".equals(c.getState())) {
+            followStats(dc);
+        }
+    }
+
+    private void startedContainer(String id) {
+        DockerContainer dc = registry.getContainer(id);
+        if (dc != null) {
+            dc.started();
+            registry.changedContainer(dc);
+            followStats(dc);
+        }
+    }
+
+    private void followStats(DockerContainer dc) {
+        if (stats != null && dc.isManaged()) {
+            stats.track(client, dc);
+        }
+    }
+
+    private void healthyContainer(String id, boolean healthy) {
+        DockerContainer dc = registry.getContainer(id);
+        if (dc != null) {
+            if (healthy) {
+                dc.ready();
+            } else {
+                dc.unready();
+            }
+        }
+    }
+
+    private void deadContainer(String id) {
+        if (stats != null) {
+            stats.untrack(id);
+        }
+        DockerContainer dc = registry.getContainer(id);
+        if (dc != null) {
+            dc.stopped();
+            registry.changedContainer(dc);
+        }
+    }
+
+    private void destroyedContainer(String id) {
+        if (stats != null) {
+            stats.remove(id);
+        }
+        DockerContainer dc = registry.removeContainer(id);
+        if (dc != null) {
+            dc.destroyed();
+        }
+    }
+
+    private DockerImage registerImage(Image i) {
+        DockerImage di = new DockerImage(this, i.getId());
+        if (i.getSize() != null) {
+            di.setSize(i.getSize());
+        }
+        di = registry.addImage(di);
+        if (i.getRepoTags() != null) {
             for (String tag : i.getRepoTags()) {
-                ImageIdentifier iId = ImageIdentifier.parse(tag);
-                di.addTag(iId);
-                TAGS.put(iId, di);
+                ImageIdentifier iId = ImageIdentifier.tryParse(tag);
+                if (iId != null) {
+                    registry.tag(iId, di);
+                }
             }
-            IMAGES.put(id, di);
         }
-        List<Container> containers = CLIENT.listContainersCmd().exec();
+        if (i.getRepoDigests() != null) {
+            registry.addDigests(di, List.of(i.getRepoDigests()));
+        }
+        return di;
+    }
+
+    private void loadCurrentState() {
+        List<Image> images = executor.call(Operation.LIST_IMAGES, () -> client.listImagesCmd().exec());
+        for (Image i : images) {
+            registerImage(i);
+        }
+        List<Container> containers = executor.call(Operation.LIST_CONTAINERS,
+            () -> client.listContainersCmd().exec());
         for (Container c : containers) {
-            String containerID = c.getId();
-            String name = c.getNames()[0];
-            String imageID = c.getImageId();
-            DockerImage di = IMAGES.get(imageID);
-            DockerContainer dc = new DockerContainer(containerID, name, di);
-            switch (c.getState()) {
-                case "running":
-                    dc.started();
-                    break;
-                case "exited":
-                    dc.stopped();
-                    break;
-                default:
-                    // Assume Created
-            }
-            CONTAINERS.put(containerID, dc);
-            di.addContainer(dc);
+            registerContainer(c);
         }
     }
 
-    private static void printCurrentState() {
-        for (DockerImage i : IMAGES.values()) {
+    private void printCurrentState() {
+        for (DockerImage i : registry.getImages()) {
             System.out.println(i.getID());
             System.out.println("├─tags:");
             Iterator<ImageIdentifier> tags = i.getTags().iterator();
@@ -139,209 +677,779 @@ public class DockerManager {
             }
         }
 
-        for (Map.Entry<ImageIdentifier, DockerImage> tagEntry : TAGS.entrySet()) {
-            System.out.println(tagEntry.getKey() + "-->" + tagEntry.getValue().getID());
+        for (ImageIdentifier tag : registry.getTags()) {
+            DockerImage image = registry.getImage(tag);
+            if (image != null) {
+                System.out.println(tag + "-->" + image.getID());
+            }
+        }
+    }
+
+    public EventDispatcher getEventDispatcher() {
+        connect();
+        return events;
+    }
+
+    public Set<ImageIdentifier> getAvailableImages() {
+        connect();
+        return registry.getTags();
+    }
+
+    public DockerImage getImage(ImageIdentifier iId) {
+        connect();
+        return registry.getImage(iId);
+    }
+
+    public DockerRegistry getRegistry() {
+        connect();
+        return registry;
+    }
+
+    /**
+     * Resource usage of the managed containers, null unless enabled with Builder.stats.
+     */
+    public StatsCollector getStatsCollector() {
+        return stats;
+    }
+
+    /**
+     * CPUs and memory of the daemon's host, as reported by the daemon the first time it is asked; null if it does not
+     * report them.
+     */
+    public Resources getCapacity() {
+        connect();
+        if (capacity == null) {
+            Info info = executor.call(Operation.INFO, () -> client.infoCmd().exec());
+            if (info.getNCPU() != null && info.getMemTotal() != null) {
+                capacity = new Resources(info.getNCPU(), info.getMemTotal());
+            }
         }
+        return capacity;
     }
 
-    public static Set<ImageIdentifier> getAvailableImages() {
-        return TAGS.keySet();
+    public PullScheduler getPullScheduler() {
+        return pulls;
     }
 
-    public static DockerImage getImage(ImageIdentifier iId) {
-        return TAGS.get(iId);
+    /**
+     * Obtains the image, pulling it only if the daemon does not hold the reference: a digest matching the local
+     * RepoDigests or a tag present locally is handed over without contacting the registry, even if the tag has moved
+     * there since. Concurrent requests of the same reference share one pull, also across the engines of the process
+     * driving the same daemon.
+     */
+    public void requestImage(ImageIdentifier iId, ImageManager handler) {
+        connect();
+        DockerImage local = registry.getImage(iId);
+        if (local != null) {
+            // Reference already resolved locally; the registry is not asked whether a tag moved
+            if (handler != null) {
+                handler.fetchedImage(local);
+            }
+            return;
+        }
+        PendingPull pull;
+        boolean newPull;
+        synchronized (reqTags) {
+            pull = reqTags.get(iId);
+            newPull = pull == null;
+            if (newPull) {
+                pull = new PendingPull(iId);
+                reqTags.put(iId, pull);
+            }
+            pull.attach(handler);
+        }
+        if (newPull) {
+            pull.lead();
+        } else {
+            // The new request may come from a role and make the queued pull urgent
+            pulls.dispatch();
+        }
     }
 
-    public static void requestImage(ImageIdentifier iId, ImageManager handler) {
-        synchronized (REQ_TAGS) {
-            REQ_TAGS.put(iId, handler);
+
+    private class PendingPull implements PullScheduler.Pull {
+        private final ImageIdentifier iId;
+        private final List<ImageManager> handlers;
+        private final PullProgress progress;
+        // Pulls of other engines of the daemon waiting for this one
+        private final List<PendingPull> followers;
+
+        public PendingPull(ImageIdentifier iId) {
+            this.iId = iId;
+            this.handlers = new CopyOnWriteArrayList<>();
+            this.progress = new PullProgress(iId);
+            this.followers = new CopyOnWriteArrayList<>();
+        }
+
+        /**
+         * Pulls the image unless another engine of the same daemon is already pulling it; the pull then waits for that
+         * one and resolves the image in this engine once it is over.
+         */
+        public void lead() {
+            synchronized (reqTags) {
+                if (closed || reqTags.get(iId) != this) {
+                    // Aborted meanwhile
+                    return;
+                }
+            }
+            PendingPull leader;
+            synchronized (IN_FLIGHT) {
+                leader = IN_FLIGHT.computeIfAbsent(daemonAddress, k -> new HashMap<>()).putIfAbsent(iId, this);
+                if (leader != null) {
+                    leader.followers.add(this);
+                }
+            }
+            if (leader == null) {
+                pulls.submit(this);
+            }
+        }
+
+        // Hands the outcome of the pull to the engines following it; null cause if it succeeded
+        private void landed(Throwable cause) {
+            List<PendingPull> waiting;
+            synchronized (IN_FLIGHT) {
+                Map<ImageIdentifier, PendingPull> daemonPulls = IN_FLIGHT.get(daemonAddress);
+                if (daemonPulls == null || !daemonPulls.remove(iId, this)) {
+                    return;
+                }
+                if (daemonPulls.isEmpty()) {
+                    IN_FLIGHT.remove(daemonAddress);
+                }
+                waiting = new ArrayList<>(followers);
+                followers.clear();
+            }
+            for (PendingPull follower : waiting) {
+                if (cause == null) {
+                    follower.resolve();
+                } else if (closed) {
+                    // Not a failure of the pull: the next follower pulls the image itself
+                    follower.lead();
+                } else {
+                    follower.abort(cause);
+                }
+            }
+        }
+
+        @Override
+        public ImageIdentifier getImage() {
+            return iId;
+        }
+
+        @Override
+        public boolean isUrgent() {
+            for (ImageManager handler : handlers) {
+                if (handler.isAwaited(iId)) {
+                    return true;
+                }
+            }
+            for (PendingPull follower : followers) {
+                if (follower.isUrgent()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public long getBytesPerSecond() {
+            return progress.getBytesPerSecond();
+        }
+
+        @Override
+        public void begin() {
+            // The engine takes either a tag or a digest as the tag of the pull
+            String reference = iId.getDigest() != null ? iId.getDigest() : iId.getTag();
+            try {
+                client.pullImageCmd(iId.getName()).withTag(reference).exec(new PullCallback(this));
+            } catch (RuntimeException re) {
+                abort(re);
+                throw re;
+            }
+        }
+
+        public void abort(Throwable cause) {
+            landed(cause);
+            boolean removed;
+            synchronized (reqTags) {
+                removed = reqTags.remove(iId, this);
+            }
+            if (removed) {
+                System.out.println("Could not pull image " + iId + ": " + cause.getMessage());
+                failed(cause);
+            }
+        }
+
+        /**
+         * Resolves the pull once its stream (or the pull it follows) completes, unless the daemon's pull event did it
+         * already: the event may never come (e.g. lost in a gap of the events stream) or name the image differently
+         * than requested.
+         */
+        public void resolve() {
+            landed(null);
+            synchronized (reqTags) {
+                if (reqTags.get(iId) != this) {
+                    return;
+                }
+            }
+            executor.execute(Operation.INSPECT_IMAGE, () -> {
+                InspectImageResponse response;
+                try {
+                    response = client.inspectImageCmd(iId.toString()).exec();
+                } catch (RuntimeException re) {
+                    abort(re);
+                    return;
+                }
+                events.execute(EventDispatcher.IMAGE_KEY, () -> registerPulled(iId, response));
+            });
+        }
+
+        public void progressed() {
+            for (ImageManager handler : handlers) {
+                handler.pullProgressed(progress);
+            }
+        }
+
+        public void attach(ImageManager handler) {
+            if (handler != null && !handlers.contains(handler)) {
+                handlers.add(handler);
+            }
+        }
+
+        public ImageManager getOwner() {
+            return handlers.isEmpty() ? null : handlers.get(0);
+        }
+
+        public void completed(DockerImage image) {
+            for (ImageManager handler : handlers) {
+                handler.fetchedImage(image);
+            }
+        }
+
+        public void failed(Throwable cause) {
+            for (ImageManager handler : handlers) {
+                handler.failedImage(iId, cause);
+            }
         }
-        PullImageResultCallback cb = new PullCallback();
-        CLIENT.pullImageCmd(iId.getRepository()).withTag(iId.getTag()).exec(cb);
     }
 
 
-    private static class PullCallback extends PullImageResultCallback {
+    private class PullCallback extends PullImageResultCallback {
+        private final PendingPull pull;
+
+        public PullCallback(PendingPull pull) {
+            this.pull = pull;
+        }
+
+        @Override
         public void onNext(PullResponseItem item) {
+            if (item.isErrorIndicated()) {
+                // Fail right away instead of waiting for the stream to end
+                String message = item.getErrorDetail() != null ? item.getErrorDetail().getMessage() : item.getError();
+                pull.abort(new IllegalStateException(message));
+                return;
+            }
+            String layer = item.getId();
+            String status = item.getStatus();
+            if (layer == null || status == null || layer.equals(pull.iId.getTag())) {
+                // Messages about the image as a whole, not a layer
+                return;
+            }
+            PullResponseItem.ProgressDetail detail = item.getProgressDetail();
+            long current = detail != null && detail.getCurrent() != null ? detail.getCurrent() : 0;
+            long total = detail != null && detail.getTotal() != null ? detail.getTotal() : 0;
+            boolean notify;
+            switch (status) {
+                case "Downloading":
+                    notify = pull.progress.update(layer, status, current, total);
+                    break;
+                case "Extracting":
+                    // Extraction progress counts the layer's bytes again; the download is complete
+                    notify = pull.progress.update(layer, status, total, total);
+                    break;
+                default:
+                    notify = pull.progress.update(layer, status, 0, 0);
+            }
+            if (notify) {
+                pull.progressed();
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            pulls.finished(pull);
+            pull.resolve();
+            super.onComplete();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            pull.abort(throwable);
+            pulls.finished(pull);
         }
     }
 
-    public static void deleteImage(DockerImage image) {
-        CLIENT.removeImageCmd(image.getID()).exec();
+    public void deleteImage(DockerImage image) {
+        connect();
+        // Kept synchronous: images are deleted while shutting down and the caller must wait for the removal
+        executor.call(Operation.REMOVE_IMAGE, () -> client.removeImageCmd(image.getID()).exec());
     }
 
 
-    public static void createContainer(DockerImage image, ContainerManager handler)
+    public void createContainer(DockerImage image, ContainerManager handler)
+        throws ImageNotFoundException {
+        createContainer(image, handler, ContainerSpec.DEFAULT);
+    }
+
+    /**
+     * Creates a container of the image as described by the spec. Recyclable containers are not removed by the daemon
+     * when they stop so they can be started again; if they have a read-only root, the only writable paths are tmpfs
+     * mounts, emptied on every stop.
+     */
+    public void createContainer(DockerImage image, ContainerManager handler, ContainerSpec spec)
         throws ImageNotFoundException {
+        connect();
         System.out.println("Create container for image " + image.getID() + " " + image.getTags());
+        if (image.getHealthCheck() == null) {
+            inspectHealthCheck(image);
+        }
+        List<Bind> binds = new ArrayList<>();
+        for (Map.Entry<String, String> bind : spec.getBinds().entrySet()) {
+            binds.add(new Bind(bind.getValue(), new Volume(bind.getKey())));
+        }
         HostConfig hostConfig = HostConfig
             .newHostConfig()
-            .withBinds(new Bind("colmena", new Volume("/colmena")))
-            .withAutoRemove(true);
+            .withBinds(binds)
+            .withAutoRemove(!spec.isRecyclable());
+        if (spec.isRecyclable() && spec.isReadOnlyRoot()) {
+            hostConfig.withReadonlyRootfs(true).withTmpFs(READ_ONLY_ROOT_TMPFS);
+        }
+        if (spec.getMemory() > 0) {
+            hostConfig.withMemory(spec.getMemory());
+        }
+        if (spec.getCpus() > 0) {
+            hostConfig.withNanoCPUs((long) (spec.getCpus() * 1_000_000_000L));
+        }
+        if (spec.getCpusetCpus() != null) {
+            hostConfig.withCpusetCpus(spec.getCpusetCpus());
+        }
+        if (spec.getCpusetMems() != null) {
+            hostConfig.withCpusetMems(spec.getCpusetMems());
+        }
+        List<String> env = new ArrayList<>();
+        for (Map.Entry<String, String> var : spec.getEnv().entrySet()) {
+            env.add(var.getKey() + "=" + var.getValue());
+        }
 
+        // The create event is matched to its handler through the request label, so the handler is registered before
+        // the call and concurrent creations do not need to be serialized
+        String request = UUID.randomUUID().toString();
+        Map<String, String> labels = Map.of(MANAGED_LABEL, "true", REQUEST_LABEL, request, OWNER_LABEL, instanceId);
+        if (handler != null) {
+            reqContainers.put(request, handler);
+        }
         try {
-            synchronized (REQ_CONTAINERS) {
-                CreateContainerResponse response = CLIENT.createContainerCmd(image.getID())
-                    .withHostConfig(hostConfig)
-                    .withCmd("sleep", "1000")
-                    .exec();
-                REQ_CONTAINERS.put(response.getId(), handler);
-            }
+            executor.call(Operation.CREATE_CONTAINER,
+                () -> {
+                    CreateContainerCmd cmd = client.createContainerCmd(image.getID())
+                        .withHostConfig(hostConfig)
+                        .withLabels(labels)
+                        .withEnv(env);
+                    if (spec.getCommand() != null) {
+                        cmd.withCmd(spec.getCommand());
+                    }
+                    return cmd.exec();
+                });
         } catch (NotFoundException notFoundException) {
+            reqContainers.remove(request);
             throw new ImageNotFoundException();
+        } catch (RuntimeException re) {
+            reqContainers.remove(request);
+            throw re;
         }
     }
 
 
-    public static void startContainer(DockerContainer cnt) {
-        CLIENT.startContainerCmd(cnt.getId()).exec();
+    public void startContainer(DockerContainer cnt) {
+        executor.execute(Operation.START_CONTAINER, () -> client.startContainerCmd(cnt.getId()).exec());
+    }
+
+    public void stopContainer(DockerContainer cnt) {
+        executor.execute(Operation.STOP_CONTAINER, () -> client.stopContainerCmd(cnt.getId()).exec());
+    }
+
+    private void inspectHealthCheck(DockerImage image) {
+        try {
+            InspectImageResponse response = executor.call(Operation.INSPECT_IMAGE,
+                () -> client.inspectImageCmd(image.getID()).exec());
+            HealthCheck check = response.getConfig() != null ? response.getConfig().getHealthcheck() : null;
+            List<String> test = check != null ? check.getTest() : null;
+            image.setHealthCheck(test != null && !test.isEmpty() && !"NONE".equals(test.get(0)));
+        } catch (NotFoundException nfe) {
+            // The creation reports the missing image
+        }
+    }
+
+    /**
+     * Address of the container on its network, null if it has none (e.g. not running).
+     */
+    public InetAddress getAddress(DockerContainer cnt) {
+        InspectContainerResponse response = executor.call(Operation.INSPECT_CONTAINER,
+            () -> client.inspectContainerCmd(cnt.getId()).exec());
+        String ip = response.getNetworkSettings() != null ? response.getNetworkSettings().getIpAddress() : null;
+        if (ip == null || ip.isEmpty()) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(ip);
+        } catch (UnknownHostException uhe) {
+            return null;
+        }
     }
-    public static void stopContainer(DockerContainer cnt) {
-        new Thread(){
-            public void run(){
-                CLIENT.stopContainerCmd(cnt.getId()).exec();
+
+    /**
+     * Runs a command in the container and returns its exit code; -1 if it did not end within the timeout.
+     */
+    public int exec(DockerContainer cnt, List<String> command, Duration timeout) {
+        return executor.call(Operation.EXEC, () -> {
+            String execId = client.execCreateCmd(cnt.getId())
+                .withCmd(command.toArray(new String[0]))
+                .withAttachStdout(true)
+                .withAttachStderr(true)
+                .exec()
+                .getId();
+            try {
+                if (!client.execStartCmd(execId).exec(new ResultCallback.Adapter<Frame>())
+                    .awaitCompletion(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                    return -1;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            Long exitCode = client.inspectExecCmd(execId).exec().getExitCodeLong();
+            return exitCode == null ? -1 : exitCode.intValue();
+        });
+    }
+
+    public void killContainer(DockerContainer cnt) {
+        executor.execute(Operation.KILL_CONTAINER, () -> {
+            try {
+                client.killContainerCmd(cnt.getId()).exec();
+            } catch (ConflictException | NotFoundException e) {
+                // Not running anymore
             }
-        }.start();
+        });
     }
 
-    public static void destroyContainer(DockerContainer cnt) {
+    /**
+     * Force-removes every container this engine created, running or not, waiting at most the given time. Containers
+     * of other engines or processes sharing the daemon are left alone. Returns the number of containers removed.
+     */
+    public int pruneContainers(Duration timeout) {
+        connect();
+        Map<String, String> owned = Map.of(MANAGED_LABEL, "true", OWNER_LABEL, instanceId);
+        List<Container> managed = executor.call(Operation.LIST_CONTAINERS,
+            () -> client.listContainersCmd().withShowAll(true).withLabelFilter(owned).exec());
+        CountDownLatch done = new CountDownLatch(managed.size());
+        AtomicInteger removed = new AtomicInteger();
+        for (Container c : managed) {
+            executor.execute(Operation.REMOVE_CONTAINER, () -> {
+                try {
+                    client.removeContainerCmd(c.getId()).withForce(true).exec();
+                    removed.incrementAndGet();
+                } catch (NotFoundException nfe) {
+                    // Already removed
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
         try {
-            CLIENT.removeContainerCmd(cnt.getId()).exec();
-        }catch(ConflictException ce){
-            //Ignore since it is already being removed
+            done.await(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         }
+        return removed.get();
     }
 
-    private static class DockerMonitor extends ResultCallback.Adapter<Event> {
+    public void destroyContainer(DockerContainer cnt) {
+        executor.execute(Operation.REMOVE_CONTAINER, () -> {
+            try {
+                client.removeContainerCmd(cnt.getId()).exec();
+            } catch (ConflictException ce) {
+                //Ignore since it is already being removed
+            } catch (NotFoundException nfe) {
+                // Already removed by the daemon once stopped
+            }
+        });
+    }
 
-        public DockerMonitor() {
+    private void handle(Event event) {
+        switch (event.getType()) {
+            case CONTAINER:
+                containerEvent(event);
+                break;
+            case IMAGE:
+                imageEvent(event);
+                break;
+        }
+    }
+
+    private void containerEvent(Event event) {
+        switch (event.getAction()) {
+            case "create":
+                createdContainer(event);
+                break;
+            case "start":
+                startedContainer(event.getId());
+                break;
+            case "die":
+                deadContainer(event.getId());
+                break;
+            case "destroy":
+                destroyedContainer(event.getId());
+                break;
+            case "health_status: healthy":
+                healthyContainer(event.getId(), true);
+                break;
+            case "health_status: unhealthy":
+                healthyContainer(event.getId(), false);
+                break;
+            default:
+                // Ignore Event
+        }
+    }
+
+    private void createdContainer(Event event) {
+        try {
+            String id = event.getId();
+            if (registry.getContainer(id) != null) {
+                return;
+            }
+            Map<String, String> attributes = event.getActor().getAttributes();
+            String name = attributes.get("name");
+            String imageId = attributes.get("image");
+            DockerImage di = registry.getImage(imageId);
+            String request = attributes.get(REQUEST_LABEL);
+            ContainerManager handler = request != null ? reqContainers.remove(request) : null;
+            DockerContainer dc = new DockerContainer(id, name, di, handler);
+            dc.setManaged(attributes.containsKey(MANAGED_LABEL));
+            registry.addContainer(dc);
+            di.addContainer(dc);
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+        }
+    }
+
+    private void imageEvent(Event event) {
+        switch (event.getAction()) {
+            case "pull":
+                pulledImage(event);
+                break;
+            case "tag":
+                taggedImage(event);
+                break;
+            case "delete":
+                deletedImage(event);
+                break;
+            default:
+                // Ignore Event
+        }
+    }
+
+
+    private void deletedImage(Event event) {
+        String deletedId = event.getId();
+        DockerImage img = registry.removeImage(deletedId);
+        if (img != null) {
+            img.deleted();
+        }
+    }
+
+    private void pulledImage(Event event) {
+        String pulledTag = event.getId();
+        ImageIdentifier pulledIId = ImageIdentifier.tryParse(pulledTag);
+        if (pulledIId == null) {
+            return;
+        }
+        // Inspecting off the lane; the result goes back to the lane to stay ordered with the other image events
+        executor.execute(Operation.INSPECT_IMAGE, () -> {
+            InspectImageResponse response;
+            try {
+                response = client.inspectImageCmd(pulledTag).exec();
+            } catch (RuntimeException re) {
+                // A pull of this engine is resolved when its stream completes
+                System.out.println("Could not inspect pulled image " + pulledTag + ": " + re.getMessage());
+                return;
+            }
+            events.execute(EventDispatcher.IMAGE_KEY, () -> registerPulled(pulledIId, response));
+        });
+    }
+
+    private void registerPulled(ImageIdentifier pulledIId, InspectImageResponse response) {
+        String imageId = response.getId();
+        PendingPull pull;
+        synchronized (reqTags) {
+            pull = reqTags.remove(pulledIId);
+        }
+        // Re-pulls resolving to an already known image reuse its wrapper
+        ImageManager owner = pull != null ? pull.getOwner() : null;
+        DockerImage image = registry.getOrAddImage(imageId, id -> new DockerImage(this, id, owner));
+        registry.tag(pulledIId, image);
+        registry.addDigests(image, response.getRepoDigests());
+        if (response.getSize() != null) {
+            registry.setSize(image, response.getSize());
+        }
+        if (pull != null) {
+            // The handlers create the containers waiting for the image: blocking calls that must not hold the lane
+            executor.submit(() -> pull.completed(image));
+        }
+    }
+
+    private void taggedImage(Event event) {
+        String taggedId = event.getId();
+        String tag = event.getActor().getAttributes().get("name");
+        ImageIdentifier iId = ImageIdentifier.tryParse(tag);
+        if (iId == null) {
+            return;
+        }
+        DockerImage im = registry.getOrAddImage(taggedId, id -> new DockerImage(this, id));
+        registry.tag(iId, im);
+    }
+
+    private class DockerMonitor extends ResultCallback.Adapter<Event> {
+
+        private final long resumedFrom;
+        private final AtomicBoolean closed;
+
+        public DockerMonitor(long resumedFrom) {
+            this.resumedFrom = resumedFrom;
+            this.closed = new AtomicBoolean(false);
         }
 
         public void onNext(Event event) {
+            Long timeNano = event.getTimeNano();
+            if (timeNano != null) {
+                if (timeNano <= resumedFrom) {
+                    // Replayed event already processed before the reconnection
+                    return;
+                }
+                lastEventNanos.accumulateAndGet(timeNano, Math::max);
+            }
             switch (event.getType()) {
                 case CONTAINER:
-                    containerEvent(event);
-                    break;
                 case IMAGE:
-                    imageEvent(event);
+                    events.dispatch(event);
                     break;
+                default:
+                    // Ignore Event
             }
         }
 
-        private void containerEvent(Event event) {
-            switch (event.getAction()) {
-                case "create":
-                    createdContainer(event);
-                    break;
-                case "start":
-                    startedContainer(event);
-                    break;
-                case "die":
-                    deadContainer(event);
-                    break;
-                case "destroy":
-                    destroyedContainer(event);
-                    break;
-                default:
-                    // Ignore Event
+        @Override
+        public void onError(Throwable throwable) {
+            System.out.println("Docker event stream failed: " + throwable.getMessage());
+            if (closed.compareAndSet(false, true)) {
+                reconnectEventStream();
             }
         }
 
-        private void createdContainer(Event event) {
-            try {
-                String id = event.getId();
-                String name = event.getActor().getAttributes().get("name");
-                String imageId = event.getActor().getAttributes().get("image");
-                DockerImage di = IMAGES.get(imageId);
-                ContainerManager handler;
-                synchronized (REQ_CONTAINERS) {
-                    handler = REQ_CONTAINERS.remove(id);
-                }
-                DockerContainer dc = new DockerContainer(id, name, di, handler);
-                CONTAINERS.put(id, dc);
-                di.addContainer(dc);
-            } catch (Exception e) {
-                e.printStackTrace(System.out);
+        @Override
+        public void onComplete() {
+            if (closed.compareAndSet(false, true)) {
+                reconnectEventStream();
             }
         }
+    }
 
-        private void startedContainer(Event event) {
-            String id = event.getId();
-            DockerContainer dc = CONTAINERS.get(id);
-            dc.started();
+    public static class Builder {
+        private String host;
+        private Boolean tlsVerify;
+        private String certPath;
+        private int maxConnections;
+        private Duration connectionTimeout;
+        private Duration responseTimeout;
+        private Path snapshotFile;
+        private boolean defaultSnapshot;
+        private DaemonExecutor executor;
+        private int statsStreams;
+        private int statsSamples;
+
+        private Builder() {
+            // The adaptive limits throttle the calls; the pool only needs room for all of them plus the streams
+            this.maxConnections = DaemonExecutor.Operation.values().length * DaemonExecutor.DEFAULT_MAX_CONCURRENCY + 16;
+            this.connectionTimeout = Duration.ofSeconds(30);
+            this.responseTimeout = Duration.ofSeconds(45);
+            this.defaultSnapshot = true;
+            this.statsSamples = StatsCollector.DEFAULT_SAMPLES;
         }
 
-        private void deadContainer(Event event) {
-            String id = event.getId();
-            DockerContainer dc = CONTAINERS.get(id);
-            dc.stopped();
+        /**
+         * Address of the daemon, e.g. unix:///var/run/docker.sock or tcp://host:2376. Defaults to DOCKER_HOST.
+         */
+        public Builder host(String host) {
+            this.host = host;
+            return this;
         }
 
-        private void destroyedContainer(Event event) {
-            String id = event.getId();
-            DockerContainer dc = CONTAINERS.remove(id);
-            dc.destroyed();
+        /**
+         * Whether to verify the daemon's TLS certificate and the directory with the client certificates.
+         */
+        public Builder tls(boolean verify, String certPath) {
+            this.tlsVerify = verify;
+            this.certPath = certPath;
+            return this;
         }
 
-        private void imageEvent(Event event) {
-            switch (event.getAction()) {
-                case "pull":
-                    pulledImage(event);
-                    break;
-                case "tag":
-                    taggedImage(event);
-                    break;
-                case "delete":
-                    deletedImage(event);
-                    break;
-                default:
-                    // Ignore Event
-            }
+        /**
+         * Maximum number of HTTP connections to the daemon.
+         */
+        public Builder poolSize(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
         }
 
+        public Builder connectionTimeout(Duration timeout) {
+            this.connectionTimeout = timeout;
+            return this;
+        }
 
-        private void deletedImage(Event event) {
-            String deletedId = event.getId();
-            DockerImage img = IMAGES.remove(deletedId);
-            for (ImageIdentifier tag : img.getTags()) {
-                TAGS.remove(tag);
-            }
-            img.deleted();
+        public Builder responseTimeout(Duration timeout) {
+            this.responseTimeout = timeout;
+            return this;
         }
 
-        private void pulledImage(Event event) {
-            String pulledTag = event.getId();
-            InspectImageResponse response = DockerManager.CLIENT.inspectImageCmd(pulledTag).exec();
-            String imageId = response.getId();
-            ImageIdentifier pulledIId = ImageIdentifier.parse(pulledTag);
-            ImageManager handler;
-            synchronized (REQ_TAGS) {
-                handler = REQ_TAGS.remove(pulledIId);
-            }
-            DockerImage image = new DockerImage(imageId, handler);
-            IMAGES.put(imageId, image);
-            image.addTag(pulledIId);
-            TAGS.put(pulledIId, image);
-            image.fetched();
+        /**
+         * File where the registry state is saved between runs; null to disable it. Defaults to a file per daemon
+         * under ~/.rolerunner, or the rolerunner.docker.snapshot system property. Only one engine at a time uses a
+         * file; the others run without snapshot.
+         */
+        public Builder snapshot(Path file) {
+            this.snapshotFile = file;
+            this.defaultSnapshot = false;
+            return this;
         }
 
-        private void taggedImage(Event event) {
-            String taggedId = event.getId();
-            String tag = event.getActor().getAttributes().get("name");
-            ImageIdentifier iId = ImageIdentifier.parse(tag);
-            DockerImage oldImage = TAGS.get(iId);
-            if (oldImage != null) {
-                oldImage.removeTag(iId);
-            }
-            DockerImage im = IMAGES.get(taggedId);
-            if (im == null) {
-                im = new DockerImage(taggedId);
-                IMAGES.put(taggedId, im);
-            }
+        public Builder daemonExecutor(DaemonExecutor executor) {
+            this.executor = executor;
+            return this;
+        }
 
-            im.addTag(iId);
-            TAGS.put(iId, im);
+        /**
+         * Follows the stats stream of up to maxStreams running managed containers, keeping their last samples (about
+         * one per second). The streams get connections of their own on top of the pool.
+         */
+        public Builder stats(int maxStreams, int samples) {
+            this.statsStreams = maxStreams;
+            this.statsSamples = samples;
+            return this;
         }
 
+        /**
+         * Builds the engine without connecting to the daemon; the connection is opened on first use.
+         */
+        public DockerManager build() {
+            return new DockerManager(this);
+        }
     }
-}
\ No newline at end of file
+}
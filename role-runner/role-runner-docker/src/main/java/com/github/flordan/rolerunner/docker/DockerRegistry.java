@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.container.ContainerManager;
+import com.github.flordan.rolerunner.container.ContainerRegistry;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Thread-safe registry of the images, tags, digests and containers known to a Docker engine.
+ */
+public class DockerRegistry {
+
+    private final Map<HexId, DockerImage> images;
+    private final Map<ImageIdentifier, DockerImage> tags;
+    private final Map<String, DockerImage> digests;
+    private final ContainerRegistry<HexId, DockerContainer> containers;
+    private final DockerManager engine;
+    private volatile RegistrySnapshot journal;
+
+    public DockerRegistry() {
+        this(null);
+    }
+
+    public DockerRegistry(DockerManager engine) {
+        this.engine = engine;
+        this.images = new ConcurrentHashMap<>();
+        this.tags = new ConcurrentHashMap<>();
+        this.digests = new ConcurrentHashMap<>();
+        this.containers = new ContainerRegistry<>();
+    }
+
+    public DockerManager getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the snapshot where every change to the registry is appended, null for none.
+     */
+    public void setJournal(RegistrySnapshot journal) {
+        this.journal = journal;
+    }
+
+    public Collection<DockerImage> getImages() {
+        return Collections.unmodifiableCollection(images.values());
+    }
+
+    /**
+     * Looks up an image by its id or, if the value is not an image id, by the reference it was tagged with.
+     */
+    public DockerImage getImage(String idOrReference) {
+        if (idOrReference == null) {
+            return null;
+        }
+        HexId key = HexId.tryParse(idOrReference);
+        if (key != null) {
+            return images.get(key);
+        }
+        ImageIdentifier iId = ImageIdentifier.tryParse(idOrReference);
+        return iId == null ? null : getImage(iId);
+    }
+
+    public DockerImage getImage(ImageIdentifier iId) {
+        DockerImage image = tags.get(iId);
+        if (image == null && iId.getDigest() != null) {
+            // Canonical name@digest, as the daemon reports its RepoDigests
+            image = digests.get(iId.toString());
+        }
+        return image;
+    }
+
+    public DockerImage getOrAddImage(String id, Function<String, DockerImage> factory) {
+        HexId key = HexId.parse(id);
+        DockerImage image = images.get(key);
+        if (image == null) {
+            image = addImage(factory.apply(id));
+        }
+        return image;
+    }
+
+    public DockerImage addImage(DockerImage image) {
+        DockerImage old = images.putIfAbsent(image.getKey(), image);
+        if (old != null) {
+            return old;
+        }
+        RegistrySnapshot journal = this.journal;
+        if (journal != null) {
+            journal.imageAdded(image);
+        }
+        return image;
+    }
+
+    public void setSize(DockerImage image, long size) {
+        if (image.getSize() != size) {
+            image.setSize(size);
+            RegistrySnapshot journal = this.journal;
+            if (journal != null) {
+                journal.imageAdded(image);
+            }
+        }
+    }
+
+    public DockerImage removeImage(String id) {
+        DockerImage image = images.remove(HexId.parse(id));
+        if (image != null) {
+            for (ImageIdentifier tag : image.getTags()) {
+                tags.remove(tag, image);
+            }
+            digests.values().removeIf(img -> img == image);
+            RegistrySnapshot journal = this.journal;
+            if (journal != null) {
+                journal.imageRemoved(image);
+            }
+        }
+        return image;
+    }
+
+    public Set<ImageIdentifier> getTags() {
+        return Collections.unmodifiableSet(tags.keySet());
+    }
+
+    public void tag(ImageIdentifier iId, DockerImage image) {
+        DockerImage old = tags.put(iId, image);
+        if (old != null && old != image) {
+            old.removeTag(iId);
+        }
+        image.addTag(iId);
+        RegistrySnapshot journal = this.journal;
+        if (journal != null && old != image) {
+            journal.tagged(iId, image);
+        }
+    }
+
+    public void untag(ImageIdentifier iId, DockerImage image) {
+        if (tags.remove(iId, image)) {
+            image.removeTag(iId);
+            RegistrySnapshot journal = this.journal;
+            if (journal != null) {
+                journal.untagged(iId);
+            }
+        }
+    }
+
+    public void addDigests(DockerImage image, Collection<String> repoDigests) {
+        if (repoDigests != null) {
+            RegistrySnapshot journal = this.journal;
+            for (String digest : repoDigests) {
+                if (digests.put(digest, image) != image && journal != null) {
+                    journal.digestAdded(digest, image);
+                }
+            }
+        }
+    }
+
+    public Map<String, DockerImage> getDigests() {
+        return Collections.unmodifiableMap(digests);
+    }
+
+    public int getContainerCount() {
+        return containers.size();
+    }
+
+    public DockerContainer getContainer(String id) {
+        HexId key = HexId.tryParse(id);
+        return key == null ? null : containers.get(key);
+    }
+
+    public Iterable<DockerContainer> getContainers() {
+        return containers.getAll();
+    }
+
+    public Set<DockerContainer> getContainers(DockerImage image) {
+        return containers.getByImage(image);
+    }
+
+    public Set<DockerContainer> getContainers(Container.Status status) {
+        return containers.getByStatus(status);
+    }
+
+    public Set<DockerContainer> getContainers(ContainerManager monitor) {
+        return containers.getByMonitor(monitor);
+    }
+
+    public boolean addContainer(DockerContainer cntr) {
+        boolean added = containers.register(cntr.getKey(), cntr);
+        RegistrySnapshot journal = this.journal;
+        if (added && journal != null) {
+            journal.containerAdded(cntr);
+        }
+        return added;
+    }
+
+    /**
+     * Records in the snapshot that the container has started or stopped.
+     */
+    public void changedContainer(DockerContainer cntr) {
+        RegistrySnapshot journal = this.journal;
+        if (journal != null) {
+            journal.containerChanged(cntr);
+        }
+    }
+
+    public DockerContainer removeContainer(String id) {
+        HexId key = HexId.tryParse(id);
+        DockerContainer cntr = key == null ? null : containers.unregister(key);
+        RegistrySnapshot journal = this.journal;
+        if (cntr != null && journal != null) {
+            journal.containerRemoved(cntr);
+        }
+        return cntr;
+    }
+}
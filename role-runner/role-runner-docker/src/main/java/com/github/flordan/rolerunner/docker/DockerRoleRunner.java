@@ -21,24 +21,74 @@ import com.github.flordan.rolerunner.container.ContainerManager;
 import com.github.flordan.rolerunner.exception.ImageNotFoundException;
 import com.github.flordan.rolerunner.image.ImageIdentifier;
 import com.github.flordan.rolerunner.image.ImageManager;
+import com.github.flordan.rolerunner.scheduling.CoreAllocator;
+import com.github.flordan.rolerunner.scheduling.Resources;
 
+import java.time.Duration;
 import java.util.Set;
 
 public class DockerRoleRunner extends RoleRunnerImpl {
 
+    private final DockerManager engine;
+
+    /**
+     * Runs the roles on the daemon set up in the environment (DOCKER_HOST and related variables).
+     */
+    public DockerRoleRunner() {
+        this(DockerManager.builder().build());
+    }
+
+    public DockerRoleRunner(DockerManager engine) {
+        this.engine = engine;
+    }
+
+    public DockerManager getEngine() {
+        return engine;
+    }
+
     @Override
     public Set<ImageIdentifier> getAvailableImages() {
-        return DockerManager.getAvailableImages();
+        return engine.getAvailableImages();
     }
 
     @Override
     public DockerImage getImage(ImageIdentifier iId) {
-        return DockerManager.getImage(iId);
+        return engine.getImage(iId);
     }
 
     @Override
-    public void requestImage(ImageIdentifier iId, ImageManager handler) {
-        DockerManager.requestImage(iId, handler);
+    public Resources getCapacity() {
+        return engine.getCapacity();
+    }
+
+    /**
+     * The cores of this host when the daemon is local. For a remote daemon, its number of CPUs taken as a single node,
+     * since its NUMA topology is not exposed.
+     */
+    @Override
+    protected CoreAllocator defaultCoreAllocator() {
+        if (engine.isLocal()) {
+            return CoreAllocator.fromSystem();
+        }
+        Resources capacity = engine.getCapacity();
+        return capacity == null ? null : CoreAllocator.ofCores((int) capacity.getCpus());
+    }
+
+    /**
+     * Closes the engine the runner was built around.
+     */
+    @Override
+    protected void closeEngine() {
+        engine.close();
+    }
+
+    @Override
+    protected int pruneContainers(Duration timeout) {
+        return engine.pruneContainers(timeout);
     }
 
+    @Override
+    public void requestImage(ImageIdentifier iId, ImageManager handler) {
+        engine.requestImage(iId, handler);
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import com.github.flordan.rolerunner.RoleRunner;
+import com.github.flordan.rolerunner.RoleRunnerProvider;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Properties;
+
+/**
+ * Provides the "docker" engine. The properties docker.host, docker.tls.verify, docker.cert.path, docker.pool.size,
+ * docker.connection.timeout and docker.response.timeout (ISO-8601 durations) and docker.snapshot ("none" to disable)
+ * override the defaults of DockerManager.Builder.
+ */
+public class DockerRoleRunnerProvider implements RoleRunnerProvider {
+
+    @Override
+    public String getName() {
+        return "docker";
+    }
+
+    @Override
+    public RoleRunner create(Properties properties) {
+        DockerManager.Builder builder = DockerManager.builder();
+        String host = properties.getProperty("docker.host");
+        if (host != null) {
+            builder.host(host);
+        }
+        String tlsVerify = properties.getProperty("docker.tls.verify");
+        if (tlsVerify != null) {
+            builder.tls(Boolean.parseBoolean(tlsVerify), properties.getProperty("docker.cert.path"));
+        }
+        String poolSize = properties.getProperty("docker.pool.size");
+        if (poolSize != null) {
+            builder.poolSize(Integer.parseInt(poolSize));
+        }
+        String connectionTimeout = properties.getProperty("docker.connection.timeout");
+        if (connectionTimeout != null) {
+            builder.connectionTimeout(Duration.parse(connectionTimeout));
+        }
+        String responseTimeout = properties.getProperty("docker.response.timeout");
+        if (responseTimeout != null) {
+            builder.responseTimeout(Duration.parse(responseTimeout));
+        }
+        String snapshot = properties.getProperty("docker.snapshot");
+        if (snapshot != null) {
+            builder.snapshot("none".equals(snapshot) ? null : Paths.get(snapshot));
+        }
+        return new DockerRoleRunner(builder.build());
+    }
+}
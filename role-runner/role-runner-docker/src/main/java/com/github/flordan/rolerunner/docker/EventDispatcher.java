@@ -0,0 +1,220 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import com.github.dockerjava.api.model.Event;
+import com.github.dockerjava.api.model.EventType;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Hands the daemon events over to a bounded set of worker lanes. Events are striped by the id of the entity they
+ * refer to, so all the events of a container or image are processed in order by the same lane while events of
+ * different entities progress in parallel. Image events name the image by tag or by id depending on the action, so
+ * they all share one lane instead.
+ */
+public class EventDispatcher {
+
+    /**
+     * Key of the lane handling every image event.
+     */
+    public static final String IMAGE_KEY = "images";
+
+    private final Lane[] lanes;
+    private final Consumer<Event> handler;
+    private final AtomicLong dispatched;
+    private final AtomicLong processed;
+    private final AtomicLong failed;
+
+    public EventDispatcher(String name, int laneCount, Consumer<Event> handler) {
+        this.handler = handler;
+        this.dispatched = new AtomicLong();
+        this.processed = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.lanes = new Lane[Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(name + "-" + i);
+            lanes[i].start();
+        }
+    }
+
+    public void dispatch(Event event) {
+        String key = event.getType() == EventType.IMAGE ? IMAGE_KEY : event.getId();
+        enqueue(key, new Envelope(event, null, System.nanoTime()));
+    }
+
+    /**
+     * Runs a task on the lane of the given entity, ordered with the events of that entity.
+     */
+    public void execute(String key, Runnable task) {
+        enqueue(key, new Envelope(null, task, System.nanoTime()));
+    }
+
+    private void enqueue(String key, Envelope env) {
+        int stripe = key == null ? 0 : Math.floorMod(key.hashCode(), lanes.length);
+        dispatched.incrementAndGet();
+        lanes[stripe].queue.add(env);
+    }
+
+    /**
+     * Stops the lanes; the events still queued are dropped.
+     */
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.interrupt();
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queue.size();
+        }
+        return depth;
+    }
+
+    public int getQueueDepth(int lane) {
+        return lanes[lane].queue.size();
+    }
+
+    public long getDispatchedEvents() {
+        return dispatched.get();
+    }
+
+    public long getProcessedEvents() {
+        return processed.get();
+    }
+
+    public long getFailedEvents() {
+        return failed.get();
+    }
+
+    /**
+     * Time the last processed event waited in its lane.
+     */
+    public long getLastQueueLagNanos() {
+        long last = 0;
+        long lastAt = Long.MIN_VALUE;
+        for (Lane lane : lanes) {
+            if (lane.lastProcessedAt > lastAt) {
+                lastAt = lane.lastProcessedAt;
+                last = lane.lastQueueLag;
+            }
+        }
+        return last;
+    }
+
+    public long getMaxQueueLagNanos() {
+        long max = 0;
+        for (Lane lane : lanes) {
+            max = Math.max(max, lane.maxQueueLag);
+        }
+        return max;
+    }
+
+    /**
+     * Time elapsed between the daemon emitting the last processed event and the end of its processing.
+     */
+    public long getLastEventLagMillis() {
+        long last = 0;
+        long lastAt = Long.MIN_VALUE;
+        for (Lane lane : lanes) {
+            if (lane.lastProcessedAt > lastAt) {
+                lastAt = lane.lastProcessedAt;
+                last = lane.lastEventLag;
+            }
+        }
+        return last;
+    }
+
+    public void resetMaxQueueLag() {
+        for (Lane lane : lanes) {
+            lane.maxQueueLag = 0;
+        }
+    }
+
+
+    private static class Envelope {
+        private final Event event;
+        private final Runnable task;
+        private final long enqueuedAt;
+
+        public Envelope(Event event, Runnable task, long enqueuedAt) {
+            this.event = event;
+            this.task = task;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+
+    private class Lane extends Thread {
+        private final BlockingQueue<Envelope> queue;
+        private volatile long lastProcessedAt = Long.MIN_VALUE;
+        private volatile long lastQueueLag;
+        private volatile long maxQueueLag;
+        private volatile long lastEventLag;
+
+        public Lane(String name) {
+            super(name);
+            this.setDaemon(true);
+            this.queue = new LinkedBlockingQueue<>();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Envelope env;
+                try {
+                    env = queue.take();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                long dequeuedAt = System.nanoTime();
+                long queueLag = dequeuedAt - env.enqueuedAt;
+                lastQueueLag = queueLag;
+                if (queueLag > maxQueueLag) {
+                    maxQueueLag = queueLag;
+                }
+                try {
+                    if (env.task != null) {
+                        env.task.run();
+                    } else {
+                        handler.accept(env.event);
+                    }
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    e.printStackTrace(System.out);
+                }
+                if (env.event != null) {
+                    Long timeNano = env.event.getTimeNano();
+                    if (timeNano != null) {
+                        lastEventLag = System.currentTimeMillis() - timeNano / 1_000_000L;
+                    }
+                }
+                lastProcessedAt = System.nanoTime();
+                processed.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact form of the 64-hex identifiers used by the Docker engine for images and containers. The 256-bit value is
+ * kept in four longs, ignoring any "sha256:" prefix, so it can be used as a cheap hash key.
+ */
+public final class HexId {
+    private static final String PREFIX = "sha256:";
+    private static final int LENGTH = 64;
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+
+    private HexId(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    public static HexId parse(String id) {
+        HexId hexId = tryParse(id);
+        if (hexId == null) {
+            throw new IllegalArgumentException("Not a 64-hex identifier: " + id);
+        }
+        return hexId;
+    }
+
+    /**
+     * Returns null if the id is not a full 64-hex identifier (e.g. an image reference or a short id).
+     */
+    public static HexId tryParse(String id) {
+        if (id == null) {
+            return null;
+        }
+        int offset = id.startsWith(PREFIX) ? PREFIX.length() : 0;
+        if (id.length() - offset != LENGTH) {
+            return null;
+        }
+        long w0 = 0;
+        long w1 = 0;
+        long w2 = 0;
+        long w3 = 0;
+        for (int i = 0; i < 16; i++) {
+            int d0 = Character.digit(id.charAt(offset + i), 16);
+            int d1 = Character.digit(id.charAt(offset + 16 + i), 16);
+            int d2 = Character.digit(id.charAt(offset + 32 + i), 16);
+            int d3 = Character.digit(id.charAt(offset + 48 + i), 16);
+            if ((d0 | d1 | d2 | d3) < 0) {
+                return null;
+            }
+            w0 = (w0 << 4) | d0;
+            w1 = (w1 << 4) | d1;
+            w2 = (w2 << 4) | d2;
+            w3 = (w3 << 4) | d3;
+        }
+        return new HexId(w0, w1, w2, w3);
+    }
+
+    public static HexId read(ByteBuffer buffer) {
+        return new HexId(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    public void write(ByteBuffer buffer) {
+        buffer.putLong(w0).putLong(w1).putLong(w2).putLong(w3);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HexId)) {
+            return false;
+        }
+        HexId other = (HexId) o;
+        return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        // Ids are already uniformly distributed, the first word is enough
+        return (int) (w0 ^ (w0 >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        char[] hex = new char[LENGTH];
+        write(hex, 0, w0);
+        write(hex, 16, w1);
+        write(hex, 32, w2);
+        write(hex, 48, w3);
+        return new String(hex);
+    }
+
+    private static void write(char[] hex, int offset, long word) {
+        for (int i = 15; i >= 0; i--) {
+            hex[offset + i] = DIGITS[(int) (word & 0xF)];
+            word >>>= 4;
+        }
+    }
+}
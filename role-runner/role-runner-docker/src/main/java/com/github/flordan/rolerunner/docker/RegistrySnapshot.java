@@ -0,0 +1,451 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import com.github.flordan.rolerunner.container.Container.Status;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only binary journal of the changes to a DockerRegistry. Each record is written when the registry changes;
+ * once the journal holds several times more records than the registry has entries, it is compacted into a new file
+ * holding only the current state. On startup, the file is memory-mapped and replayed to rebuild the registry without
+ * asking the daemon.
+ * <p>
+ * Records are prefixed with their length, so a record partially written when the process died is ignored and cut off
+ * before appending new ones. Replaying
+ * a record twice has no further effect, so the records appended while compacting can safely end up in both files.
+ * <p>
+ * A snapshot is only used by one engine at a time: loading it takes an exclusive lock on a .lock file next to it,
+ * which survives compactions, and fails if another engine or process holds it.
+ */
+public class RegistrySnapshot {
+
+    private static final int MAGIC = 0x52525347;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RECORD_SIZE = 4 * 1024;
+    private static final int MIN_COMPACTION_RECORDS = 4_096;
+    private static final String IMAGE_PREFIX = "sha256:";
+
+    private static final byte IMAGE = 1;
+    private static final byte IMAGE_REMOVED = 2;
+    private static final byte TAG = 3;
+    private static final byte UNTAG = 4;
+    private static final byte DIGEST = 5;
+    private static final byte CONTAINER = 6;
+    private static final byte CONTAINER_STATE = 7;
+    private static final byte CONTAINER_REMOVED = 8;
+
+    private static final byte CREATED = 0;
+    private static final byte RUNNING = 1;
+    private static final byte STOPPED = 2;
+
+    private final Path file;
+    private final String host;
+    private final ByteBuffer buffer;
+    private FileChannel channel;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private int recordStart;
+    // End of the last complete record replayed
+    private long replayedEnd;
+    private long records;
+    private long compactedRecords;
+
+    public RegistrySnapshot(Path file, String host) {
+        this.file = file;
+        this.host = host;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Replays the snapshot into the registry and keeps appending to it. Returns the ids of the images and containers
+     * restored, or null if there was no valid snapshot for the host; a new one is started then.
+     *
+     * @throws IOException if the snapshot is locked by another engine or cannot be read
+     */
+    public synchronized Set<HexId> load(DockerRegistry registry) throws IOException {
+        lock();
+        Set<HexId> restored = null;
+        if (Files.isRegularFile(file)) {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                restored = replay(mapped, registry);
+            } catch (RuntimeException re) {
+                System.out.println("Ignoring corrupted registry snapshot " + file + ": " + re.getMessage());
+                restored = null;
+            }
+        }
+        if (restored == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+            writeHeader();
+            records = 0;
+        } else {
+            channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            // Drop a torn tail record so new records do not follow its garbage
+            channel.truncate(replayedEnd);
+        }
+        compactedRecords = records;
+        return restored;
+    }
+
+    private void lock() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException ofle) {
+            // Held by another engine of this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            lockChannel = null;
+            throw new IOException("Registry snapshot " + file + " in use by another engine");
+        }
+    }
+
+    private Set<HexId> replay(ByteBuffer in, DockerRegistry registry) {
+        if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION || !host.equals(readString(in))) {
+            return null;
+        }
+        Map<HexId, Long> images = new HashMap<>();
+        Map<String, HexId> tags = new HashMap<>();
+        Map<String, HexId> digests = new HashMap<>();
+        Map<HexId, RestoredContainer> containers = new HashMap<>();
+        long count = 0;
+        while (in.remaining() >= 4) {
+            int start = in.position();
+            int length = in.getInt();
+            if (length <= 0 || in.remaining() < length) {
+                // Record cut short by a crash while writing it
+                in.position(start);
+                break;
+            }
+            int end = in.position() + length;
+            byte type = in.get();
+            HexId id;
+            switch (type) {
+                case IMAGE:
+                    id = HexId.read(in);
+                    images.put(id, in.getLong());
+                    break;
+                case IMAGE_REMOVED:
+                    id = HexId.read(in);
+                    images.remove(id);
+                    tags.values().removeIf(id::equals);
+                    digests.values().removeIf(id::equals);
+                    break;
+                case TAG:
+                    id = HexId.read(in);
+                    tags.put(readString(in), id);
+                    break;
+                case UNTAG:
+                    tags.remove(readString(in));
+                    break;
+                case DIGEST:
+                    id = HexId.read(in);
+                    digests.put(readString(in), id);
+                    break;
+                case CONTAINER:
+                    id = HexId.read(in);
+                    HexId image = HexId.read(in);
+                    boolean managed = in.get() != 0;
+                    byte state = in.get();
+                    containers.put(id, new RestoredContainer(image, readString(in), managed, state));
+                    break;
+                case CONTAINER_STATE:
+                    id = HexId.read(in);
+                    RestoredContainer rc = containers.get(id);
+                    byte newState = in.get();
+                    if (rc != null) {
+                        rc.state = newState;
+                    }
+                    break;
+                case CONTAINER_REMOVED:
+                    containers.remove(HexId.read(in));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown record type " + type);
+            }
+            in.position(end);
+            count++;
+        }
+        records = count;
+        replayedEnd = in.position();
+
+        Set<HexId> restored = new HashSet<>();
+        for (Map.Entry<HexId, Long> e : images.entrySet()) {
+            DockerImage di = registry.addImage(new DockerImage(registry.getEngine(), IMAGE_PREFIX + e.getKey()));
+            di.setSize(e.getValue());
+            restored.add(e.getKey());
+        }
+        for (Map.Entry<String, HexId> e : tags.entrySet()) {
+            DockerImage di = registry.getImage(IMAGE_PREFIX + e.getValue());
+            ImageIdentifier iId = ImageIdentifier.tryParse(e.getKey());
+            if (di != null && iId != null) {
+                registry.tag(iId, di);
+            }
+        }
+        for (Map.Entry<String, HexId> e : digests.entrySet()) {
+            DockerImage di = registry.getImage(IMAGE_PREFIX + e.getValue());
+            if (di != null) {
+                registry.addDigests(di, Set.of(e.getKey()));
+            }
+        }
+        for (Map.Entry<HexId, RestoredContainer> e : containers.entrySet()) {
+            RestoredContainer rc = e.getValue();
+            DockerImage di = registry.getImage(IMAGE_PREFIX + rc.image);
+            if (di == null) {
+                continue;
+            }
+            DockerContainer dc = new DockerContainer(e.getKey().toString(), rc.name, di);
+            dc.setManaged(rc.managed);
+            if (rc.state == RUNNING) {
+                dc.started();
+            } else if (rc.state == STOPPED) {
+                dc.stopped();
+            }
+            registry.addContainer(dc);
+            di.addContainer(dc);
+            restored.add(e.getKey());
+        }
+        return restored;
+    }
+
+    public synchronized void imageAdded(DockerImage image) {
+        begin(IMAGE);
+        image.getKey().write(buffer);
+        buffer.putLong(image.getSize());
+        end();
+    }
+
+    public synchronized void imageRemoved(DockerImage image) {
+        begin(IMAGE_REMOVED);
+        image.getKey().write(buffer);
+        end();
+    }
+
+    public synchronized void tagged(ImageIdentifier iId, DockerImage image) {
+        begin(TAG);
+        image.getKey().write(buffer);
+        writeString(iId.toString());
+        end();
+    }
+
+    public synchronized void untagged(ImageIdentifier iId) {
+        begin(UNTAG);
+        writeString(iId.toString());
+        end();
+    }
+
+    public synchronized void digestAdded(String digest, DockerImage image) {
+        begin(DIGEST);
+        image.getKey().write(buffer);
+        writeString(digest);
+        end();
+    }
+
+    public synchronized void containerAdded(DockerContainer cntr) {
+        begin(CONTAINER);
+        cntr.getKey().write(buffer);
+        ((DockerImage) cntr.getImage()).getKey().write(buffer);
+        buffer.put((byte) (cntr.isManaged() ? 1 : 0));
+        buffer.put(state(cntr.getStatus()));
+        writeString(cntr.getName() == null ? "" : cntr.getName());
+        end();
+    }
+
+    public synchronized void containerChanged(DockerContainer cntr) {
+        begin(CONTAINER_STATE);
+        cntr.getKey().write(buffer);
+        buffer.put(state(cntr.getStatus()));
+        end();
+    }
+
+    public synchronized void containerRemoved(DockerContainer cntr) {
+        begin(CONTAINER_REMOVED);
+        cntr.getKey().write(buffer);
+        end();
+    }
+
+    /**
+     * Whether the journal has grown enough for a compaction to pay off.
+     */
+    public synchronized boolean needsCompaction(DockerRegistry registry) {
+        long live = registry.getImages().size() * 2L + registry.getTags().size() + registry.getContainerCount();
+        return records - compactedRecords > Math.max(MIN_COMPACTION_RECORDS, 4 * live);
+    }
+
+    /**
+     * Rewrites the snapshot with the current content of the registry and swaps it for the journal.
+     */
+    public synchronized void compact(DockerRegistry registry) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        flush();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileChannel old = channel;
+        channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        records = 0;
+        writeHeader();
+        for (DockerImage image : registry.getImages()) {
+            imageAdded(image);
+            for (ImageIdentifier iId : image.getTags()) {
+                tagged(iId, image);
+            }
+        }
+        for (Map.Entry<String, DockerImage> e : registry.getDigests().entrySet()) {
+            digestAdded(e.getKey(), e.getValue());
+        }
+        for (DockerContainer cntr : registry.getContainers()) {
+            containerAdded(cntr);
+        }
+        flush();
+        channel.force(false);
+        channel.close();
+        old.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        compactedRecords = records;
+    }
+
+    public synchronized void flush() throws IOException {
+        if (channel == null) {
+            // Not loaded or closed; nothing to append to
+            buffer.clear();
+            return;
+        }
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            if (channel != null) {
+                flush();
+                channel.close();
+                channel = null;
+            }
+        } finally {
+            if (lockChannel != null) {
+                // Closing the channel releases the lock
+                lockChannel.close();
+                lockChannel = null;
+                lock = null;
+            }
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        buffer.putInt(MAGIC).putInt(VERSION);
+        writeString(host);
+        flush();
+    }
+
+    private void begin(byte type) {
+        if (buffer.remaining() < MAX_RECORD_SIZE) {
+            try {
+                flush();
+            } catch (IOException ioe) {
+                System.out.println("Could not write registry snapshot: " + ioe.getMessage());
+                buffer.clear();
+            }
+        }
+        recordStart = buffer.position();
+        buffer.putInt(0);
+        buffer.put(type);
+    }
+
+    private void end() {
+        buffer.putInt(recordStart, buffer.position() - recordStart - 4);
+        records++;
+    }
+
+    private void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = Short.toUnsignedInt(in.getShort());
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte state(Status status) {
+        switch (status) {
+            case STARTING:
+            case RUNNING:
+            case READY:
+                return RUNNING;
+            case STOPPING:
+            case STOPPED:
+            case DESTROYING:
+            case DESTROYED:
+                return STOPPED;
+            default:
+                return CREATED;
+        }
+    }
+
+    private static class RestoredContainer {
+        private final HexId image;
+        private final String name;
+        private final boolean managed;
+        private byte state;
+
+        public RestoredContainer(HexId image, String name, boolean managed, byte state) {
+            this.image = image;
+            this.name = name;
+            this.managed = managed;
+            this.state = state;
+        }
+    }
+}
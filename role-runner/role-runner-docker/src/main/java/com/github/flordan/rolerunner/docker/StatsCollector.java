@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.model.BlkioStatEntry;
+import com.github.dockerjava.api.model.BlkioStatsConfig;
+import com.github.dockerjava.api.model.CpuStatsConfig;
+import com.github.dockerjava.api.model.MemoryStatsConfig;
+import com.github.dockerjava.api.model.StatisticNetworksConfig;
+import com.github.dockerjava.api.model.Statistics;
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.docker.ContainerStats.Aggregate;
+import com.github.flordan.rolerunner.docker.ContainerStats.Metric;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Follows the daemon's stats stream of the managed containers while they run. Each stream holds an HTTP connection of
+ * its own, so the number of streams open at once is bounded; containers started beyond the bound are not sampled.
+ */
+public class StatsCollector {
+
+    public static final int DEFAULT_SAMPLES = 120;
+
+    private final int maxStreams;
+    private final int samples;
+    private final Map<String, ContainerStats> stats;
+    private final Map<String, StatsStream> streams;
+    private final AtomicInteger open;
+
+    public StatsCollector(int maxStreams, int samples) {
+        this.maxStreams = maxStreams;
+        this.samples = samples;
+        this.stats = new ConcurrentHashMap<>();
+        this.streams = new ConcurrentHashMap<>();
+        this.open = new AtomicInteger();
+    }
+
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    public int getOpenStreams() {
+        return open.get();
+    }
+
+    /**
+     * Opens the stats stream of a running container; its samples are kept until the container is destroyed.
+     */
+    void track(DockerClient client, DockerContainer cntr) {
+        String id = cntr.getId();
+        if (streams.containsKey(id)) {
+            return;
+        }
+        if (open.incrementAndGet() > maxStreams) {
+            open.decrementAndGet();
+            return;
+        }
+        ContainerStats cs = stats.computeIfAbsent(id, k -> new ContainerStats(samples));
+        StatsStream stream = new StatsStream(id, cs);
+        if (streams.putIfAbsent(id, stream) != null) {
+            open.decrementAndGet();
+            return;
+        }
+        try {
+            client.statsCmd(id).exec(stream);
+        } catch (Exception e) {
+            System.out.println("Could not follow the stats of container " + id + ": " + e.getMessage());
+            closeStream(id);
+        }
+    }
+
+    /**
+     * Closes the stream of a stopped container, keeping its samples.
+     */
+    void untrack(String id) {
+        closeStream(id);
+    }
+
+    /**
+     * Closes the stream of a destroyed container and drops its samples.
+     */
+    void remove(String id) {
+        closeStream(id);
+        stats.remove(id);
+    }
+
+    void close() {
+        for (String id : streams.keySet()) {
+            closeStream(id);
+        }
+    }
+
+    private void closeStream(String id) {
+        StatsStream stream = streams.remove(id);
+        if (stream != null) {
+            open.decrementAndGet();
+            try {
+                stream.close();
+            } catch (IOException ioe) {
+                // Stream already closed by the daemon
+            }
+        }
+    }
+
+    /**
+     * Samples of a container, null if it was never sampled.
+     */
+    public ContainerStats getStats(Container cntr) {
+        if (!(cntr instanceof DockerContainer)) {
+            return null;
+        }
+        return stats.get(((DockerContainer) cntr).getId());
+    }
+
+    /**
+     * Aggregates a metric over the window for a container; null if it was never sampled.
+     */
+    public Aggregate aggregate(Container cntr, Metric metric, Duration window) {
+        ContainerStats cs = getStats(cntr);
+        return cs == null ? null : cs.aggregate(metric, window);
+    }
+
+    /**
+     * Aggregates a metric over the window for all the sampled containers of an image: the rate is the sum of their
+     * rates, the p95 and max are taken over the samples of all of them.
+     */
+    public Aggregate aggregate(DockerImage image, Metric metric, Duration window) {
+        double rate = 0;
+        long[] values = new long[samples];
+        int count = 0;
+        for (Container cntr : image.getContainers()) {
+            ContainerStats cs = getStats(cntr);
+            if (cs == null) {
+                continue;
+            }
+            if (values.length - count < samples) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            count += cs.collect(metric, window, values, count);
+            rate += cs.rate(metric, window);
+        }
+        return new Aggregate(rate, values, count);
+    }
+
+
+    private class StatsStream extends ResultCallback.Adapter<Statistics> {
+
+        private final String id;
+        private final ContainerStats cs;
+
+        StatsStream(String id, ContainerStats cs) {
+            this.id = id;
+            this.cs = cs;
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            ended();
+        }
+
+        @Override
+        public void onComplete() {
+            ended();
+        }
+
+        // The daemon ends the stream when the container stops; the samples are kept
+        private void ended() {
+            if (streams.remove(id, this)) {
+                open.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void onNext(Statistics s) {
+            long cpu = 0;
+            CpuStatsConfig cpuStats = s.getCpuStats();
+            if (cpuStats != null && cpuStats.getCpuUsage() != null && cpuStats.getCpuUsage().getTotalUsage() != null) {
+                cpu = cpuStats.getCpuUsage().getTotalUsage();
+            }
+            long memory = 0;
+            MemoryStatsConfig memoryStats = s.getMemoryStats();
+            if (memoryStats != null && memoryStats.getUsage() != null) {
+                memory = memoryStats.getUsage();
+            }
+            long rx = 0;
+            long tx = 0;
+            Map<String, StatisticNetworksConfig> networks = s.getNetworks();
+            if (networks != null) {
+                for (StatisticNetworksConfig net : networks.values()) {
+                    rx += net.getRxBytes() == null ? 0 : net.getRxBytes();
+                    tx += net.getTxBytes() == null ? 0 : net.getTxBytes();
+                }
+            }
+            long read = 0;
+            long write = 0;
+            BlkioStatsConfig blkio = s.getBlkioStats();
+            if (blkio != null && blkio.getIoServiceBytesRecursive() != null) {
+                for (BlkioStatEntry entry : blkio.getIoServiceBytesRecursive()) {
+                    // cgroup v1 reports "Read"/"Write", v2 "read"/"write"
+                    if (entry.getValue() == null) {
+                        continue;
+                    }
+                    if ("read".equalsIgnoreCase(entry.getOp())) {
+                        read += entry.getValue();
+                    } else if ("write".equalsIgnoreCase(entry.getOp())) {
+                        write += entry.getValue();
+                    }
+                }
+            }
+            // The daemon's read time is a string; the time of arrival avoids parsing it on every sample
+            cs.record(System.nanoTime(), cpu, memory, rx, tx, read, write);
+        }
+    }
+}
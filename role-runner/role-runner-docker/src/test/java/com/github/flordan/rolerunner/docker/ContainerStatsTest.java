@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import com.github.flordan.rolerunner.docker.ContainerStats.Aggregate;
+import com.github.flordan.rolerunner.docker.ContainerStats.Metric;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+public class ContainerStatsTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void keepsTheLastSamples() {
+        ContainerStats cs = new ContainerStats(4);
+        for (int i = 0; i < 10; i++) {
+            cs.record(i * SECOND, i * SECOND, 100 + i, 0, 0, 0, 0);
+        }
+        assertEquals(4, cs.getSamples());
+        Aggregate memory = cs.aggregate(Metric.MEMORY, Duration.ofMinutes(1));
+        assertEquals(4, memory.getSamples());
+        assertEquals(109, memory.getMax());
+        assertEquals(1.0, memory.getRate(), 1e-9);
+    }
+
+    @Test
+    public void countersAggregateTheirRates() {
+        ContainerStats cs = new ContainerStats(60);
+        long cpu = 0;
+        for (int i = 0; i < 40; i++) {
+            // Half a core, with a full core on the last second
+            cpu += i == 39 ? SECOND : SECOND / 2;
+            cs.record(i * SECOND, cpu, 0, 1000L * i, 0, 0, 0);
+        }
+        Aggregate all = cs.aggregate(Metric.CPU, Duration.ofMinutes(1));
+        assertEquals(39, all.getSamples());
+        assertEquals(SECOND / 2, all.getP95());
+        assertEquals(SECOND, all.getMax());
+
+        Aggregate recent = cs.aggregate(Metric.CPU, Duration.ofSeconds(2));
+        assertEquals(2, recent.getSamples());
+        assertEquals(0.75 * SECOND, recent.getRate(), 1);
+        assertEquals(1000.0, cs.aggregate(Metric.NET_RX, Duration.ofMinutes(1)).getRate(), 1e-9);
+    }
+
+    @Test
+    public void skipsCounterResets() {
+        ContainerStats cs = new ContainerStats(8);
+        cs.record(0, 0, 0, 0, 0, 0, 0);
+        cs.record(SECOND, 0, 0, 0, 0, 0, 500);
+        // Restarted container
+        cs.record(2 * SECOND, 0, 0, 0, 0, 0, 0);
+        cs.record(3 * SECOND, 0, 0, 0, 0, 0, 500);
+        Aggregate write = cs.aggregate(Metric.BLOCK_WRITE, Duration.ofMinutes(1));
+        assertEquals(2, write.getSamples());
+        assertEquals(500, write.getMax());
+        assertEquals(1000.0 / 3, write.getRate(), 1e-9);
+    }
+}
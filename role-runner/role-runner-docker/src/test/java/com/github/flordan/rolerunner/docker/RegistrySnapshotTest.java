@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.docker;
+
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RegistrySnapshotTest {
+
+    private static final String HOST = "unix:///var/run/docker.sock";
+    private static final String WEB_ID = "sha256:" + "ab".repeat(32);
+    private static final String DB_ID = "sha256:" + "cd".repeat(32);
+    private static final String CNTR_ID = "0123456789abcdef".repeat(4);
+    private static final ImageIdentifier WEB = ImageIdentifier.parse("team/web:1.0");
+    private static final ImageIdentifier DB = ImageIdentifier.parse("team/db:1.0");
+
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("registry", ".snapshot");
+        Files.delete(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".tmp"));
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".lock"));
+    }
+
+    @Test
+    public void replaysChanges() throws Exception {
+        RegistrySnapshot snapshot = new RegistrySnapshot(file, HOST);
+        DockerRegistry registry = new DockerRegistry();
+        assertNull(snapshot.load(registry));
+        registry.setJournal(snapshot);
+        populate(registry);
+        snapshot.close();
+
+        DockerRegistry restored = new DockerRegistry();
+        RegistrySnapshot reopened = new RegistrySnapshot(file, HOST);
+        Set<HexId> ids = reopened.load(restored);
+        assertEquals(2, ids.size());
+        assertRestored(restored);
+        reopened.close();
+    }
+
+    @Test
+    public void lockedSnapshotsAreNotShared() throws Exception {
+        RegistrySnapshot snapshot = new RegistrySnapshot(file, HOST);
+        DockerRegistry registry = new DockerRegistry();
+        snapshot.load(registry);
+        registry.setJournal(snapshot);
+        populate(registry);
+        try {
+            new RegistrySnapshot(file, "tcp://other:2375").load(new DockerRegistry());
+            fail("Loaded a snapshot locked by another engine");
+        } catch (IOException ioe) {
+            // Expected
+        }
+        snapshot.close();
+
+        RegistrySnapshot reopened = new RegistrySnapshot(file, HOST);
+        DockerRegistry restored = new DockerRegistry();
+        assertNotNull(reopened.load(restored));
+        assertRestored(restored);
+        reopened.close();
+    }
+
+    @Test
+    public void compactsAndIgnoresTruncatedRecords() throws Exception {
+        RegistrySnapshot snapshot = new RegistrySnapshot(file, HOST);
+        DockerRegistry registry = new DockerRegistry();
+        snapshot.load(registry);
+        registry.setJournal(snapshot);
+        populate(registry);
+        snapshot.compact(registry);
+        // A tag being appended when the process died
+        registry.tag(ImageIdentifier.parse("team/web:2.0"), registry.getImage(WEB));
+        snapshot.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        DockerRegistry restored = new DockerRegistry();
+        RegistrySnapshot reopened = new RegistrySnapshot(file, HOST);
+        assertNotNull(reopened.load(restored));
+        assertRestored(restored);
+        assertNull(restored.getImage(ImageIdentifier.parse("team/web:2.0")));
+
+        // Records appended after the torn one are replayed on the next start
+        restored.setJournal(reopened);
+        restored.tag(ImageIdentifier.parse("team/web:3.0"), restored.getImage(WEB));
+        reopened.close();
+        DockerRegistry again = new DockerRegistry();
+        RegistrySnapshot last = new RegistrySnapshot(file, HOST);
+        assertNotNull(last.load(again));
+        assertRestored(again);
+        assertNotNull(again.getImage(ImageIdentifier.parse("team/web:3.0")));
+        last.close();
+
+        // Snapshots of another daemon are not used
+        RegistrySnapshot other = new RegistrySnapshot(file, "tcp://other:2375");
+        assertNull(other.load(new DockerRegistry()));
+        other.close();
+    }
+
+    private static void populate(DockerRegistry registry) {
+        DockerImage web = registry.addImage(new DockerImage(null, WEB_ID));
+        registry.setSize(web, 1_000);
+        registry.tag(WEB, web);
+        registry.addDigests(web, List.of("team/web@sha256:" + "ef".repeat(32)));
+        DockerImage db = registry.addImage(new DockerImage(null, DB_ID));
+        registry.tag(DB, db);
+        DockerContainer cntr = new DockerContainer(CNTR_ID, "/web-1", web);
+        cntr.setManaged(true);
+        registry.addContainer(cntr);
+        web.addContainer(cntr);
+        cntr.started();
+        registry.changedContainer(cntr);
+        registry.removeImage(DB_ID);
+    }
+
+    private static void assertRestored(DockerRegistry registry) {
+        DockerImage web = registry.getImage(WEB);
+        assertNotNull(web);
+        assertEquals(WEB_ID, web.getID());
+        assertEquals(1_000, web.getSize());
+        assertEquals(web, registry.getImage(ImageIdentifier.parse("team/web@sha256:" + "ef".repeat(32))));
+        assertNull(registry.getImage(DB));
+        assertEquals(1, registry.getImages().size());
+        DockerContainer cntr = registry.getContainer(CNTR_ID);
+        assertNotNull(cntr);
+        assertEquals("/web-1", cntr.getName());
+        assertEquals(Container.Status.RUNNING, cntr.getStatus());
+        assertTrue(cntr.isManaged());
+    }
+}
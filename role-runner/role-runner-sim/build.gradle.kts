@@ -0,0 +1,30 @@
+plugins {
+    id("java")
+    application
+}
+
+group = "com.github.flordan"
+version = "1.0"
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    // Use JUnit test framework.
+    testImplementation(libs.junit)
+
+    implementation(project(":role-runner"))
+}
+
+// Apply a specific Java toolchain to ease working on different environments.
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(17))
+    }
+}
+
+application {
+    // e.g., gradle :role-runner:role-runner-sim:run --args="rate=2000 roles=10000 create-ms=5 drop-rate=0.01"
+    mainClass.set("com.github.flordan.rolerunner.sim.LoadDriver")
+}
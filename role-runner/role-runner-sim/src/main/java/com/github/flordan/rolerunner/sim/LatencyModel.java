@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.sim;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Distribution of the time an operation of the simulated engine takes.
+ */
+public interface LatencyModel {
+
+    public long sampleNanos(ThreadLocalRandom random);
+
+    public static LatencyModel none() {
+        return random -> 0;
+    }
+
+    public static LatencyModel constant(Duration latency) {
+        long nanos = latency.toNanos();
+        return random -> nanos;
+    }
+
+    public static LatencyModel uniform(Duration min, Duration max) {
+        long lower = min.toNanos();
+        long upper = max.toNanos();
+        if (upper <= lower) {
+            return constant(min);
+        }
+        return random -> random.nextLong(lower, upper);
+    }
+
+    /**
+     * Long-tailed latency: half of the samples are below the median and sigma sets how heavy the tail is (e.g., with
+     * sigma=1 the p99 is ~10x the median).
+     */
+    public static LatencyModel logNormal(Duration median, double sigma) {
+        double mu = Math.log(median.toNanos());
+        return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.sim;
+
+import com.github.flordan.rolerunner.RoleRunnerImpl;
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import com.github.flordan.rolerunner.metrics.LatencyHistogram;
+import com.github.flordan.rolerunner.metrics.Phase;
+import com.github.flordan.rolerunner.metrics.RoleRunnerMetrics;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator: requests roles at a fixed rate regardless of how fast they start, keeps each one running
+ * for a hold time and then stops and destroys it. Latencies are measured from the moment each request was due, so a
+ * runner falling behind shows up in the percentiles instead of slowing down the load.
+ */
+public class LoadDriver {
+
+    private final RoleRunnerImpl runner;
+    private final List<ImageIdentifier> images;
+    private double rate;
+    private int roles;
+    private Duration hold;
+    private Duration deadline;
+    private int issuers;
+
+    public LoadDriver(RoleRunnerImpl runner, List<ImageIdentifier> images) {
+        this.runner = runner;
+        this.images = images;
+        this.rate = 100;
+        this.roles = 1_000;
+        this.hold = Duration.ZERO;
+        this.deadline = Duration.ofSeconds(30);
+        this.issuers = 64;
+    }
+
+    public LoadDriver setRate(double rolesPerSecond) {
+        this.rate = rolesPerSecond;
+        return this;
+    }
+
+    public LoadDriver setRoles(int roles) {
+        this.roles = roles;
+        return this;
+    }
+
+    public LoadDriver setHold(Duration hold) {
+        this.hold = hold;
+        return this;
+    }
+
+    public LoadDriver setDeadline(Duration deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Threads issuing the requests; requesting a role may block on the creation of its container.
+     */
+    public LoadDriver setIssuers(int issuers) {
+        this.issuers = issuers;
+        return this;
+    }
+
+    public LoadReport run(Duration timeout) throws InterruptedException {
+        LatencyHistogram start = new LatencyHistogram();
+        LatencyHistogram stop = new LatencyHistogram();
+        LatencyHistogram destroy = new LatencyHistogram();
+        AtomicLong started = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicLong completed = new AtomicLong();
+        CountDownLatch finished = new CountDownLatch(roles);
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService issuing = Executors.newFixedThreadPool(issuers, r -> {
+            Thread t = new Thread(r, "load-issuer-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ScheduledExecutorService holding = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "load-hold");
+            t.setDaemon(true);
+            return t;
+        });
+
+        long period = (long) (1_000_000_000L / rate);
+        long begin = System.nanoTime();
+        for (int i = 0; i < roles; i++) {
+            long due = begin + i * period;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            ImageIdentifier iId = images.get(i % images.size());
+            issuing.execute(() -> runner.startRoleAsync(iId, deadline).whenComplete((cntr, t) -> {
+                if (t != null) {
+                    failed.incrementAndGet();
+                    finished.countDown();
+                    return;
+                }
+                start.record(System.nanoTime() - due);
+                started.incrementAndGet();
+                holding.schedule(() -> release(cntr, stop, destroy, completed, finished), hold.toNanos(),
+                    TimeUnit.NANOSECONDS);
+            }));
+        }
+        finished.await(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - begin);
+        issuing.shutdown();
+        holding.shutdown();
+        return new LoadReport(roles, started.get(), failed.get(), completed.get(), elapsed, start, stop, destroy);
+    }
+
+    private void release(Container cntr, LatencyHistogram stop, LatencyHistogram destroy, AtomicLong completed,
+        CountDownLatch finished) {
+        long stopping = System.nanoTime();
+        runner.stopRoleAsync(cntr).whenComplete((stopped, st) -> {
+            long destroying = System.nanoTime();
+            if (st == null) {
+                stop.record(destroying - stopping);
+            }
+            runner.destroyRoleAsync(cntr).whenComplete((destroyed, dt) -> {
+                if (dt == null) {
+                    destroy.record(System.nanoTime() - destroying);
+                    completed.incrementAndGet();
+                }
+                finished.countDown();
+            });
+        });
+    }
+
+    /**
+     * Runs a load against a SimRoleRunner. Arguments are key=value pairs: rate (roles/s), roles, images, hold-ms,
+     * deadline-ms, issuers, pull-ms, create-ms, start-ms, stop-ms, remove-ms (log-normal medians), sigma,
+     * pull-fail, create-fail, start-fail (rates), drop-rate and reorder-ms.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> conf = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            conf.put(kv[0], kv.length > 1 ? kv[1] : "");
+        }
+        double sigma = Double.parseDouble(conf.getOrDefault("sigma", "0.5"));
+        SimEngine engine = new SimEngine();
+        latency(engine, SimEngine.Operation.PULL, conf.get("pull-ms"), sigma);
+        latency(engine, SimEngine.Operation.CREATE, conf.get("create-ms"), sigma);
+        latency(engine, SimEngine.Operation.START, conf.get("start-ms"), sigma);
+        latency(engine, SimEngine.Operation.STOP, conf.get("stop-ms"), sigma);
+        latency(engine, SimEngine.Operation.REMOVE, conf.get("remove-ms"), sigma);
+        engine.setFailureRate(SimEngine.Operation.PULL, Double.parseDouble(conf.getOrDefault("pull-fail", "0")));
+        engine.setFailureRate(SimEngine.Operation.CREATE, Double.parseDouble(conf.getOrDefault("create-fail", "0")));
+        engine.setFailureRate(SimEngine.Operation.START, Double.parseDouble(conf.getOrDefault("start-fail", "0")));
+        engine.setEventDropRate(Double.parseDouble(conf.getOrDefault("drop-rate", "0")));
+        engine.setEventReorderWindow(Duration.ofMillis(Long.parseLong(conf.getOrDefault("reorder-ms", "0"))));
+
+        List<ImageIdentifier> images = new LinkedList<>();
+        int imageCount = Integer.parseInt(conf.getOrDefault("images", "4"));
+        for (int i = 0; i < imageCount; i++) {
+            images.add(new ImageIdentifier("sim-role-" + i, "latest"));
+        }
+
+        SimRoleRunner runner = new SimRoleRunner(engine);
+        LoadDriver driver = new LoadDriver(runner, images)
+            .setRate(Double.parseDouble(conf.getOrDefault("rate", "1000")))
+            .setRoles(Integer.parseInt(conf.getOrDefault("roles", "10000")))
+            .setHold(Duration.ofMillis(Long.parseLong(conf.getOrDefault("hold-ms", "0"))))
+            .setDeadline(Duration.ofMillis(Long.parseLong(conf.getOrDefault("deadline-ms", "30000"))))
+            .setIssuers(Integer.parseInt(conf.getOrDefault("issuers", "64")));
+        LoadReport report = driver.run(Duration.ofMinutes(10));
+
+        System.out.println(report);
+        for (Phase phase : Phase.values()) {
+            System.out.println(String.format("%-18s %s", phase, RoleRunnerMetrics.getPhase(phase).snapshot()));
+        }
+        System.out.println("engine: failures create=" + engine.getFailures(SimEngine.Operation.CREATE)
+            + " start=" + engine.getFailures(SimEngine.Operation.START) + ", events delivered="
+            + engine.getDeliveredEvents() + " dropped=" + engine.getDroppedEvents() + " redelivered="
+            + engine.getRedeliveredEvents());
+        System.exit(0);
+    }
+
+    private static void latency(SimEngine engine, SimEngine.Operation op, String medianMs, double sigma) {
+        if (medianMs != null) {
+            engine.setLatency(op, LatencyModel.logNormal(Duration.ofNanos((long) (Double.parseDouble(medianMs)
+                * 1_000_000)), sigma));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.sim;
+
+import com.github.flordan.rolerunner.metrics.LatencyHistogram;
+
+import java.time.Duration;
+
+public class LoadReport {
+
+    private final long requested;
+    private final long started;
+    private final long failed;
+    private final long completed;
+    private final Duration elapsed;
+    private final LatencyHistogram start;
+    private final LatencyHistogram stop;
+    private final LatencyHistogram destroy;
+
+    LoadReport(long requested, long started, long failed, long completed, Duration elapsed, LatencyHistogram start,
+        LatencyHistogram stop, LatencyHistogram destroy) {
+        this.requested = requested;
+        this.started = started;
+        this.failed = failed;
+        this.completed = completed;
+        this.elapsed = elapsed;
+        this.start = start;
+        this.stop = stop;
+        this.destroy = destroy;
+    }
+
+    public long getRequested() {
+        return requested;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Roles running per second over the whole run.
+     */
+    public double getThroughput() {
+        return elapsed.isZero() ? 0 : started * 1_000_000_000.0 / elapsed.toNanos();
+    }
+
+    /**
+     * Time from the moment each role was due to be requested until it was running.
+     */
+    public LatencyHistogram getStartLatency() {
+        return start;
+    }
+
+    public LatencyHistogram getStopLatency() {
+        return stop;
+    }
+
+    public LatencyHistogram getDestroyLatency() {
+        return destroy;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("requested=%d started=%d failed=%d completed=%d in %d ms (%.1f roles/s)%n",
+            requested, started, failed, completed, elapsed.toMillis(), getThroughput()));
+        sb.append(String.format("%-8s %10s %10s %10s %10s %10s%n", "phase", "count", "p50 ms", "p99 ms", "p999 ms",
+            "max ms"));
+        line(sb, "start", start);
+        line(sb, "stop", stop);
+        line(sb, "destroy", destroy);
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, LatencyHistogram histogram) {
+        sb.append(String.format("%-8s %10d %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getCount(),
+            histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6, histogram.getPercentile(99.9) / 1e6,
+            histogram.getMax() / 1e6));
+    }
+}
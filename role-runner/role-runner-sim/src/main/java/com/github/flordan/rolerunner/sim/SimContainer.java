@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.sim;
+
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.container.ContainerManager;
+import com.github.flordan.rolerunner.container.ContainerSpec;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.List;
+
+public class SimContainer extends Container {
+
+    enum EngineState {
+        CREATED,
+        RUNNING,
+        STOPPED,
+        REMOVED
+    }
+
+    private final SimEngine engine;
+    private final long id;
+    private final ContainerSpec spec;
+
+    // Engine-side view: the state the simulated daemon holds and the last one notified to the container
+    volatile EngineState actual;
+    volatile EngineState delivered;
+    volatile long changedAt;
+
+    public SimContainer(SimEngine engine, long id, SimImage image, ContainerSpec spec, ContainerManager monitor) {
+        super(image, monitor);
+        this.engine = engine;
+        this.id = id;
+        this.spec = spec;
+        setHealthChecked(engine.getHealthCheckDelay() != null);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public ContainerSpec getSpec() {
+        return spec;
+    }
+
+    @Override
+    public void specificStart() {
+        engine.startContainer(this);
+    }
+
+    @Override
+    public void specificStop() {
+        engine.stopContainer(this);
+    }
+
+    @Override
+    public void specificDestroy() {
+        engine.removeContainer(this);
+    }
+
+    @Override
+    public void kill() {
+        engine.killContainer(this);
+    }
+
+    /**
+     * Simulated containers publish their ports on the host.
+     */
+    @Override
+    public InetAddress getAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public boolean canExec() {
+        return engine.isExecSupported();
+    }
+
+    @Override
+    public int exec(List<String> command, Duration timeout) {
+        return engine.exec(this);
+    }
+
+    @Override
+    public String toString() {
+        return "SimContainer[" + id + "]";
+    }
+}
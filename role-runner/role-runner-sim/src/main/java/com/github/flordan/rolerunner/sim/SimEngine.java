@@ -0,0 +1,408 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.sim;
+
+import com.github.flordan.rolerunner.container.ContainerManager;
+import com.github.flordan.rolerunner.container.ContainerSpec;
+import com.github.flordan.rolerunner.exception.ImageNotFoundException;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import com.github.flordan.rolerunner.image.ImageManager;
+import com.github.flordan.rolerunner.scheduling.Resources;
+import com.github.flordan.rolerunner.sim.SimContainer.EngineState;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory container engine. Operations take a time drawn from a per-operation LatencyModel and may fail with a
+ * given probability; the outcome is notified as an event that can be delayed (and thus reordered) or dropped. As the
+ * Docker engine, it periodically reconciles: the state of the containers whose last event was lost is notified again.
+ *
+ * Creating a container blocks the caller for the creation latency, as the call to the daemon does; every other
+ * operation is asynchronous.
+ */
+public class SimEngine {
+
+    public enum Operation {
+        PULL,
+        CREATE,
+        START,
+        STOP,
+        REMOVE
+    }
+
+    public static final Duration DEFAULT_RECONCILIATION_PERIOD = Duration.ofSeconds(1);
+
+    private final ScheduledExecutorService scheduler;
+    private final Map<Operation, LatencyModel> latencies;
+    private final Map<Operation, Double> failureRates;
+    private final Map<Operation, AtomicLong> failures;
+    private final Map<ImageIdentifier, SimImage> images;
+    private final Map<ImageIdentifier, List<ImageManager>> pulls;
+    private final Map<Long, SimContainer> containers;
+    private final AtomicLong ids;
+    private final AtomicLong delivered;
+    private final AtomicLong dropped;
+    private final AtomicLong redelivered;
+    private volatile double dropRate;
+    private volatile long reorderWindowNanos;
+    private volatile Duration healthCheckDelay;
+    private volatile boolean execSupported = true;
+    private volatile Resources capacity;
+
+    public SimEngine() {
+        this(Math.max(4, Runtime.getRuntime().availableProcessors()), DEFAULT_RECONCILIATION_PERIOD);
+    }
+
+    public SimEngine(int threads, Duration reconciliationPeriod) {
+        AtomicInteger count = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, "sim-engine-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.latencies = new ConcurrentHashMap<>();
+        this.failureRates = new ConcurrentHashMap<>();
+        this.failures = new EnumMap<>(Operation.class);
+        for (Operation op : Operation.values()) {
+            this.latencies.put(op, LatencyModel.none());
+            this.failureRates.put(op, 0.0);
+            this.failures.put(op, new AtomicLong());
+        }
+        this.images = new ConcurrentHashMap<>();
+        this.pulls = new ConcurrentHashMap<>();
+        this.containers = new ConcurrentHashMap<>();
+        this.ids = new AtomicLong();
+        this.delivered = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.redelivered = new AtomicLong();
+        long period = reconciliationPeriod.toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::reconcile, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void setLatency(Operation op, LatencyModel latency) {
+        latencies.put(op, latency);
+    }
+
+    /**
+     * Probability of an operation failing. Failed pulls are notified as failed, failed creations throw to the caller
+     * and failed starts end with the container exiting right away, as the daemon does when the runtime cannot start
+     * it. Stops and removals cannot fail.
+     */
+    public void setFailureRate(Operation op, double rate) {
+        if (op == Operation.STOP || op == Operation.REMOVE) {
+            throw new IllegalArgumentException(op + " operations cannot fail");
+        }
+        failureRates.put(op, rate);
+    }
+
+    public void setEventDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Each event is delayed by a random time up to the given window, so events closer than it may be reordered.
+     */
+    public void setEventReorderWindow(Duration window) {
+        this.reorderWindowNanos = window.toNanos();
+    }
+
+    /**
+     * Makes the containers created from now on health-checked: each becomes ready this long after it starts. Null
+     * (the default) creates containers without health check.
+     */
+    public void setHealthCheckDelay(Duration delay) {
+        this.healthCheckDelay = delay;
+    }
+
+    public Duration getHealthCheckDelay() {
+        return healthCheckDelay;
+    }
+
+    /**
+     * Sets whether the engine can run commands inside its containers (the default), as exec readiness probes need.
+     */
+    public void setExecSupported(boolean supported) {
+        this.execSupported = supported;
+    }
+
+    public boolean isExecSupported() {
+        return execSupported;
+    }
+
+    /**
+     * Resources the simulated host reports, null (the default) if it reports none.
+     */
+    public void setCapacity(Resources capacity) {
+        this.capacity = capacity;
+    }
+
+    public Resources getCapacity() {
+        return capacity;
+    }
+
+    public long getFailures(Operation op) {
+        return failures.get(op).get();
+    }
+
+    public long getDeliveredEvents() {
+        return delivered.get();
+    }
+
+    public long getDroppedEvents() {
+        return dropped.get();
+    }
+
+    public long getRedeliveredEvents() {
+        return redelivered.get();
+    }
+
+    public int getContainerCount() {
+        return containers.size();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private long latency(Operation op) {
+        return Math.max(0, latencies.get(op).sampleNanos(ThreadLocalRandom.current()));
+    }
+
+    private boolean fails(Operation op) {
+        double rate = failureRates.get(op);
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            failures.get(op).incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private void later(Operation op, Runnable action) {
+        scheduler.schedule(action, latency(op), TimeUnit.NANOSECONDS);
+    }
+
+
+    public Set<ImageIdentifier> getAvailableImages() {
+        Set<ImageIdentifier> available = new HashSet<>();
+        for (SimImage img : images.values()) {
+            available.addAll(img.getTags());
+        }
+        return available;
+    }
+
+    public SimImage getImage(ImageIdentifier iId) {
+        return images.get(iId);
+    }
+
+    public void requestImage(ImageIdentifier iId, ImageManager handler) {
+        boolean newPull;
+        synchronized (pulls) {
+            List<ImageManager> handlers = pulls.get(iId);
+            newPull = handlers == null;
+            if (newPull) {
+                handlers = new LinkedList<>();
+                pulls.put(iId, handlers);
+            }
+            handlers.add(handler);
+        }
+        if (newPull) {
+            later(Operation.PULL, () -> pulled(iId));
+        }
+    }
+
+    private void pulled(ImageIdentifier iId) {
+        List<ImageManager> handlers;
+        synchronized (pulls) {
+            handlers = pulls.remove(iId);
+        }
+        if (fails(Operation.PULL)) {
+            RuntimeException cause = new IllegalStateException("Simulated failure pulling " + iId);
+            for (ImageManager handler : handlers) {
+                handler.failedImage(iId, cause);
+            }
+            return;
+        }
+        ImageManager owner = handlers.get(0);
+        SimImage img = images.computeIfAbsent(iId, k -> new SimImage(this, ids.incrementAndGet(), owner));
+        img.addTag(iId);
+        img.fetched();
+        for (ImageManager handler : handlers) {
+            if (handler != owner) {
+                handler.fetchedImage(img);
+            }
+        }
+    }
+
+    public void deleteImage(SimImage img) {
+        images.values().removeIf(i -> i == img);
+        img.deleted();
+    }
+
+
+    public void createContainer(SimImage image, ContainerManager monitor) throws ImageNotFoundException {
+        createContainer(image, monitor, ContainerSpec.DEFAULT);
+    }
+
+    /**
+     * Creates a container keeping its spec, which the simulation does not enforce. Stopped containers are always kept
+     * until removed, as recyclable ones are.
+     */
+    public void createContainer(SimImage image, ContainerManager monitor, ContainerSpec spec)
+        throws ImageNotFoundException {
+        if (!images.containsValue(image)) {
+            throw new ImageNotFoundException();
+        }
+        LockSupport.parkNanos(latency(Operation.CREATE));
+        if (fails(Operation.CREATE)) {
+            throw new IllegalStateException("Simulated failure creating a container of " + image);
+        }
+        SimContainer cntr = new SimContainer(this, ids.incrementAndGet(), image, spec, monitor);
+        image.addContainer(cntr);
+        containers.put(cntr.getId(), cntr);
+        changed(cntr, EngineState.CREATED);
+    }
+
+    void startContainer(SimContainer cntr) {
+        later(Operation.START, () -> changed(cntr, fails(Operation.START) ? EngineState.STOPPED : EngineState.RUNNING));
+    }
+
+    void stopContainer(SimContainer cntr) {
+        later(Operation.STOP, () -> changed(cntr, EngineState.STOPPED));
+    }
+
+    void removeContainer(SimContainer cntr) {
+        later(Operation.REMOVE, () -> changed(cntr, EngineState.REMOVED));
+    }
+
+    /**
+     * Simulated commands succeed while the container runs and fail otherwise.
+     */
+    int exec(SimContainer cntr) {
+        if (!execSupported) {
+            throw new IllegalStateException("Engine cannot run commands in " + cntr);
+        }
+        return cntr.actual == EngineState.RUNNING ? 0 : 1;
+    }
+
+    void killContainer(SimContainer cntr) {
+        if (cntr.actual == EngineState.RUNNING) {
+            changed(cntr, EngineState.STOPPED);
+        }
+    }
+
+    /**
+     * Removes at once every container still on the engine, as a forced removal would. Returns how many there were.
+     */
+    public int pruneContainers() {
+        int pruned = 0;
+        for (SimContainer cntr : containers.values()) {
+            if (cntr.actual != EngineState.REMOVED) {
+                changed(cntr, EngineState.REMOVED);
+                pruned++;
+            }
+        }
+        return pruned;
+    }
+
+    private void changed(SimContainer cntr, EngineState state) {
+        synchronized (cntr) {
+            if (cntr.actual == EngineState.REMOVED) {
+                return;
+            }
+            cntr.actual = state;
+            cntr.changedAt = System.nanoTime();
+        }
+        if (dropRate > 0 && ThreadLocalRandom.current().nextDouble() < dropRate) {
+            dropped.incrementAndGet();
+            return;
+        }
+        long window = reorderWindowNanos;
+        if (window > 0) {
+            scheduler.schedule(() -> deliver(cntr, state), ThreadLocalRandom.current().nextLong(window),
+                TimeUnit.NANOSECONDS);
+        } else {
+            scheduler.execute(() -> deliver(cntr, state));
+        }
+    }
+
+    private void deliver(SimContainer cntr, EngineState state) {
+        delivered.incrementAndGet();
+        cntr.delivered = state;
+        switch (state) {
+            case CREATED:
+                cntr.created();
+                break;
+            case RUNNING:
+                cntr.started();
+                checkHealth(cntr);
+                break;
+            case STOPPED:
+                cntr.stopped();
+                break;
+            case REMOVED:
+                // Only forgotten once notified, so the reconciliation can repeat a lost removal
+                containers.remove(cntr.getId());
+                cntr.destroyed();
+                break;
+        }
+    }
+
+    private void checkHealth(SimContainer cntr) {
+        Duration delay = healthCheckDelay;
+        if (delay == null || !cntr.isHealthChecked()) {
+            return;
+        }
+        scheduler.schedule(() -> {
+            if (cntr.actual == EngineState.RUNNING) {
+                cntr.ready();
+            }
+        }, delay.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private void reconcile() {
+        long settled = System.nanoTime() - reorderWindowNanos;
+        for (SimContainer cntr : containers.values()) {
+            redeliver(cntr, settled);
+        }
+    }
+
+    private void redeliver(SimContainer cntr, long settled) {
+        EngineState actual = cntr.actual;
+        // Events younger than the reorder window may still be on their way
+        if (actual != cntr.delivered && cntr.changedAt - settled < 0) {
+            redelivered.incrementAndGet();
+            if (actual != EngineState.CREATED && cntr.delivered == null) {
+                deliver(cntr, EngineState.CREATED);
+            }
+            deliver(cntr, actual);
+        }
+    }
+}
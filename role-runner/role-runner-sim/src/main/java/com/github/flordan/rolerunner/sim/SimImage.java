@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.sim;
+
+import com.github.flordan.rolerunner.container.ContainerManager;
+import com.github.flordan.rolerunner.container.ContainerSpec;
+import com.github.flordan.rolerunner.exception.ImageNotFoundException;
+import com.github.flordan.rolerunner.image.Image;
+import com.github.flordan.rolerunner.image.ImageManager;
+
+public class SimImage extends Image {
+    private final SimEngine engine;
+    private final long id;
+
+    public SimImage(SimEngine engine, long id, ImageManager handler) {
+        super(handler);
+        this.engine = engine;
+        this.id = id;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public void delete() {
+        engine.deleteImage(this);
+    }
+
+    @Override
+    public void createContainer(ContainerManager monitor) throws ImageNotFoundException {
+        engine.createContainer(this, monitor);
+    }
+
+    @Override
+    public void createContainer(ContainerManager monitor, ContainerSpec spec) throws ImageNotFoundException {
+        engine.createContainer(this, monitor, spec);
+    }
+
+    @Override
+    public String toString() {
+        return "SimImage[" + id + " " + getTags() + "]";
+    }
+}
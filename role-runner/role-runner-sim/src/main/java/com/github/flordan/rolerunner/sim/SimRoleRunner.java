@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.sim;
+
+import com.github.flordan.rolerunner.RoleRunnerImpl;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import com.github.flordan.rolerunner.image.ImageManager;
+import com.github.flordan.rolerunner.scheduling.Resources;
+
+import java.time.Duration;
+import java.util.Set;
+
+/**
+ * RoleRunner running its roles on a SimEngine instead of a container engine.
+ */
+public class SimRoleRunner extends RoleRunnerImpl {
+
+    private final SimEngine engine;
+
+    public SimRoleRunner(SimEngine engine) {
+        this.engine = engine;
+    }
+
+    public SimEngine getEngine() {
+        return engine;
+    }
+
+    @Override
+    public Set<ImageIdentifier> getAvailableImages() {
+        return engine.getAvailableImages();
+    }
+
+    @Override
+    public SimImage getImage(ImageIdentifier iId) {
+        return engine.getImage(iId);
+    }
+
+    @Override
+    public Resources getCapacity() {
+        return engine.getCapacity();
+    }
+
+    @Override
+    protected int pruneContainers(Duration timeout) {
+        return engine.pruneContainers();
+    }
+
+    @Override
+    public void requestImage(ImageIdentifier iId, ImageManager handler) {
+        engine.requestImage(iId, handler);
+    }
+}
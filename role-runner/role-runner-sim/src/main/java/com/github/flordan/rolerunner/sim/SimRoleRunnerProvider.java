@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.sim;
+
+import com.github.flordan.rolerunner.RoleRunner;
+import com.github.flordan.rolerunner.RoleRunnerProvider;
+
+import java.util.Properties;
+
+/**
+ * Provides the "sim" engine: a SimEngine with no latency nor failures.
+ */
+public class SimRoleRunnerProvider implements RoleRunnerProvider {
+
+    @Override
+    public String getName() {
+        return "sim";
+    }
+
+    @Override
+    public RoleRunner create(Properties properties) {
+        return new SimRoleRunner(new SimEngine());
+    }
+}
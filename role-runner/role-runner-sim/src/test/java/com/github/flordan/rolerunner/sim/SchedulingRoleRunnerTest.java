@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.sim;
+
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import com.github.flordan.rolerunner.scheduling.Endpoint;
+import com.github.flordan.rolerunner.scheduling.PlacementPolicy;
+import com.github.flordan.rolerunner.scheduling.Resources;
+import com.github.flordan.rolerunner.scheduling.SchedulingRoleRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SchedulingRoleRunnerTest {
+
+    private static final ImageIdentifier A = new ImageIdentifier("a");
+    private static final ImageIdentifier B = new ImageIdentifier("b");
+
+    private List<SimRoleRunner> runners;
+    private List<Endpoint> endpoints;
+
+    @Before
+    public void setUp() {
+        runners = new ArrayList<>();
+        endpoints = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            SimRoleRunner runner = new SimRoleRunner(new SimEngine(2, Duration.ofMillis(50)));
+            runners.add(runner);
+            endpoints.add(new Endpoint("sim-" + i, runner));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (SimRoleRunner runner : runners) {
+            runner.shutdown();
+            runner.getEngine().shutdown();
+        }
+    }
+
+    @Test
+    public void placesOnEndpointsHoldingTheImage() throws Exception {
+        runners.get(2).fetchImageAsync(A).get(5, TimeUnit.SECONDS);
+        SchedulingRoleRunner scheduler = new SchedulingRoleRunner(endpoints);
+        assertEquals(Set.of(A), scheduler.getAvailableImages());
+
+        List<Container> started = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            started.add(scheduler.startRoleAsync(A, null).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(0, endpoints.get(0).getRoles());
+        assertEquals(0, endpoints.get(1).getRoles());
+        assertEquals(6, endpoints.get(2).getRoles());
+
+        // B is not present anywhere: pulled on the least loaded endpoint only
+        Container b = scheduler.startRoleAsync(B, null).get(5, TimeUnit.SECONDS);
+        Endpoint pulled = scheduler.getEndpoint(b);
+        assertSame(pulled, scheduler.getEndpoint(scheduler.startRoleAsync(B, null).get(5, TimeUnit.SECONDS)));
+        assertEquals(Set.of(A, B), scheduler.getAvailableImages());
+
+        for (Container cntr : started) {
+            scheduler.destroyRoleAsync(cntr).get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(0, endpoints.get(2).getRoles());
+    }
+
+    @Test
+    public void spreadsByLoadAndHeadroom() throws Exception {
+        SchedulingRoleRunner scheduler = new SchedulingRoleRunner(endpoints, PlacementPolicy.leastLoaded());
+        for (int i = 0; i < 9; i++) {
+            scheduler.startRoleAsync(A, null).get(5, TimeUnit.SECONDS);
+        }
+        for (Endpoint endpoint : endpoints) {
+            assertEquals(3, endpoint.getRoles());
+        }
+
+        runners.get(0).getEngine().setCapacity(new Resources(2, 8L << 30));
+        runners.get(1).getEngine().setCapacity(new Resources(8, 8L << 30));
+        runners.get(2).getEngine().setCapacity(new Resources(8, 4L << 30));
+        scheduler.setPolicy(PlacementPolicy.headroom(new Resources(0.5, 512L << 20)));
+        for (int i = 0; i < 6; i++) {
+            scheduler.startRoleAsync(A, null).get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(3, endpoints.get(0).getRoles());
+        assertEquals(8, endpoints.get(1).getRoles());
+        assertEquals(4, endpoints.get(2).getRoles());
+    }
+}
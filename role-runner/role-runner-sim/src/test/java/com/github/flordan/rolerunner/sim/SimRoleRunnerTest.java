@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.sim;
+
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.container.ContainerRecycler;
+import com.github.flordan.rolerunner.container.ContainerSpec;
+import com.github.flordan.rolerunner.container.ReadinessProbe;
+import com.github.flordan.rolerunner.container.Teardown;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import com.github.flordan.rolerunner.metrics.Phase;
+import com.github.flordan.rolerunner.metrics.RoleRunnerMetrics;
+import com.github.flordan.rolerunner.scheduling.CoreAllocator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimRoleRunnerTest {
+
+    private SimEngine engine;
+    private SimRoleRunner runner;
+
+    @Before
+    public void setUp() {
+        engine = new SimEngine(4, Duration.ofMillis(50));
+        runner = new SimRoleRunner(engine);
+    }
+
+    @After
+    public void tearDown() {
+        runner.shutdown();
+        engine.shutdown();
+    }
+
+    @Test
+    public void loadWithLostAndReorderedEvents() throws Exception {
+        engine.setLatency(SimEngine.Operation.START, LatencyModel.uniform(Duration.ZERO, Duration.ofMillis(2)));
+        engine.setEventDropRate(0.05);
+        engine.setEventReorderWindow(Duration.ofMillis(1));
+        LoadReport report = new LoadDriver(runner, List.of(new ImageIdentifier("a"), new ImageIdentifier("b")))
+            .setRate(5_000)
+            .setRoles(500)
+            .run(Duration.ofSeconds(30));
+
+        assertEquals(500, report.getStarted());
+        assertEquals(500, report.getCompleted());
+        assertEquals(500, report.getStartLatency().getCount());
+        assertTrue(engine.getDroppedEvents() > 0);
+        assertTrue(engine.getRedeliveredEvents() > 0);
+        assertEquals(0, engine.getContainerCount());
+    }
+
+    @Test
+    public void failedStartExpires() throws Exception {
+        engine.setFailureRate(SimEngine.Operation.START, 1.0);
+        try {
+            runner.startRoleAsync(new ImageIdentifier("c"), Duration.ofMillis(200)).get(5, TimeUnit.SECONDS);
+            fail("The role should not have started");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void teardownKillsSlowStops() throws Exception {
+        engine.setLatency(SimEngine.Operation.STOP, LatencyModel.constant(Duration.ofMinutes(1)));
+        List<CompletableFuture<?>> started = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            started.add(runner.startRoleAsync(new ImageIdentifier("d"), null));
+        }
+        CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+        runner.getTeardown().setConcurrency(8);
+        runner.getTeardown().setGrace(Duration.ofMillis(100));
+        runner.getTeardown().setDeadline(Duration.ofSeconds(5));
+        Teardown.Report report = runner.shutdown();
+        assertEquals(40, report.getContainers());
+        assertEquals(40, report.getKilled());
+        assertTrue(report.isComplete());
+        assertTrue(report.getElapsed().compareTo(Duration.ofSeconds(5)) < 0);
+    }
+
+    @Test
+    public void restartsRecycledContainers() throws Exception {
+        ImageIdentifier iId = new ImageIdentifier("e");
+        engine.setLatency(SimEngine.Operation.CREATE, LatencyModel.constant(Duration.ofMillis(20)));
+        runner.setRecycling(iId, 2, false);
+        List<Container> first = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            first.add(runner.startRoleAsync(iId, null).get(5, TimeUnit.SECONDS));
+        }
+        for (Container cntr : first) {
+            runner.stopRoleAsync(cntr).get(5, TimeUnit.SECONDS);
+        }
+        ContainerRecycler recycler = runner.getRecycler(iId);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((recycler.getStoppedCount() < 2 || engine.getContainerCount() > 2) && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, recycler.getStoppedCount());
+        assertEquals(1, recycler.getDiscarded());
+        assertEquals(2, engine.getContainerCount());
+
+        for (int i = 0; i < 2; i++) {
+            Container cntr = runner.startRoleAsync(iId, null).get(5, TimeUnit.SECONDS);
+            assertTrue(first.contains(cntr));
+        }
+        assertEquals(2, recycler.getReuses());
+        assertEquals(0.4, recycler.getReuseRate(), 0.001);
+        assertTrue(recycler.getSavedNanos() > 0);
+    }
+
+    @Test
+    public void dedicatesDisjointCores() throws Exception {
+        runner.setCoreAllocator(new CoreAllocator(Map.of(0, List.of(0, 1), 1, List.of(2, 3))));
+        ContainerSpec spec = ContainerSpec.builder().command("serve").memory(1L << 30).dedicatedCores(2).build();
+        SimContainer first = (SimContainer) runner.startRoleAsync(new ImageIdentifier("f"), spec, null)
+            .get(5, TimeUnit.SECONDS);
+        SimContainer second = (SimContainer) runner.startRoleAsync(new ImageIdentifier("f"), spec, null)
+            .get(5, TimeUnit.SECONDS);
+        assertEquals("0-1", first.getSpec().getCpusetCpus());
+        assertEquals("2-3", second.getSpec().getCpusetCpus());
+        assertEquals("1", second.getSpec().getCpusetMems());
+        try {
+            runner.startRoleAsync(new ImageIdentifier("f"), spec, null).get(5, TimeUnit.SECONDS);
+            fail("No cores should be left");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalStateException);
+        }
+
+        runner.destroyRoleAsync(first).get(5, TimeUnit.SECONDS);
+        SimContainer third = (SimContainer) runner.startRoleAsync(new ImageIdentifier("f"), spec, null)
+            .get(5, TimeUnit.SECONDS);
+        assertEquals("0-1", third.getSpec().getCpusetCpus());
+    }
+
+    @Test
+    public void healthCheckedRolesStartOnceReady() throws Exception {
+        engine.setHealthCheckDelay(Duration.ofMillis(100));
+        long before = RoleRunnerMetrics.getPhase(Phase.START_TO_READY).getCount();
+        long start = System.nanoTime();
+        Container cntr = runner.startRoleAsync(new ImageIdentifier("g"), null).get(5, TimeUnit.SECONDS);
+        assertEquals(Container.Status.READY, cntr.getStatus());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(before + 1, RoleRunnerMetrics.getPhase(Phase.START_TO_READY).getCount());
+    }
+
+    @Test
+    public void probedRolesStartOnceListening() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        ContainerSpec spec = ContainerSpec.builder()
+            .probe(ReadinessProbe.tcp(port, Duration.ofMillis(20), Duration.ofMillis(100)))
+            .build();
+        CompletableFuture<Container> started = runner.startRoleAsync(new ImageIdentifier("h"), spec, null);
+        Thread.sleep(200);
+        assertFalse(started.isDone());
+
+        ServerSocket role = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+        try {
+            Container cntr = started.get(5, TimeUnit.SECONDS);
+            assertEquals(Container.Status.READY, cntr.getStatus());
+        } finally {
+            role.close();
+        }
+    }
+
+    @Test
+    public void execProbedRolesStartOnceTheCommandSucceeds() throws Exception {
+        ContainerSpec spec = ContainerSpec.builder()
+            .probe(ReadinessProbe.exec(List.of("true"), Duration.ofMillis(20), Duration.ofMillis(100)))
+            .build();
+        Container cntr = runner.startRoleAsync(new ImageIdentifier("j"), spec, null).get(5, TimeUnit.SECONDS);
+        assertEquals(Container.Status.READY, cntr.getStatus());
+    }
+
+    @Test
+    public void unsupportedProbesFailTheRole() throws Exception {
+        engine.setExecSupported(false);
+        ContainerSpec spec = ContainerSpec.builder()
+            .probe(ReadinessProbe.exec(List.of("true"), Duration.ofMinutes(1), Duration.ofMillis(100)))
+            .build();
+        CompletableFuture<Container> started = runner.startRoleAsync(new ImageIdentifier("i"), spec, null);
+        try {
+            started.get(5, TimeUnit.SECONDS);
+            fail("The simulated engine cannot run commands");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalArgumentException);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner;
+
+import com.github.flordan.rolerunner.container.Container;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle over a set of roles started together. It aggregates the progress of every request of the batch.
+ */
+public class RoleBatch {
+
+    private final long startedAt;
+    private final int requested;
+    private final AtomicInteger running;
+    private final AtomicInteger failed;
+    private final Queue<Container> containers;
+    private final Queue<Throwable> failures;
+    private final CompletableFuture<List<Container>> allRunning;
+    private volatile long lastRunningAt;
+
+    RoleBatch(int requested) {
+        this.startedAt = System.nanoTime();
+        this.requested = requested;
+        this.running = new AtomicInteger();
+        this.failed = new AtomicInteger();
+        this.containers = new ConcurrentLinkedQueue<>();
+        this.failures = new ConcurrentLinkedQueue<>();
+        this.allRunning = new CompletableFuture<>();
+        if (requested == 0) {
+            this.lastRunningAt = startedAt;
+            this.allRunning.complete(new ArrayList<>());
+        }
+    }
+
+    void track(CompletableFuture<Container> request) {
+        request.whenComplete((cntr, t) -> {
+            if (t == null) {
+                containers.add(cntr);
+                if (running.incrementAndGet() == requested) {
+                    lastRunningAt = System.nanoTime();
+                    allRunning.complete(new ArrayList<>(containers));
+                }
+            } else {
+                failures.add(t);
+                failed.incrementAndGet();
+                allRunning.completeExceptionally(t);
+            }
+        });
+    }
+
+    public int getRequested() {
+        return requested;
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public int getPending() {
+        return requested - running.get() - failed.get();
+    }
+
+    public boolean isDone() {
+        return getPending() == 0;
+    }
+
+    public List<Container> getContainers() {
+        return new ArrayList<>(containers);
+    }
+
+    public List<Throwable> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    public Duration getElapsed() {
+        return Duration.ofNanos(System.nanoTime() - startedAt);
+    }
+
+    /**
+     * Time from the submission of the batch until its last container was running; null until then.
+     */
+    public Duration getTimeToLastRunning() {
+        long last = lastRunningAt;
+        return last == 0 ? null : Duration.ofNanos(last - startedAt);
+    }
+
+    /**
+     * Completes once all the containers are running or fails on the first request that fails.
+     */
+    public CompletableFuture<List<Container>> whenAllRunning() {
+        return allRunning;
+    }
+
+    @Override
+    public String toString() {
+        return "RoleBatch[requested=" + requested + ", running=" + running.get() + ", failed=" + failed.get() + "]";
+    }
+}
@@ -17,10 +17,16 @@
 package com.github.flordan.rolerunner;
 
 import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.container.ContainerSpec;
 import com.github.flordan.rolerunner.image.Image;
 import com.github.flordan.rolerunner.image.ImageIdentifier;
+import com.github.flordan.rolerunner.image.PullProgress;
+import com.github.flordan.rolerunner.scheduling.Resources;
 
+import java.time.Duration;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 
 public interface RoleRunner {
@@ -31,5 +37,37 @@ public interface RoleRunner {
 
     void fetchImage(ImageIdentifier iId);
 
+    CompletableFuture<Image> fetchImageAsync(ImageIdentifier iId);
+
+    /**
+     * Fetches the image in the background reporting the progress of its pull, if one is needed, to the listener.
+     */
+    CompletableFuture<Image> fetchImageAsync(ImageIdentifier iId, Consumer<PullProgress> progress);
+
     void startRole(ImageIdentifier iId);
+
+    void startRole(ImageIdentifier iId, ContainerSpec spec);
+
+    /**
+     * Starts a container of the image and completes once it is running, or ready if its health is checked. If the
+     * deadline (null for none) expires first, the future fails with a TimeoutException and the container, if already
+     * requested, is destroyed.
+     */
+    CompletableFuture<Container> startRoleAsync(ImageIdentifier iId, Duration deadline);
+
+    /**
+     * Starts a container of the image as described by the spec; otherwise as startRoleAsync(iId, deadline).
+     */
+    CompletableFuture<Container> startRoleAsync(ImageIdentifier iId, ContainerSpec spec, Duration deadline);
+
+    CompletableFuture<Container> stopRoleAsync(Container cntr);
+
+    CompletableFuture<Container> destroyRoleAsync(Container cntr);
+
+    /**
+     * CPUs and memory of the host the roles run on, null if unknown.
+     */
+    default Resources getCapacity() {
+        return null;
+    }
 }
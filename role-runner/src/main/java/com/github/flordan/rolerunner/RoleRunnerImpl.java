@@ -18,29 +18,148 @@ package com.github.flordan.rolerunner;
 
 import com.github.flordan.rolerunner.container.Container;
 import com.github.flordan.rolerunner.container.ContainerManager;
+import com.github.flordan.rolerunner.container.ContainerPool;
+import com.github.flordan.rolerunner.container.ContainerRecycler;
+import com.github.flordan.rolerunner.container.ContainerSpec;
+import com.github.flordan.rolerunner.container.ReadinessProbe;
+import com.github.flordan.rolerunner.container.Teardown;
 import com.github.flordan.rolerunner.exception.ImageNotFoundException;
 import com.github.flordan.rolerunner.image.Image;
 import com.github.flordan.rolerunner.image.ImageIdentifier;
 import com.github.flordan.rolerunner.image.ImageManager;
+import com.github.flordan.rolerunner.image.Prefetcher;
+import com.github.flordan.rolerunner.image.PullProgress;
+import com.github.flordan.rolerunner.metrics.ImageCounter;
+import com.github.flordan.rolerunner.metrics.Phase;
+import com.github.flordan.rolerunner.metrics.RoleRunnerMetrics;
+import com.github.flordan.rolerunner.scheduling.CoreAllocator;
 
+import java.time.Duration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 
 public abstract class RoleRunnerImpl implements RoleRunner, ImageManager.ImageHandler {
 
+    public static final int DEFAULT_START_FAN_OUT = 16;
+
     protected final ImageManager images;
     protected final ContainerManager containers;
+    private final Map<ImageIdentifier, ContainerPool> pools;
+    private final Map<ImageIdentifier, ContainerRecycler> recyclers;
+    private final ExecutorService poolRefiller;
+    private final ScheduledExecutorService deadlines;
+    private final ExecutorService starters;
+    private final Prefetcher prefetcher;
+    private final Teardown teardown;
+    private final AtomicBoolean shutDown;
+    private final Thread hook;
+    private volatile int startFanOut;
+    private volatile CoreAllocator cores;
 
     public RoleRunnerImpl() {
         this.images = new ImageManager(this);
         this.containers = new ContainerManager();
-        Runtime.getRuntime().addShutdownHook(new Thread(){
-            @Override
-            public void run () {
-                containers.clear();
-                images.clear();
-            }
+        this.pools = new ConcurrentHashMap<>();
+        this.recyclers = new ConcurrentHashMap<>();
+        this.poolRefiller = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "warm-pool-refiller");
+            t.setDaemon(true);
+            return t;
+        });
+        this.deadlines = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "role-deadlines");
+            t.setDaemon(true);
+            return t;
+        });
+        this.starters = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "role-starter");
+            t.setDaemon(true);
+            return t;
         });
+        this.startFanOut = DEFAULT_START_FAN_OUT;
+        this.prefetcher = new Prefetcher(images, this::fetchImageAsync);
+        this.teardown = new Teardown();
+        this.teardown.setPruner(this::pruneContainers);
+        this.shutDown = new AtomicBoolean();
+        RoleRunnerMetrics.register();
+        this.hook = new Thread(this::shutdown, "role-runner-shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    /**
+     * Tears down, within the teardown's deadline, every container of the runner, pooled ones included, and deletes
+     * the images obtained unless they are kept on exit. Called when the JVM exits unless called before, later calls
+     * return null.
+     */
+    public final Teardown.Report shutdown() {
+        if (!shutDown.compareAndSet(false, true)) {
+            return null;
+        }
+        if (Thread.currentThread() != hook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException ise) {
+                // The JVM is already exiting
+            }
+        }
+        prefetcher.shutdown();
+        List<Container> all = containers.getContainers();
+        for (ContainerPool pool : pools.values()) {
+            pool.seal();
+            all.addAll(pool.getContainers());
+        }
+        for (ContainerRecycler recycler : recyclers.values()) {
+            recycler.seal();
+            all.addAll(recycler.getContainers());
+        }
+        System.out.println("Tearing down " + all.size() + " containers.");
+        Teardown.Report report = teardown.run(all);
+        System.out.println(report);
+        poolRefiller.shutdown();
+        deadlines.shutdown();
+        starters.shutdown();
+        images.close(teardown.getDeadline().minus(report.getElapsed()));
+        closeEngine();
+        RoleRunnerMetrics.unregister();
+        return report;
+    }
+
+    /**
+     * Releases the engine once the runner has shut down, e.g. closing its connection. Nothing by default.
+     */
+    protected void closeEngine() {
+    }
+
+    /**
+     * Teardown settings used when the runner shuts down: concurrency, grace period before killing and deadline.
+     */
+    public final Teardown getTeardown() {
+        return teardown;
+    }
+
+    /**
+     * Removes in bulk from the engine every container the runner created, as a last resort when tearing down.
+     * Returns the number of containers removed.
+     */
+    protected int pruneContainers(Duration timeout) {
+        return 0;
     }
 
     public final boolean isImageAvailable(ImageIdentifier tag){
@@ -49,22 +168,505 @@ public abstract class RoleRunnerImpl implements RoleRunner, ImageManager.ImageHa
 
     public abstract Set<ImageIdentifier> getAvailableImages();
 
+    /**
+     * Manager of the images obtained, where the disk quota, pinned roles and whether images are kept on exit are set.
+     */
+    public final ImageManager getImageManager() {
+        return images;
+    }
+
+    /**
+     * Prefetcher pulling in the background the images the role request history predicts, idle unless enabled with
+     * setPrefetching.
+     */
+    public final Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Pulls in the background the images the role request history predicts, keeping the images prefetched and not yet
+     * requested within diskBudget bytes and the bytes prefetched in any hour within bandwidthBudget. Off by default; a
+     * budget of 0 turns it off again. Predictions need images requested at least twice; on a fresh node, load the
+     * history of a previous run or another node with ImageManager.setHistoryFile.
+     */
+    public final void setPrefetching(long diskBudget, long bandwidthBudget) {
+        if (diskBudget <= 0 || bandwidthBudget <= 0) {
+            prefetcher.stop();
+            return;
+        }
+        prefetcher.setDiskBudget(diskBudget);
+        prefetcher.setBandwidthBudget(bandwidthBudget);
+        prefetcher.start(Prefetcher.DEFAULT_PERIOD);
+    }
+
     public final void fetchImage(ImageIdentifier iId){
         images.obtainImage(iId, null);
     }
 
+    public final CompletableFuture<Image> fetchImageAsync(ImageIdentifier iId) {
+        return fetch(iId, null);
+    }
+
+    public final CompletableFuture<Image> fetchImageAsync(ImageIdentifier iId, Consumer<PullProgress> progress) {
+        return fetch(iId, progress);
+    }
+
+    private CompletableFuture<Image> fetch(ImageIdentifier iId, Consumer<PullProgress> progress) {
+        CompletableFuture<Image> future = new CompletableFuture<>();
+        images.obtainImage(iId, new ImageManager.ObtainCallback() {
+            @Override
+            public void obtained(Image img) {
+                future.complete(img);
+            }
+
+            @Override
+            public void failed(ImageIdentifier iId, Throwable cause) {
+                future.completeExceptionally(cause);
+            }
+
+            @Override
+            public void progress(PullProgress pullProgress) {
+                if (progress != null) {
+                    progress.accept(pullProgress);
+                }
+            }
+        });
+        return future;
+    }
+
     public final void startRole(ImageIdentifier iId) {
+        startRoleAsync(iId, null);
+    }
+
+    public final void startRole(ImageIdentifier iId, ContainerSpec spec) {
+        startRoleAsync(iId, spec, null);
+    }
+
+    public final CompletableFuture<Container> startRoleAsync(ImageIdentifier iId, Duration deadline) {
+        return startRoleAsync(iId, ContainerSpec.DEFAULT, deadline);
+    }
+
+    public final CompletableFuture<Container> startRoleAsync(ImageIdentifier iId, ContainerSpec spec,
+        Duration deadline) {
         System.out.println("Requesting role for image " + iId);
+        RoleRequest request = newRoleRequest(iId, spec, deadline);
+        if (!request.takeFromPool()) {
+            request.obtain();
+        }
+        return request.future;
+    }
+
+    /**
+     * Allocator of the cores given to the roles asking for dedicated ones; by default, the one of
+     * defaultCoreAllocator(), created on first use. Null if the engine's cores are unknown.
+     */
+    public final CoreAllocator getCoreAllocator() {
+        CoreAllocator allocator = cores;
+        if (allocator == null) {
+            synchronized (this) {
+                if (cores == null) {
+                    cores = defaultCoreAllocator();
+                }
+                allocator = cores;
+            }
+        }
+        return allocator;
+    }
+
+    /**
+     * Allocator used unless one is set: all the cores of this host, read from sysfs. Engines running the containers
+     * elsewhere override it. Runners sharing a host must be given disjoint allocators with setCoreAllocator.
+     */
+    protected CoreAllocator defaultCoreAllocator() {
+        return CoreAllocator.fromSystem();
+    }
+
+    /**
+     * Replaces the core allocator, e.g. to hand out only part of the host's cores. Roles already started keep theirs.
+     */
+    public final void setCoreAllocator(CoreAllocator cores) {
+        this.cores = cores;
+    }
+
+    public final int getStartFanOut() {
+        return startFanOut;
+    }
+
+    public final void setStartFanOut(int startFanOut) {
+        this.startFanOut = Math.max(1, startFanOut);
+    }
+
+    public final RoleBatch startRoles(Map<ImageIdentifier, Integer> roles) {
+        return startRoles(roles, null);
+    }
+
+    /**
+     * Starts several containers of several images at once. Each image is obtained once for all its containers and,
+     * once available, the containers are created and started in parallel with at most getStartFanOut() creations
+     * in flight for the batch.
+     */
+    public final RoleBatch startRoles(Map<ImageIdentifier, Integer> roles, Duration deadline) {
+        int total = 0;
+        for (Integer count : roles.values()) {
+            total += Math.max(0, count);
+        }
+        System.out.println("Requesting " + total + " roles for images " + roles.keySet());
+        RoleBatch batch = new RoleBatch(total);
+        StartWindow window = new StartWindow(startFanOut);
+        for (Map.Entry<ImageIdentifier, Integer> role : roles.entrySet()) {
+            ImageIdentifier iId = role.getKey();
+            List<RoleRequest> pending = new LinkedList<>();
+            for (int i = 0; i < role.getValue(); i++) {
+                RoleRequest request = newRoleRequest(iId, ContainerSpec.DEFAULT, deadline);
+                batch.track(request.future);
+                if (!request.takeFromPool()) {
+                    pending.add(request);
+                }
+            }
+            if (pending.isEmpty()) {
+                continue;
+            }
+            images.obtainImage(iId, new ImageManager.ObtainCallback() {
+                @Override
+                public void obtained(Image img) {
+                    for (RoleRequest request : pending) {
+                        // Held until the container is created so the image is not evicted in between
+                        images.hold(img);
+                        window.submit(() -> {
+                            try {
+                                request.obtained(img);
+                            } finally {
+                                images.release(img);
+                            }
+                        });
+                    }
+                }
+
+                @Override
+                public void failed(ImageIdentifier failedIId, Throwable cause) {
+                    for (RoleRequest request : pending) {
+                        request.failed(failedIId, cause);
+                    }
+                }
+
+                @Override
+                public boolean isAwaited() {
+                    return true;
+                }
+            });
+        }
+        return batch;
+    }
+
+    private RoleRequest newRoleRequest(ImageIdentifier iId, ContainerSpec spec, Duration deadline) {
+        RoleRequest request = new RoleRequest(iId, spec);
+        if (deadline != null) {
+            ScheduledFuture<?> timeout = deadlines.schedule(request::expire, deadline.toNanos(), TimeUnit.NANOSECONDS);
+            request.future.whenComplete((cntr, t) -> timeout.cancel(false));
+        }
+        return request;
+    }
+
+    public final CompletableFuture<Container> stopRoleAsync(Container cntr) {
+        CompletableFuture<Container> stopped = cntr.whenStatus(Container.Status.STOPPED);
+        cntr.stop();
+        return stopped;
+    }
+
+    public final CompletableFuture<Container> destroyRoleAsync(Container cntr) {
+        CompletableFuture<Container> destroyed = cntr.whenStatus(Container.Status.DESTROYED);
+        cntr.destroy();
+        return destroyed;
+    }
+
+    public final void setWarmPoolSize(ImageIdentifier iId, int size) {
+        ContainerPool pool = pools.computeIfAbsent(iId,
+            k -> new ContainerPool(k, 0, this::provisionPooledContainer, poolRefiller));
+        pool.setSize(size);
+    }
+
+    public final ContainerPool getWarmPool(ImageIdentifier iId) {
+        return pools.get(iId);
+    }
+
+    /**
+     * Keeps up to capacity stopped containers of the image to start them again for the following roles, rather than
+     * removing them and creating new ones. A capacity of 0 stops recycling the image's containers. If readOnlyRoot,
+     * the containers get a read-only root filesystem with tmpfs mounts on /tmp, /run and /var/tmp, so the files a
+     * role writes do not reach the next one; writes anywhere else fail (see ContainerSpec.isReadOnlyRoot).
+     */
+    public final void setRecycling(ImageIdentifier iId, int capacity, boolean readOnlyRoot) {
+        ContainerRecycler recycler = recyclers.computeIfAbsent(iId, k -> new ContainerRecycler(k, 0));
+        recycler.setReadOnlyRoot(readOnlyRoot);
+        recycler.setCapacity(capacity);
+    }
+
+    public final ContainerRecycler getRecycler(ImageIdentifier iId) {
+        return recyclers.get(iId);
+    }
+
+    private void createContainer(Image img, ImageIdentifier iId, ContainerSpec spec, ContainerManager monitor)
+        throws ImageNotFoundException {
+        ContainerRecycler recycler = recyclers.get(iId);
+        if (recycler != null && recycler.getCapacity() > 0) {
+            spec = spec.toBuilder().recyclable(recycler.isReadOnlyRoot()).build();
+        }
+        img.createContainer(monitor, spec);
+    }
+
+    private void provisionPooledContainer(ImageIdentifier iId, ContainerPool pool) {
         images.obtainImage(iId, new ImageManager.ObtainCallback() {
             @Override
             public void obtained(Image img) {
                 try {
-                    img.createContainer(containers);
-                } catch (ImageNotFoundException infe) {
-                    startRole(iId);
+                    createContainer(img, iId, ContainerSpec.DEFAULT, pool);
+                } catch (ImageNotFoundException | RuntimeException e) {
+                    pool.provisionFailed();
                 }
             }
+
+            @Override
+            public void failed(ImageIdentifier iId, Throwable cause) {
+                pool.provisionFailed();
+            }
         });
     }
 
+
+    /**
+     * Tracks a role request from the image being obtained until its container runs. The request acts as the monitor
+     * of the container being created and hands it over to the runner's ContainerManager once created. The dedicated
+     * cores it allocates are released when the container is destroyed or if none is created.
+     */
+    private class RoleRequest extends ContainerManager implements ImageManager.ObtainCallback {
+        private final ImageIdentifier iId;
+        private final ContainerSpec spec;
+        private final CompletableFuture<Container> future;
+        private final long requestedAt;
+        private final AtomicReference<CoreAllocator.Allocation> allocation;
+        private volatile CoreAllocator allocator;
+        private volatile boolean recycled;
+        private volatile boolean created;
+
+        public RoleRequest(ImageIdentifier iId, ContainerSpec spec) {
+            this.iId = iId;
+            this.spec = spec;
+            this.future = new CompletableFuture<>();
+            this.allocation = new AtomicReference<>();
+            this.requestedAt = System.nanoTime();
+            boolean available = images.isImageAvailable(iId);
+            images.roleRequested(iId);
+            prefetcher.requested(iId, available);
+            String image = iId.toString();
+            RoleRunnerMetrics.imageCounted(image, ImageCounter.ROLE_REQUESTED);
+            this.future.whenComplete((cntr, t) -> RoleRunnerMetrics.imageCounted(image,
+                t == null ? ImageCounter.ROLE_RUNNING : ImageCounter.ROLE_FAILED));
+        }
+
+        public void obtain() {
+            images.obtainImage(iId, this);
+        }
+
+        public boolean takeFromPool() {
+            ContainerRecycler recycler = recyclers.get(iId);
+            Container stopped = recycler != null ? recycler.handOut(containers, spec) : null;
+            if (stopped != null) {
+                RoleRunnerMetrics.imageCounted(iId.toString(), ImageCounter.ROLE_RECYCLED);
+                recycled = true;
+                assigned(stopped);
+                return true;
+            }
+            ContainerPool pool = pools.get(iId);
+            if (pool == null || !spec.equals(ContainerSpec.DEFAULT)) {
+                return false;
+            }
+            Container cntr = pool.handOut(containers);
+            if (cntr == null) {
+                return false;
+            }
+            assigned(cntr);
+            return true;
+        }
+
+        @Override
+        public void obtained(Image img) {
+            if (future.isDone()) {
+                // Expired or cancelled while obtaining the image; do not create the container
+                releaseCores();
+                return;
+            }
+            ContainerSpec resolved = spec;
+            if (spec.getDedicatedCores() > 0) {
+                CoreAllocator.Allocation pinned = allocation.get();
+                if (pinned == null) {
+                    allocator = getCoreAllocator();
+                    if (allocator == null) {
+                        future.completeExceptionally(new IllegalStateException("Cores of the engine unknown, "
+                            + "cannot dedicate any to role " + iId + "; set a CoreAllocator"));
+                        return;
+                    }
+                    pinned = allocator.allocate(spec.getDedicatedCores());
+                    if (pinned == null) {
+                        future.completeExceptionally(new IllegalStateException(
+                            "Not enough free cores to dedicate " + spec.getDedicatedCores() + " to role " + iId));
+                        return;
+                    }
+                    allocation.set(pinned);
+                }
+                resolved = spec.toBuilder().cpuset(pinned.getCpus(), pinned.getMems()).build();
+            }
+            try {
+                createContainer(img, iId, resolved, this);
+            } catch (ImageNotFoundException infe) {
+                obtain();
+            } catch (RuntimeException re) {
+                releaseCores();
+                future.completeExceptionally(re);
+            }
+        }
+
+        @Override
+        public void failed(ImageIdentifier iId, Throwable cause) {
+            releaseCores();
+            future.completeExceptionally(cause);
+        }
+
+        private void releaseCores() {
+            CoreAllocator.Allocation pinned = allocation.getAndSet(null);
+            if (pinned != null) {
+                allocator.release(pinned);
+            }
+        }
+
+        @Override
+        public boolean isAwaited() {
+            return !future.isDone();
+        }
+
+        @Override
+        public void createdContainer(Container cntr) {
+            RoleRunnerMetrics.phaseCompleted(Phase.REQUEST_TO_CREATE, System.nanoTime() - requestedAt);
+            cntr.whenStatus(Container.Status.DESTROYED).thenRun(this::releaseCores);
+            if (future.isDone()) {
+                cntr.destroy();
+                return;
+            }
+            created = true;
+            containers.adopt(cntr);
+            assigned(cntr);
+        }
+
+        public void assigned(Container cntr) {
+            ReadinessProbe probe = spec.getProbe();
+            if (probe != null && !probe.isSupportedBy(cntr)) {
+                // Retrying could never make the container ready
+                future.completeExceptionally(
+                    new IllegalArgumentException("Readiness probe " + probe + " not supported by " + cntr));
+                cntr.destroy();
+                return;
+            }
+            // Containers whose readiness is checked are handed over once ready rather than once running
+            Container.Status target = probe != null || cntr.isHealthChecked()
+                ? Container.Status.READY
+                : Container.Status.RUNNING;
+            cntr.whenStatus(target).whenComplete((running, t) -> {
+                if (t == null) {
+                    future.complete(running);
+                    running(cntr);
+                } else {
+                    future.completeExceptionally(t);
+                }
+            });
+            if (probe != null) {
+                cntr.whenStatus(Container.Status.RUNNING).thenRun(() -> probe(cntr, probe));
+            }
+            future.whenComplete((running, t) -> {
+                if (t != null) {
+                    cntr.destroy();
+                }
+            });
+        }
+
+        private void probe(Container cntr, ReadinessProbe probe) {
+            starters.execute(() -> {
+                if (future.isDone() || cntr.getStatus() != Container.Status.RUNNING) {
+                    return;
+                }
+                if (probe.check(cntr)) {
+                    cntr.ready();
+                } else {
+                    deadlines.schedule(() -> probe(cntr, probe), probe.getPeriod().toNanos(), TimeUnit.NANOSECONDS);
+                }
+            });
+        }
+
+        private void running(Container cntr) {
+            ContainerRecycler recycler = recyclers.get(iId);
+            if (recycler == null) {
+                return;
+            }
+            long elapsed = System.nanoTime() - requestedAt;
+            if (recycled) {
+                recycler.restarted(elapsed);
+            } else if (created) {
+                recycler.coldStarted(elapsed);
+            }
+            cntr.whenStatus(Container.Status.STOPPED).thenRun(() -> {
+                ContainerRecycler current = recyclers.get(iId);
+                if (current == null || !current.recycle(containers, cntr, spec)) {
+                    cntr.destroy();
+                }
+            });
+        }
+
+        public void expire() {
+            future.completeExceptionally(new TimeoutException("Role " + iId + " not running within the deadline"));
+        }
+    }
+
+
+    /**
+     * Runs the container creations of a batch on the starter threads keeping at most fanOut of them in flight.
+     */
+    private class StartWindow {
+        private final int fanOut;
+        private final Queue<Runnable> queued;
+        private final AtomicInteger inFlight;
+
+        public StartWindow(int fanOut) {
+            this.fanOut = fanOut;
+            this.queued = new ConcurrentLinkedQueue<>();
+            this.inFlight = new AtomicInteger();
+        }
+
+        public void submit(Runnable creation) {
+            queued.add(creation);
+            pump();
+        }
+
+        private void pump() {
+            while (!queued.isEmpty()) {
+                int current = inFlight.get();
+                if (current >= fanOut) {
+                    return;
+                }
+                if (!inFlight.compareAndSet(current, current + 1)) {
+                    continue;
+                }
+                Runnable creation = queued.poll();
+                if (creation == null) {
+                    inFlight.decrementAndGet();
+                    continue;
+                }
+                starters.execute(() -> {
+                    try {
+                        creation.run();
+                    } finally {
+                        inFlight.decrementAndGet();
+                        pump();
+                    }
+                });
+            }
+        }
+    }
 }
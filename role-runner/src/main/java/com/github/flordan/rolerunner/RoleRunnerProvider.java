@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner;
+
+import java.util.Properties;
+import java.util.ServiceLoader;
+
+/**
+ * Service provider interface of the container engines roles can run on. Providers are discovered with
+ * java.util.ServiceLoader; they should only reference their engine from create, so the classes of the engines not
+ * chosen are never loaded.
+ */
+public interface RoleRunnerProvider {
+
+    /**
+     * Name the engine is chosen by, e.g. "docker".
+     */
+    public String getName();
+
+    public RoleRunner create(Properties properties);
+
+    /**
+     * Creates a RoleRunner on the engine with the given name among those on the classpath.
+     *
+     * @throws IllegalArgumentException if no provider has that name
+     */
+    public static RoleRunner open(String name, Properties properties) {
+        for (RoleRunnerProvider provider : ServiceLoader.load(RoleRunnerProvider.class)) {
+            if (provider.getName().equals(name)) {
+                return provider.create(properties);
+            }
+        }
+        throw new IllegalArgumentException("No RoleRunner engine named " + name);
+    }
+}
@@ -17,34 +17,62 @@
 package com.github.flordan.rolerunner.container;
 
 import com.github.flordan.rolerunner.image.Image;
+import com.github.flordan.rolerunner.metrics.Phase;
+import com.github.flordan.rolerunner.metrics.RoleRunnerMetrics;
 
-import java.util.LinkedList;
-import java.util.Deque;
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public abstract class Container {
 
 
-    protected static enum Status {
+    public static enum Status {
         PENDING,
         CREATED,
         STARTING,
         RUNNING,
+        READY,
         STOPPING,
         STOPPED,
         DESTROYING,
         DESTROYED
     }
 
-    private static enum Action {
-        START,
-        STOP,
-        DESTROY
-    }
+    private static final Status[] STATUSES = Status.values();
+
+    /*
+     * The lifecycle word keeps the status ordinal in the lowest bits and the pending actions as a bitmask above it.
+     * Requests and daemon notifications update it with CAS loops, so every transition is won by a single thread and
+     * no node is allocated to queue the actions. A new request supersedes the opposite one still pending (start
+     * cancels a pending stop and vice versa) and a destroy supersedes both and cannot be revoked.
+     */
+    private static final int STATUS_MASK = 0xF;
+    private static final int START = 1 << 4;
+    private static final int STOP = 1 << 5;
+    private static final int DESTROY = 1 << 6;
+    private static final int ACTIONS_MASK = START | STOP | DESTROY;
+
+    private static final AtomicIntegerFieldUpdater<Container> LIFECYCLE =
+        AtomicIntegerFieldUpdater.newUpdater(Container.class, "lifecycle");
 
-    private final ContainerManager monitor;
+    private volatile ContainerManager monitor;
     private final Image image;
-    private Status state = Status.PENDING;
-    private final Deque<Action> pendingActions;
+    private volatile int lifecycle = Status.PENDING.ordinal();
+    // Waiters linked through themselves in registration order, so waiting allocates nothing but the future
+    private final Object waitersLock;
+    private volatile StatusWaiter firstWaiter;
+    private StatusWaiter lastWaiter;
+    private volatile long statusSince;
+    private volatile long startingSince;
+    private volatile boolean healthChecked;
+
+    // Registry bookkeeping; the indexed values are guarded by the container's monitor
+    volatile ContainerRegistry<?, ?> registry;
+    Status indexedStatus;
+    ContainerManager indexedMonitor;
 
     public Container(Image image) {
         this(image, null);
@@ -53,20 +81,146 @@ public abstract class Container {
     public Container(Image image, ContainerManager monitor) {
         this.image = image;
         this.monitor = monitor;
-        pendingActions = new LinkedList<>();
+        this.waitersLock = new Object();
+        this.statusSince = System.nanoTime();
     }
 
     public Image getImage() {
         return image;
     }
 
+    final void setMonitor(ContainerManager monitor) {
+        this.monitor = monitor;
+        reindex();
+    }
+
+    public final ContainerManager getMonitor() {
+        return this.monitor;
+    }
+
     public final Status getStatus() {
-        return this.state;
+        return STATUSES[lifecycle & STATUS_MASK];
+    }
+
+    /**
+     * Whether a destroy is pending or under way; such a container must not be handed to another role.
+     */
+    final boolean isDestroyRequested() {
+        int current = lifecycle;
+        return (current & DESTROY) != 0 || (current & STATUS_MASK) >= Status.DESTROYING.ordinal();
+    }
+
+    /**
+     * Whether the engine checks the container's health, and thus notifies when it becomes ready.
+     */
+    public final boolean isHealthChecked() {
+        return healthChecked;
+    }
+
+    protected final void setHealthChecked(boolean healthChecked) {
+        this.healthChecked = healthChecked;
+    }
+
+    private void reindex() {
+        ContainerRegistry<?, ?> registry = this.registry;
+        if (registry != null) {
+            registry.reindex(this);
+        }
+    }
+
+    /**
+     * Returns a future completed once the container reaches the given status; a ready container is also running. The
+     * future fails if the container is destroyed before reaching it.
+     */
+    public final CompletableFuture<Container> whenStatus(Status status) {
+        StatusWaiter waiter = new StatusWaiter(status);
+        Status current;
+        synchronized (waitersLock) {
+            StatusWaiter last = lastWaiter;
+            if (last == null) {
+                firstWaiter = waiter;
+            } else {
+                last.next = waiter;
+            }
+            lastWaiter = waiter;
+            // Re-check after registering: a transition not seen here finds the waiter once notified
+            current = getStatus();
+            if (!waiter.accepts(current)) {
+                return waiter;
+            }
+            lastWaiter = last;
+            if (last == null) {
+                firstWaiter = null;
+            } else {
+                last.next = null;
+            }
+        }
+        waiter.reached(this, current);
+        return waiter;
+    }
+
+    private void statusChanged(Status previous, Status status) {
+        long now = System.nanoTime();
+        Phase phase = phase(previous, status);
+        if (phase != null) {
+            RoleRunnerMetrics.phaseCompleted(phase, now - statusSince);
+        }
+        if (status == Status.STARTING) {
+            startingSince = now;
+        } else if (status == Status.READY && startingSince != 0) {
+            // Only the first time it gets ready after each start
+            RoleRunnerMetrics.phaseCompleted(Phase.START_TO_READY, now - startingSince);
+            startingSince = 0;
+        }
+        statusSince = now;
+        RoleRunnerMetrics.statusEntered(status);
+        reindex();
+        if (firstWaiter != null) {
+            // Claim all the waiters of this status before completing any: a completion may move the container on
+            // (e.g., destroying it once stopped) and must not fail the other waiters of this status. The claimed
+            // waiters are relinked, in order, into a chain of their own.
+            StatusWaiter reached = null;
+            StatusWaiter lastReached = null;
+            synchronized (waitersLock) {
+                StatusWaiter kept = null;
+                StatusWaiter waiter = firstWaiter;
+                while (waiter != null) {
+                    StatusWaiter next = waiter.next;
+                    if (waiter.accepts(status)) {
+                        if (kept == null) {
+                            firstWaiter = next;
+                        } else {
+                            kept.next = next;
+                        }
+                        if (next == null) {
+                            lastWaiter = kept;
+                        }
+                        waiter.next = null;
+                        if (lastReached == null) {
+                            reached = waiter;
+                        } else {
+                            lastReached.next = waiter;
+                        }
+                        lastReached = waiter;
+                    } else {
+                        kept = waiter;
+                    }
+                    waiter = next;
+                }
+            }
+            while (reached != null) {
+                StatusWaiter next = reached.next;
+                reached.next = null;
+                reached.reached(this, status);
+                reached = next;
+            }
+        }
     }
 
     public void created() {
         System.out.println("Container " + this + " has been created");
-        this.state = Status.CREATED;
+        transition(Status.CREATED);
+        ContainerManager monitor = this.monitor;
         if (monitor != null) {
             monitor.createdContainer(this);
         }
@@ -74,100 +228,254 @@ public abstract class Container {
     }
 
     public final void start() {
-        pendingActions.add(Action.START);
-        manageLifecycle();
+        request(START, STOP);
     }
 
     public abstract void specificStart();
 
     public void started() {
+        if (getStatus() == Status.READY) {
+            // Repeated notification; the container is still up
+            return;
+        }
         System.out.println("Container " + this + " has started");
-        this.state = Status.RUNNING;
+        transition(Status.RUNNING);
         manageLifecycle();
     }
 
+    /**
+     * Notifies that the running container passed its health check or readiness probe.
+     */
+    public void ready() {
+        if (transition(Status.RUNNING, Status.READY)) {
+            System.out.println("Container " + this + " is ready");
+            manageLifecycle();
+        }
+    }
+
+    /**
+     * Notifies that the ready container failed its health check; it stays running.
+     */
+    public void unready() {
+        if (transition(Status.READY, Status.RUNNING)) {
+            System.out.println("Container " + this + " is not ready");
+            manageLifecycle();
+        }
+    }
+
     public void stop() {
-        pendingActions.add(Action.STOP);
-        manageLifecycle();
+        request(STOP, START);
     }
 
     public abstract void specificStop();
 
     public void stopped() {
         System.out.println("Container " + this + " has stopped");
-        this.state = Status.STOPPED;
+        transition(Status.STOPPED);
         manageLifecycle();
     }
 
     public void destroy() {
-        pendingActions.add(Action.DESTROY);
-        manageLifecycle();
+        request(DESTROY, START | STOP);
     }
 
     public abstract void specificDestroy();
 
+    /**
+     * Asks the engine to end the container at once when stopping it takes too long. The lifecycle does not change
+     * until the engine reports the container stopped.
+     */
+    public void kill() {
+    }
+
+    /**
+     * Address where the container's ports can be reached, null if unknown. Used by TCP readiness probes.
+     */
+    public InetAddress getAddress() {
+        return null;
+    }
+
+    /**
+     * Whether the engine can run commands inside the container, as exec readiness probes need.
+     */
+    public abstract boolean canExec();
+
+    /**
+     * Runs a command inside the running container and returns its exit code, waiting at most the given time. Used by
+     * exec readiness probes; only called on containers that {@link #canExec() can run commands}.
+     */
+    public abstract int exec(List<String> command, Duration timeout);
+
     public void destroyed() {
-        this.state = Status.DESTROYED;
+        transition(Status.DESTROYED);
         this.image.removeContainer(this);
+        ContainerManager monitor = this.monitor;
         if (monitor != null) {
             monitor.destroyedContainer(this);
         }
+    }
+
+    private void request(int action, int superseded) {
+        int current;
+        int next;
+        do {
+            current = lifecycle;
+            if ((current & DESTROY) != 0 || (current & STATUS_MASK) >= Status.DESTROYING.ordinal()) {
+                return;
+            }
+            next = (current & ~superseded) | action;
+        } while (!LIFECYCLE.compareAndSet(this, current, next));
         manageLifecycle();
     }
 
-    private void manageLifecycle() {
-        if (pendingActions.isEmpty()) {
-            return;
+    private void transition(Status status) {
+        int current;
+        int next;
+        do {
+            current = lifecycle;
+            if ((current & STATUS_MASK) == Status.DESTROYED.ordinal()) {
+                return;
+            }
+            next = status == Status.DESTROYED ? status.ordinal() : (current & ~STATUS_MASK) | status.ordinal();
+        } while (!LIFECYCLE.compareAndSet(this, current, next));
+        if ((current & STATUS_MASK) != status.ordinal()) {
+            statusChanged(STATUSES[current & STATUS_MASK], status);
         }
-        Action action;
-        switch (state) {
-            case CREATED:
-                action = pendingActions.poll();
-                switch (action) {
-                    case START:
-                        state = Status.STARTING;
+    }
+
+    private boolean transition(Status from, Status to) {
+        int current;
+        do {
+            current = lifecycle;
+            if ((current & STATUS_MASK) != from.ordinal()) {
+                return false;
+            }
+        } while (!LIFECYCLE.compareAndSet(this, current, (current & ~STATUS_MASK) | to.ordinal()));
+        statusChanged(from, to);
+        return true;
+    }
+
+    private void manageLifecycle() {
+        while (true) {
+            int current = lifecycle;
+            int pending = current & ACTIONS_MASK;
+            if (pending == 0) {
+                return;
+            }
+            Status status = STATUSES[current & STATUS_MASK];
+            Status nextStatus;
+            int nextPending;
+            switch (status) {
+                case CREATED:
+                    if ((pending & DESTROY) != 0) {
+                        nextStatus = Status.DESTROYING;
+                        nextPending = 0;
+                    } else if ((pending & START) != 0) {
+                        nextStatus = Status.STARTING;
+                        nextPending = pending & ~START;
+                    } else {
+                        nextStatus = Status.STOPPED;
+                        nextPending = pending & ~STOP;
+                    }
+                    break;
+                case RUNNING:
+                case READY:
+                    if ((pending & DESTROY) != 0) {
+                        // Stop first, the destroy remains pending until the container has stopped
+                        nextStatus = Status.STOPPING;
+                        nextPending = pending;
+                    } else if ((pending & STOP) != 0) {
+                        nextStatus = Status.STOPPING;
+                        nextPending = pending & ~STOP;
+                    } else {
+                        nextStatus = status;
+                        nextPending = pending & ~START;
+                    }
+                    break;
+                case STOPPED:
+                    if ((pending & DESTROY) != 0) {
+                        nextStatus = Status.DESTROYING;
+                        nextPending = 0;
+                    } else if ((pending & START) != 0) {
+                        // Containers kept by the engine once stopped can be started again
+                        nextStatus = Status.STARTING;
+                        nextPending = pending & ~START;
+                    } else {
+                        nextStatus = Status.STOPPED;
+                        nextPending = 0;
+                    }
+                    break;
+                default:
+                    // wait until change
+                    return;
+            }
+            int next = nextPending | nextStatus.ordinal();
+            if (!LIFECYCLE.compareAndSet(this, current, next)) {
+                continue;
+            }
+            if (nextStatus != status) {
+                statusChanged(status, nextStatus);
+                switch (nextStatus) {
+                    case STARTING:
                         specificStart();
                         break;
-                    case STOP:
-                        state = Status.STOPPED;
+                    case STOPPING:
+                        specificStop();
                         break;
-                    case DESTROY:
-                        state = Status.DESTROYING;
+                    case DESTROYING:
                         specificDestroy();
                         break;
+                    default:
+                        // No engine action needed
                 }
-                break;
+            }
+        }
+    }
+
+    private static Phase phase(Status previous, Status status) {
+        switch (status) {
+            case STARTING:
+                return previous == Status.CREATED ? Phase.CREATE_TO_START : null;
             case RUNNING:
-                action = pendingActions.poll();
-                switch (action) {
-                    case START:
-                        break;
-                    case STOP:
-                        state = Status.STOPPING;
-                        specificStop();
-                        break;
-                    case DESTROY:
-                        state = Status.STOPPING;
-                        pendingActions.add(Action.DESTROY);
-                        specificStop();
-                        break;
-                }
-                break;
+                return previous == Status.STARTING ? Phase.START_TO_RUNNING : null;
             case STOPPED:
-                action = pendingActions.poll();
-                switch (action) {
-                    case START:
-                        break;
-                    case STOP:
-                        break;
-                    case DESTROY:
-                        state = Status.DESTROYING;
-                        specificDestroy();
-                        break;
-                }
-                break;
+                return previous == Status.STOPPING ? Phase.STOP : null;
+            case DESTROYED:
+                return previous == Status.DESTROYING ? Phase.DESTROY : null;
             default:
-                // wait until change
+                return null;
+        }
+    }
+
+
+    private static class StatusWaiter extends CompletableFuture<Container> {
+        private final Status target;
+        // Guarded by the container's waiters lock while registered
+        private StatusWaiter next;
+
+        public StatusWaiter(Status target) {
+            this.target = target;
+        }
+
+        /**
+         * Whether the waiter is done with the given status: it is the awaited one, the container can no longer reach
+         * it or the future was already completed (e.g., cancelled).
+         */
+        public boolean accepts(Status status) {
+            return isDone() || status == target || (target == Status.RUNNING && status == Status.READY)
+                || status == Status.DESTROYED;
+        }
+
+        public void reached(Container cntr, Status status) {
+            if (isDone()) {
+                return;
+            }
+            if (status == target || (target == Status.RUNNING && status == Status.READY)) {
+                complete(cntr);
+            } else if (status == Status.DESTROYED) {
+                completeExceptionally(
+                    new IllegalStateException("Container " + cntr + " destroyed before reaching " + target));
+            }
         }
     }
 }
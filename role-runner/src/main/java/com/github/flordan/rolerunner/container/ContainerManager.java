@@ -16,46 +16,62 @@
  */
 package com.github.flordan.rolerunner.container;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ContainerManager {
 
-    private final List<Container> containers;
+    private final Set<Container> containers;
     public ContainerManager() {
-        this.containers = new LinkedList<>();
+        this.containers = ConcurrentHashMap.newKeySet();
     }
 
 
     public void createdContainer(Container cntr) {
-        containers.add(cntr);
+        track(cntr);
         cntr.start();
     }
 
     public void destroyedContainer(Container cntr) {
-        containers.remove(cntr);
-        synchronized (this) {
-            this.notify();
-        }
-    }
-
-    public final void clear() {
-        List<Container> toDelete = new LinkedList<>();
-        for (Container cntr : containers) {
-            toDelete.add(cntr);
-        }
-        for (Container cntr : toDelete) {
-            cntr.destroy();
-        }
+        untrack(cntr);
+    }
+
+    public final void adopt(Container cntr) {
+        track(cntr);
+        cntr.setMonitor(this);
+        cntr.start();
+    }
+
+    protected final void track(Container cntr) {
+        containers.add(cntr);
+    }
+
+    protected final boolean untrack(Container cntr) {
+        return containers.remove(cntr);
+    }
+
+    protected final boolean isEmpty() {
+        return containers.isEmpty();
+    }
+
+    public final int size() {
+        return containers.size();
+    }
+
+    public final List<Container> getContainers() {
+        return new ArrayList<>(containers);
+    }
+
+    public final Teardown.Report clear() {
+        return clear(new Teardown());
+    }
+
+    public final Teardown.Report clear(Teardown teardown) {
         System.out.println("Waiting for all containers to be removed.");
-        synchronized (this) {
-            while (!containers.isEmpty()) {
-                try {
-                    this.wait();
-                }catch(InterruptedException ie){
-                    // Do nothing
-                }
-            }
-        }
+        Teardown.Report report = teardown.run(getContainers());
+        System.out.println(report);
+        return report;
     }
 }
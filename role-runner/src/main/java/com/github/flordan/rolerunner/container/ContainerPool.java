@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.container;
+
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a set of created but not started containers of an image ready to be handed out to a ContainerManager.
+ */
+public class ContainerPool extends ContainerManager {
+
+    public interface Provisioner {
+        public void provision(ImageIdentifier iId, ContainerPool pool);
+    }
+
+    private final ImageIdentifier iId;
+    private final Provisioner provisioner;
+    private final Executor refiller;
+    private final Deque<Container> idle;
+    private final AtomicInteger idleCount;
+    private final AtomicInteger provisioning;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private volatile int size;
+    private volatile boolean closed;
+
+    public ContainerPool(ImageIdentifier iId, int size, Provisioner provisioner, Executor refiller) {
+        this.iId = iId;
+        this.size = size;
+        this.provisioner = provisioner;
+        this.refiller = refiller;
+        this.idle = new ConcurrentLinkedDeque<>();
+        this.idleCount = new AtomicInteger();
+        this.provisioning = new AtomicInteger();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.closed = false;
+    }
+
+    public ImageIdentifier getImageIdentifier() {
+        return iId;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = Math.max(0, size);
+        trim();
+        refill();
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public int getProvisioningCount() {
+        return provisioning.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public void createdContainer(Container cntr) {
+        provisioning.decrementAndGet();
+        track(cntr);
+        if (closed) {
+            cntr.destroy();
+            return;
+        }
+        idle.add(cntr);
+        idleCount.incrementAndGet();
+        trim();
+    }
+
+    @Override
+    public void destroyedContainer(Container cntr) {
+        boolean wasIdle = idle.remove(cntr);
+        if (wasIdle) {
+            idleCount.decrementAndGet();
+        }
+        super.destroyedContainer(cntr);
+        if (wasIdle) {
+            refill();
+        }
+    }
+
+    /**
+     * Moves one of the idle containers to the target manager, which starts it. Returns null if the pool was empty.
+     */
+    public final Container handOut(ContainerManager target) {
+        Container cntr = idle.poll();
+        if (cntr == null) {
+            misses.incrementAndGet();
+        } else {
+            idleCount.decrementAndGet();
+            hits.incrementAndGet();
+            untrack(cntr);
+            target.adopt(cntr);
+        }
+        refill();
+        return cntr;
+    }
+
+    public final void provisionFailed() {
+        provisioning.decrementAndGet();
+    }
+
+    public final void refill() {
+        while (!closed) {
+            int current = provisioning.get();
+            if (idleCount.get() + current >= size) {
+                return;
+            }
+            if (provisioning.compareAndSet(current, current + 1)) {
+                refiller.execute(() -> {
+                    try {
+                        provisioner.provision(iId, this);
+                    } catch (RuntimeException re) {
+                        provisionFailed();
+                    }
+                });
+            }
+        }
+    }
+
+    private void trim() {
+        while (idleCount.get() > size) {
+            Container cntr = idle.pollLast();
+            if (cntr == null) {
+                return;
+            }
+            idleCount.decrementAndGet();
+            cntr.destroy();
+        }
+    }
+
+    /**
+     * Stops refilling the pool and handing out its containers, leaving them to be torn down by the caller.
+     */
+    public final void seal() {
+        this.closed = true;
+        while (idle.poll() != null) {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    public final void close() {
+        this.closed = true;
+        Container cntr;
+        while ((cntr = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            cntr.destroy();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.container;
+
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps up to a given number of stopped containers of an image to start them again for later roles with the same spec
+ * instead of creating new ones. It also measures how often roles reuse a container and the start latency that saves.
+ */
+public class ContainerRecycler extends ContainerManager {
+
+    private final ImageIdentifier iId;
+    private final Deque<Container> stopped;
+    private final Map<Container, ContainerSpec> specs;
+    private final AtomicInteger stoppedCount;
+    private final AtomicLong reuses;
+    private final AtomicLong misses;
+    private final AtomicLong discarded;
+    private final AtomicLong coldStarts;
+    private final AtomicLong coldStartNanos;
+    private final AtomicLong restartNanos;
+    private volatile int capacity;
+    private volatile boolean readOnlyRoot;
+    private volatile boolean closed;
+
+    public ContainerRecycler(ImageIdentifier iId, int capacity) {
+        this.iId = iId;
+        this.capacity = capacity;
+        this.stopped = new ConcurrentLinkedDeque<>();
+        this.specs = new ConcurrentHashMap<>();
+        this.stoppedCount = new AtomicInteger();
+        this.reuses = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.discarded = new AtomicLong();
+        this.coldStarts = new AtomicLong();
+        this.coldStartNanos = new AtomicLong();
+        this.restartNanos = new AtomicLong();
+        this.readOnlyRoot = false;
+        this.closed = false;
+    }
+
+    public ImageIdentifier getImageIdentifier() {
+        return iId;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        trim();
+    }
+
+    /**
+     * Whether the containers are created with a read-only root filesystem, writable only on tmpfs mounts emptied on
+     * every stop, so each reuse starts from the image's content.
+     */
+    public boolean isReadOnlyRoot() {
+        return readOnlyRoot;
+    }
+
+    public void setReadOnlyRoot(boolean readOnlyRoot) {
+        this.readOnlyRoot = readOnlyRoot;
+    }
+
+    public int getStoppedCount() {
+        return stoppedCount.get();
+    }
+
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Stopped containers destroyed because the recycler was full.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * Share of the roles requested that were started on a recycled container.
+     */
+    public double getReuseRate() {
+        long reused = reuses.get();
+        long total = reused + misses.get();
+        return total == 0 ? 0 : (double) reused / total;
+    }
+
+    /**
+     * Start latency saved by the reuses: the mean request-to-running time of new containers minus the one measured
+     * for each reuse. Zero until a new container has been started.
+     */
+    public long getSavedNanos() {
+        long cold = coldStarts.get();
+        if (cold == 0) {
+            return 0;
+        }
+        return Math.max(0, reuses.get() * (coldStartNanos.get() / cold) - restartNanos.get());
+    }
+
+    /**
+     * Moves a stopped container, started for a role with the given spec, from its manager to the recycler. Returns
+     * false, leaving the container where it was, if it is not stopped or the recycler is full or closed.
+     */
+    public final boolean recycle(ContainerManager from, Container cntr, ContainerSpec spec) {
+        if (closed || cntr.getStatus() != Container.Status.STOPPED || cntr.isDestroyRequested()
+            || stoppedCount.get() >= capacity) {
+            discarded.incrementAndGet();
+            return false;
+        }
+        from.untrack(cntr);
+        track(cntr);
+        cntr.setMonitor(this);
+        specs.put(cntr, spec);
+        stopped.add(cntr);
+        stoppedCount.incrementAndGet();
+        trim();
+        return true;
+    }
+
+    /**
+     * Moves one of the stopped containers started with the given spec to the target manager, which starts it again.
+     * Returns null if there was none.
+     */
+    public final Container handOut(ContainerManager target, ContainerSpec spec) {
+        for (Container cntr : stopped) {
+            // Containers already being destroyed stay until they are gone
+            if (!spec.equals(specs.get(cntr)) || cntr.getStatus() != Container.Status.STOPPED
+                || cntr.isDestroyRequested()) {
+                continue;
+            }
+            if (!stopped.remove(cntr)) {
+                // Taken by a concurrent request
+                continue;
+            }
+            stoppedCount.decrementAndGet();
+            specs.remove(cntr);
+            untrack(cntr);
+            reuses.incrementAndGet();
+            target.adopt(cntr);
+            return cntr;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Records the time from the request to the container running for a role started on a new container.
+     */
+    public final void coldStarted(long nanos) {
+        coldStarts.incrementAndGet();
+        coldStartNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records the time from the request to the container running for a role started on a recycled container.
+     */
+    public final void restarted(long nanos) {
+        restartNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public void destroyedContainer(Container cntr) {
+        if (stopped.remove(cntr)) {
+            stoppedCount.decrementAndGet();
+        }
+        specs.remove(cntr);
+        super.destroyedContainer(cntr);
+    }
+
+    private void trim() {
+        while (stoppedCount.get() > capacity) {
+            Container cntr = stopped.pollFirst();
+            if (cntr == null) {
+                return;
+            }
+            stoppedCount.decrementAndGet();
+            discarded.incrementAndGet();
+            cntr.destroy();
+        }
+    }
+
+    /**
+     * Stops recycling and handing out containers, leaving the stopped ones to be torn down by the caller.
+     */
+    public final void seal() {
+        this.closed = true;
+        while (stopped.poll() != null) {
+            stoppedCount.decrementAndGet();
+        }
+        specs.clear();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.container;
+
+import com.github.flordan.rolerunner.image.Image;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent registry of containers keyed by an engine-specific identifier. Besides the lookup by id, it keeps
+ * secondary indexes of the containers by image, by status and by owning ContainerManager that are updated as the
+ * containers change.
+ */
+public class ContainerRegistry<K, C extends Container> {
+
+    private final Map<K, C> byId;
+    private final Map<Image, Set<C>> byImage;
+    private final Map<ContainerManager, Set<C>> byMonitor;
+    private final Map<Container.Status, Set<C>> byStatus;
+
+    public ContainerRegistry() {
+        this.byId = new ConcurrentHashMap<>();
+        this.byImage = new ConcurrentHashMap<>();
+        this.byMonitor = new ConcurrentHashMap<>();
+        this.byStatus = new EnumMap<>(Container.Status.class);
+        for (Container.Status status : Container.Status.values()) {
+            this.byStatus.put(status, ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    public C get(K id) {
+        return byId.get(id);
+    }
+
+    public boolean contains(K id) {
+        return byId.containsKey(id);
+    }
+
+    public Set<K> getIds() {
+        return Collections.unmodifiableSet(byId.keySet());
+    }
+
+    public Iterable<C> getAll() {
+        return Collections.unmodifiableCollection(byId.values());
+    }
+
+    public Set<C> getByImage(Image image) {
+        Set<C> containers = byImage.get(image);
+        return containers == null ? Collections.emptySet() : Collections.unmodifiableSet(containers);
+    }
+
+    public Set<C> getByStatus(Container.Status status) {
+        return Collections.unmodifiableSet(byStatus.get(status));
+    }
+
+    public Set<C> getByMonitor(ContainerManager monitor) {
+        Set<C> containers = byMonitor.get(monitor);
+        return containers == null ? Collections.emptySet() : Collections.unmodifiableSet(containers);
+    }
+
+    public boolean register(K id, C cntr) {
+        if (byId.putIfAbsent(id, cntr) != null) {
+            return false;
+        }
+        Image image = cntr.getImage();
+        if (image != null) {
+            byImage.compute(image, (i, containers) -> addTo(containers, cntr));
+        }
+        synchronized (cntr) {
+            cntr.registry = this;
+        }
+        reindex(cntr);
+        return true;
+    }
+
+    public C unregister(K id) {
+        C cntr = byId.remove(id);
+        if (cntr == null) {
+            return null;
+        }
+        Image image = cntr.getImage();
+        if (image != null) {
+            byImage.computeIfPresent(image, (i, containers) -> {
+                containers.remove(cntr);
+                return containers.isEmpty() ? null : containers;
+            });
+        }
+        synchronized (cntr) {
+            cntr.registry = null;
+            if (cntr.indexedStatus != null) {
+                byStatus.get(cntr.indexedStatus).remove(cntr);
+                cntr.indexedStatus = null;
+            }
+            if (cntr.indexedMonitor != null) {
+                removeFromMonitor(cntr.indexedMonitor, cntr);
+                cntr.indexedMonitor = null;
+            }
+        }
+        return cntr;
+    }
+
+    @SuppressWarnings("unchecked")
+    final void reindex(Container container) {
+        C cntr = (C) container;
+        synchronized (cntr) {
+            if (cntr.registry != this) {
+                return;
+            }
+            Container.Status status = cntr.getStatus();
+            if (status != cntr.indexedStatus) {
+                if (cntr.indexedStatus != null) {
+                    byStatus.get(cntr.indexedStatus).remove(cntr);
+                }
+                byStatus.get(status).add(cntr);
+                cntr.indexedStatus = status;
+            }
+            ContainerManager monitor = cntr.getMonitor();
+            if (monitor != cntr.indexedMonitor) {
+                if (cntr.indexedMonitor != null) {
+                    removeFromMonitor(cntr.indexedMonitor, cntr);
+                }
+                if (monitor != null) {
+                    byMonitor.compute(monitor, (m, containers) -> addTo(containers, cntr));
+                }
+                cntr.indexedMonitor = monitor;
+            }
+        }
+    }
+
+    private Set<C> addTo(Set<C> containers, C cntr) {
+        if (containers == null) {
+            containers = ConcurrentHashMap.newKeySet();
+        }
+        containers.add(cntr);
+        return containers;
+    }
+
+    private void removeFromMonitor(ContainerManager monitor, C cntr) {
+        byMonitor.computeIfPresent(monitor, (m, containers) -> {
+            containers.remove(cntr);
+            return containers.isEmpty() ? null : containers;
+        });
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.container;
+
+import com.github.flordan.rolerunner.scheduling.Resources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * What a role's container runs and what it may use: command, environment, binds, CPU and memory limits and the cores
+ * it is pinned to. Roles asking for dedicated cores get a cpuset of their own from the runner's CoreAllocator. A
+ * readiness probe makes the role start only once the container passes it.
+ */
+public final class ContainerSpec {
+
+    /**
+     * Spec of the roles started without one: the colmena volume bound to /colmena and a sleeping command.
+     */
+    public static final ContainerSpec DEFAULT = builder()
+        .bind("colmena", "/colmena")
+        .command("sleep", "1000")
+        .build();
+
+    private final List<String> command;
+    private final Map<String, String> env;
+    private final Map<String, String> binds;
+    private final long memory;
+    private final double cpus;
+    private final int dedicatedCores;
+    private final String cpusetCpus;
+    private final String cpusetMems;
+    private final boolean recyclable;
+    private final boolean readOnlyRoot;
+    private final ReadinessProbe probe;
+
+    private ContainerSpec(Builder builder) {
+        this.command = builder.command == null ? null : Collections.unmodifiableList(new ArrayList<>(builder.command));
+        this.env = Collections.unmodifiableMap(new LinkedHashMap<>(builder.env));
+        this.binds = Collections.unmodifiableMap(new LinkedHashMap<>(builder.binds));
+        this.memory = builder.memory;
+        this.cpus = builder.cpus;
+        this.dedicatedCores = builder.dedicatedCores;
+        this.cpusetCpus = builder.cpusetCpus;
+        this.cpusetMems = builder.cpusetMems;
+        this.recyclable = builder.recyclable;
+        this.readOnlyRoot = builder.readOnlyRoot;
+        this.probe = builder.probe;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder initialised with the settings of this spec.
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.command = command;
+        builder.env.putAll(env);
+        builder.binds.putAll(binds);
+        builder.memory = memory;
+        builder.cpus = cpus;
+        builder.dedicatedCores = dedicatedCores;
+        builder.cpusetCpus = cpusetCpus;
+        builder.cpusetMems = cpusetMems;
+        builder.recyclable = recyclable;
+        builder.readOnlyRoot = readOnlyRoot;
+        builder.probe = probe;
+        return builder;
+    }
+
+    /**
+     * Command run by the container, null to run the image's default one.
+     */
+    public List<String> getCommand() {
+        return command;
+    }
+
+    public Map<String, String> getEnv() {
+        return env;
+    }
+
+    /**
+     * Volumes or host paths bound into the container, by the path they are mounted at.
+     */
+    public Map<String, String> getBinds() {
+        return binds;
+    }
+
+    /**
+     * Memory limit in bytes, 0 for none.
+     */
+    public long getMemory() {
+        return memory;
+    }
+
+    /**
+     * CPU quota in number of CPUs, 0 for none.
+     */
+    public double getCpus() {
+        return cpus;
+    }
+
+    public int getDedicatedCores() {
+        return dedicatedCores;
+    }
+
+    /**
+     * CPUs the container is pinned to in cpuset format (e.g. 0-3,8), null if not pinned.
+     */
+    public String getCpusetCpus() {
+        return cpusetCpus;
+    }
+
+    /**
+     * NUMA nodes the container allocates memory from in cpuset format, null for any.
+     */
+    public String getCpusetMems() {
+        return cpusetMems;
+    }
+
+    public boolean isRecyclable() {
+        return recyclable;
+    }
+
+    /**
+     * Whether a recyclable container runs with a read-only root filesystem so nothing a role writes outlives its run.
+     * Only /tmp, /run and /var/tmp are writable, as tmpfs mounts emptied on every stop; writes anywhere else (e.g.
+     * /var/log or application data directories) fail, so only images that write nowhere else should use it. The
+     * writable layer is not reset otherwise: without it, recycled containers keep the files of previous runs.
+     */
+    public boolean isReadOnlyRoot() {
+        return readOnlyRoot;
+    }
+
+    /**
+     * Probe telling when the container is ready, null to rely on the image's HEALTHCHECK, if any.
+     */
+    public ReadinessProbe getProbe() {
+        return probe;
+    }
+
+    /**
+     * Resources the role needs: its dedicated cores or CPU quota and its memory limit.
+     */
+    public Resources getDemand() {
+        return new Resources(dedicatedCores > 0 ? dedicatedCores : cpus, memory);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ContainerSpec)) {
+            return false;
+        }
+        ContainerSpec other = (ContainerSpec) o;
+        return memory == other.memory
+            && Double.compare(cpus, other.cpus) == 0
+            && dedicatedCores == other.dedicatedCores
+            && recyclable == other.recyclable
+            && readOnlyRoot == other.readOnlyRoot
+            && Objects.equals(command, other.command)
+            && env.equals(other.env)
+            && binds.equals(other.binds)
+            && Objects.equals(cpusetCpus, other.cpusetCpus)
+            && Objects.equals(cpusetMems, other.cpusetMems)
+            && Objects.equals(probe, other.probe);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(command, env, binds, memory, cpus, dedicatedCores, cpusetCpus, cpusetMems, recyclable,
+            readOnlyRoot, probe);
+    }
+
+
+    public static class Builder {
+        private List<String> command;
+        private final Map<String, String> env;
+        private final Map<String, String> binds;
+        private long memory;
+        private double cpus;
+        private int dedicatedCores;
+        private String cpusetCpus;
+        private String cpusetMems;
+        private boolean recyclable;
+        private boolean readOnlyRoot;
+        private ReadinessProbe probe;
+
+        private Builder() {
+            this.env = new LinkedHashMap<>();
+            this.binds = new LinkedHashMap<>();
+        }
+
+        public Builder command(String... command) {
+            this.command = command == null ? null : Arrays.asList(command);
+            return this;
+        }
+
+        public Builder env(String name, String value) {
+            this.env.put(name, value);
+            return this;
+        }
+
+        /**
+         * Binds a named volume or a host path into the container at the given path.
+         */
+        public Builder bind(String source, String path) {
+            this.binds.put(path, source);
+            return this;
+        }
+
+        public Builder memory(long bytes) {
+            this.memory = bytes;
+            return this;
+        }
+
+        public Builder cpus(double cpus) {
+            this.cpus = cpus;
+            return this;
+        }
+
+        /**
+         * Number of cores the role gets for itself; the runner pins the container to them.
+         */
+        public Builder dedicatedCores(int cores) {
+            this.dedicatedCores = cores;
+            return this;
+        }
+
+        public Builder cpuset(String cpus, String mems) {
+            this.cpusetCpus = cpus;
+            this.cpusetMems = mems;
+            return this;
+        }
+
+        /**
+         * Keeps the container once stopped so it can be started again; set by the runner on the images it recycles.
+         * If readOnlyRoot, its root filesystem is read-only, see isReadOnlyRoot.
+         */
+        public Builder recyclable(boolean readOnlyRoot) {
+            this.recyclable = true;
+            this.readOnlyRoot = readOnlyRoot;
+            return this;
+        }
+
+        public Builder probe(ReadinessProbe probe) {
+            this.probe = probe;
+            return this;
+        }
+
+        public ContainerSpec build() {
+            return new ContainerSpec(this);
+        }
+    }
+}
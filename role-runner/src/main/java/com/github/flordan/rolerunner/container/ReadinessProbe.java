@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.container;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Check run from the runner on a running container, until it passes, to tell when the role can serve. Meant for
+ * images without a HEALTHCHECK; those with one become ready on the engine's health events.
+ */
+public abstract class ReadinessProbe {
+
+    public static final Duration DEFAULT_PERIOD = Duration.ofMillis(500);
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(1);
+
+    private final Duration period;
+    private final Duration timeout;
+
+    protected ReadinessProbe(Duration period, Duration timeout) {
+        this.period = period;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Ready once a TCP connection to the given port of the container is accepted.
+     */
+    public static ReadinessProbe tcp(int port) {
+        return new Tcp(port, DEFAULT_PERIOD, DEFAULT_TIMEOUT);
+    }
+
+    public static ReadinessProbe tcp(int port, Duration period, Duration timeout) {
+        return new Tcp(port, period, timeout);
+    }
+
+    /**
+     * Ready once the command, run inside the container, exits with 0.
+     */
+    public static ReadinessProbe exec(String... command) {
+        return new Exec(Arrays.asList(command), DEFAULT_PERIOD, DEFAULT_TIMEOUT);
+    }
+
+    public static ReadinessProbe exec(List<String> command, Duration period, Duration timeout) {
+        return new Exec(command, period, timeout);
+    }
+
+    /**
+     * Time between two checks.
+     */
+    public Duration getPeriod() {
+        return period;
+    }
+
+    /**
+     * Time a check may take before it counts as failed.
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Whether the container's engine can run this check at all; checked before probing.
+     */
+    public boolean isSupportedBy(Container cntr) {
+        return true;
+    }
+
+    /**
+     * Runs the check once; returns whether the container is ready.
+     */
+    public abstract boolean check(Container cntr);
+
+
+    private static final class Tcp extends ReadinessProbe {
+        private final int port;
+
+        private Tcp(int port, Duration period, Duration timeout) {
+            super(period, timeout);
+            this.port = port;
+        }
+
+        @Override
+        public boolean check(Container cntr) {
+            InetAddress address = cntr.getAddress();
+            if (address == null) {
+                return false;
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(address, port), (int) getTimeout().toMillis());
+                return true;
+            } catch (IOException ioe) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Tcp && ((Tcp) o).port == port && ((Tcp) o).getPeriod().equals(getPeriod())
+                && ((Tcp) o).getTimeout().equals(getTimeout());
+        }
+
+        @Override
+        public int hashCode() {
+            return port;
+        }
+
+        @Override
+        public String toString() {
+            return "tcp:" + port;
+        }
+    }
+
+
+    private static final class Exec extends ReadinessProbe {
+        private final List<String> command;
+
+        private Exec(List<String> command, Duration period, Duration timeout) {
+            super(period, timeout);
+            this.command = List.copyOf(command);
+        }
+
+        @Override
+        public boolean isSupportedBy(Container cntr) {
+            return cntr.canExec();
+        }
+
+        @Override
+        public boolean check(Container cntr) {
+            try {
+                return cntr.exec(command, getTimeout()) == 0;
+            } catch (RuntimeException re) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Exec && ((Exec) o).command.equals(command) && ((Exec) o).getPeriod().equals(getPeriod())
+                && ((Exec) o).getTimeout().equals(getTimeout());
+        }
+
+        @Override
+        public int hashCode() {
+            return command.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "exec:" + String.join(" ", command);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.container;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Destroys a set of containers in parallel, with at most a given number of them being torn down at once. Containers
+ * not destroyed within the grace period are killed, and those still left once most of the deadline has passed are
+ * handed to the pruner, which removes the runner's containers in bulk on the engine. The teardown returns within the
+ * deadline, reporting the containers it left behind.
+ */
+public class Teardown {
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+    public static final Duration DEFAULT_GRACE = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_DEADLINE = Duration.ofSeconds(30);
+    private static final Duration MAX_PRUNE_TIME = Duration.ofSeconds(5);
+
+    public interface Pruner {
+        /**
+         * Removes at once all the containers the runner created, whatever their state. Returns how many were removed.
+         */
+        public int prune(Duration timeout);
+    }
+
+    private volatile int concurrency;
+    private volatile Duration grace;
+    private volatile Duration deadline;
+    private volatile Pruner pruner;
+
+    public Teardown() {
+        this.concurrency = DEFAULT_CONCURRENCY;
+        this.grace = DEFAULT_GRACE;
+        this.deadline = DEFAULT_DEADLINE;
+        this.pruner = null;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    public Duration getGrace() {
+        return grace;
+    }
+
+    /**
+     * Time a container has to be destroyed before it is killed.
+     */
+    public void setGrace(Duration grace) {
+        this.grace = grace;
+    }
+
+    public Duration getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(Duration deadline) {
+        this.deadline = deadline;
+    }
+
+    public void setPruner(Pruner pruner) {
+        this.pruner = pruner;
+    }
+
+    public Report run(Collection<? extends Container> containers) {
+        long start = System.nanoTime();
+        long deadlineNanos = deadline.toNanos();
+        Pruner pruner = this.pruner;
+        // Part of the deadline is kept for the pruner
+        long pruneNanos = pruner == null ? 0 : Math.min(deadlineNanos / 4, MAX_PRUNE_TIME.toNanos());
+        long pruneAt = start + deadlineNanos - pruneNanos;
+        long graceNanos = grace.toNanos();
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "teardown-escalation");
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore slots = new Semaphore(concurrency);
+        AtomicInteger killed = new AtomicInteger();
+        List<CompletableFuture<Container>> destroyed = new ArrayList<>();
+        try {
+            for (Container cntr : containers) {
+                if (!slots.tryAcquire(pruneAt - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+                CompletableFuture<Container> future = cntr.whenStatus(Container.Status.DESTROYED);
+                ScheduledFuture<?> escalation = timer.schedule(() -> {
+                    if (!future.isDone()) {
+                        killed.incrementAndGet();
+                        cntr.kill();
+                    }
+                }, graceNanos, TimeUnit.NANOSECONDS);
+                future.whenComplete((c, t) -> {
+                    escalation.cancel(false);
+                    slots.release();
+                });
+                destroyed.add(future);
+                cntr.destroy();
+            }
+            for (CompletableFuture<Container> future : destroyed) {
+                future.get(Math.max(0, pruneAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (TimeoutException | ExecutionException e) {
+            // Left to the pruner
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            timer.shutdownNow();
+        }
+
+        List<Container> left = remaining(containers);
+        int pruned = 0;
+        if (!left.isEmpty() && pruner != null) {
+            try {
+                pruned = pruner.prune(Duration.ofNanos(Math.max(0, start + deadlineNanos - System.nanoTime())));
+            } catch (RuntimeException re) {
+                System.out.println("Could not prune containers: " + re.getMessage());
+            }
+            left = remaining(containers);
+        }
+        return new Report(containers.size(), killed.get(), pruned, left, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private static List<Container> remaining(Collection<? extends Container> containers) {
+        List<Container> left = new ArrayList<>();
+        for (Container cntr : containers) {
+            if (cntr.getStatus() != Container.Status.DESTROYED) {
+                left.add(cntr);
+            }
+        }
+        return left;
+    }
+
+    public static class Report {
+        private final int containers;
+        private final int killed;
+        private final int pruned;
+        private final List<Container> leftBehind;
+        private final Duration elapsed;
+
+        public Report(int containers, int killed, int pruned, List<Container> leftBehind, Duration elapsed) {
+            this.containers = containers;
+            this.killed = killed;
+            this.pruned = pruned;
+            this.leftBehind = leftBehind;
+            this.elapsed = elapsed;
+        }
+
+        public int getContainers() {
+            return containers;
+        }
+
+        public int getKilled() {
+            return killed;
+        }
+
+        /**
+         * Containers the pruner removed on the engine; their destruction may not have been notified yet.
+         */
+        public int getPruned() {
+            return pruned;
+        }
+
+        public List<Container> getLeftBehind() {
+            return leftBehind;
+        }
+
+        public Duration getElapsed() {
+            return elapsed;
+        }
+
+        public boolean isComplete() {
+            return leftBehind.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Tore down " + (containers - leftBehind.size()) + "/" + containers + " containers in "
+                + elapsed.toMillis() + " ms (" + killed + " killed, " + pruned + " pruned)"
+                + (leftBehind.isEmpty() ? "" : ", left behind " + leftBehind);
+        }
+    }
+}
@@ -18,16 +18,19 @@ package com.github.flordan.rolerunner.image;
 
 import com.github.flordan.rolerunner.container.Container;
 import com.github.flordan.rolerunner.container.ContainerManager;
+import com.github.flordan.rolerunner.container.ContainerSpec;
 import com.github.flordan.rolerunner.exception.ImageNotFoundException;
 
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class Image {
 
     private final ImageManager monitor;
     private final Set<ImageIdentifier> tags;
     private final Set<Container> containers;
+    private volatile long size;
+    private volatile long lastUsed;
 
     public Image() {
         this(null);
@@ -35,8 +38,9 @@ public abstract class Image {
 
     public Image(ImageManager monitor) {
         this.monitor = monitor;
-        tags = new HashSet<>();
-        containers = new HashSet<>();
+        tags = ConcurrentHashMap.newKeySet();
+        containers = ConcurrentHashMap.newKeySet();
+        lastUsed = System.currentTimeMillis();
     }
 
     public void addTag(ImageIdentifier iId) {
@@ -53,16 +57,43 @@ public abstract class Image {
 
     public void addContainer(Container dc) {
         this.containers.add(dc);
+        touch();
     }
 
     public void removeContainer(Container dc) {
         this.containers.remove(dc);
+        touch();
+        if (this.monitor != null && this.containers.isEmpty()) {
+            this.monitor.releasedImage(this);
+        }
     }
 
     public Set<Container> getContainers() {
         return this.containers;
     }
 
+    /**
+     * Bytes the image takes on disk, 0 if unknown.
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Time, in milliseconds since the epoch, the image was last obtained or had a container added or removed.
+     */
+    public long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    public void touch() {
+        this.lastUsed = System.currentTimeMillis();
+    }
+
     public final void fetched() {
         if (this.monitor != null) {
             this.monitor.fetchedImage(this);
@@ -78,4 +109,12 @@ public abstract class Image {
     }
 
     public abstract void createContainer(ContainerManager monitor) throws ImageNotFoundException;
+
+    /**
+     * Creates a container as described by the spec. Engines not supporting specs create a regular container; those
+     * that already keep stopped containers ignore whether it is recyclable.
+     */
+    public void createContainer(ContainerManager monitor, ContainerSpec spec) throws ImageNotFoundException {
+        createContainer(monitor);
+    }
 }
@@ -16,26 +16,209 @@
  */
 package com.github.flordan.rolerunner.image;
 
-public class ImageIdentifier implements Comparable<ImageIdentifier> {
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reference to an image: [registry/]repository[:tag][@digest]. The registry is the first path component if it looks
+ * like a host (it contains a '.' or a ':', is localhost or has upper case letters), as the Docker engine decides. A
+ * reference with neither tag nor digest gets the latest tag.
+ *
+ * Identifiers are immutable and compared and hashed through their canonical form, computed once, so they can key
+ * hash maps. The canonical form is the one the engine reports in its events and RepoTags: the default docker.io
+ * registry and the library/ namespace of its official images are left out, so busybox, library/busybox and
+ * docker.io/library/busybox are the same image; and a digest names the content on its own, so the tag of a reference
+ * with one is left out too. Parsed references go through a bounded intern cache: the tags the engine reports over and
+ * over resolve to the same instance without parsing again.
+ */
+public final class ImageIdentifier implements Comparable<ImageIdentifier> {
     private static final String DEFAULT_TAG = "latest";
+    private static final String LOCALHOST = "localhost";
+    private static final String DEFAULT_REGISTRY = "docker.io";
+    private static final String LEGACY_REGISTRY = "index.docker.io";
+    private static final String OFFICIAL_NAMESPACE = "library/";
+    private static final int MAX_TAG_LENGTH = 128;
+
+    // Direct-mapped cache: a collision just replaces the entry, so it never grows nor needs locking
+    private static final int CACHE_SIZE = 1 << 12;
+    private static final AtomicReferenceArray<Interned> CACHE = new AtomicReferenceArray<>(CACHE_SIZE);
+
     private final String registry;
     private final String repository;
     private final String tag;
+    private final String digest;
+    private final String canonical;
+    private final int hash;
+
+    /**
+     * @throws IllegalArgumentException if the reference is not valid
+     */
+    public static ImageIdentifier parse(String reference) {
+        int slot = spread(reference.hashCode()) & (CACHE_SIZE - 1);
+        Interned interned = CACHE.get(slot);
+        if (interned != null && interned.reference.equals(reference)) {
+            return interned.iId;
+        }
+        ImageIdentifier iId = doParse(reference);
+        CACHE.set(slot, new Interned(reference, iId));
+        return iId;
+    }
+
+    /**
+     * Parses the reference or returns null if it is not a valid one (e.g., the <none>:<none> of untagged images).
+     */
+    public static ImageIdentifier tryParse(String reference) {
+        try {
+            return parse(reference);
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static ImageIdentifier doParse(String reference) {
+        int length = reference.length();
+        if (length == 0) {
+            throw new IllegalArgumentException("Empty image reference");
+        }
+
+        // Single pass recording the separators: the first '/', the last '/', the last ':' and the '@'
+        int firstSlash = -1;
+        int lastSlash = -1;
+        int lastColon = -1;
+        int at = -1;
+        boolean hostLike = false;
+        for (int i = 0; i < length; i++) {
+            char c = reference.charAt(i);
+            if (c == '@') {
+                at = i;
+                break;
+            }
+            if (c == '/') {
+                if (firstSlash < 0) {
+                    firstSlash = i;
+                }
+                lastSlash = i;
+            } else if (c == ':') {
+                lastColon = i;
+                if (firstSlash < 0) {
+                    hostLike = true;
+                }
+            } else if (firstSlash < 0 && (c == '.' || (c >= 'A' && c <= 'Z'))) {
+                hostLike = true;
+            }
+        }
+
+        String digest = null;
+        int nameEnd = length;
+        if (at >= 0) {
+            digest = reference.substring(at + 1);
+            checkDigest(reference, digest);
+            nameEnd = at;
+        }
+
+        String tag = null;
+        if (lastColon > lastSlash) {
+            tag = reference.substring(lastColon + 1, nameEnd);
+            checkTag(reference, tag);
+            nameEnd = lastColon;
+        }
 
-    public static ImageIdentifier parse(String fullName) {
-        String[] registrySplit = fullName.split("/");
         String registry = null;
-        if (registrySplit.length > 1) {
-            registry = registrySplit[0];
-            fullName = registrySplit[1];
+        int repositoryStart = 0;
+        boolean localhost = firstSlash == LOCALHOST.length() && reference.startsWith(LOCALHOST);
+        if (firstSlash >= 0 && (hostLike || localhost)) {
+            registry = reference.substring(0, firstSlash);
+            repositoryStart = firstSlash + 1;
+        }
+        if (repositoryStart >= nameEnd) {
+            throw new IllegalArgumentException("Missing repository in image reference " + reference);
+        }
+        String repository = reference.substring(repositoryStart, nameEnd);
+        checkRepository(reference, repository);
+
+        if (tag == null && digest == null) {
+            tag = DEFAULT_TAG;
+        }
+        return new ImageIdentifier(registry, repository, tag, digest);
+    }
+
+    private static void checkRepository(String reference, String repository) {
+        // Slash-separated components of lower case alphanumerics, with '.', '_' or '-' only between them
+        boolean componentStart = true;
+        char previous = 0;
+        for (int i = 0; i < repository.length(); i++) {
+            char c = repository.charAt(i);
+            if (isAlphanumeric(c)) {
+                componentStart = false;
+            } else if (c == '/') {
+                if (componentStart || !isAlphanumeric(previous)) {
+                    throw new IllegalArgumentException("Invalid repository in image reference " + reference);
+                }
+                componentStart = true;
+            } else if (c != '.' && c != '_' && c != '-' || componentStart || previous == '.') {
+                throw new IllegalArgumentException("Invalid repository in image reference " + reference);
+            }
+            previous = c;
+        }
+        if (!isAlphanumeric(previous)) {
+            throw new IllegalArgumentException("Invalid repository in image reference " + reference);
+        }
+    }
+
+    private static boolean isAlphanumeric(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+
+    private static void checkTag(String reference, String tag) {
+        if (tag.isEmpty() || tag.length() > MAX_TAG_LENGTH || tag.charAt(0) == '.' || tag.charAt(0) == '-') {
+            throw new IllegalArgumentException("Invalid tag in image reference " + reference);
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            char c = tag.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '.'
+                || c == '-')) {
+                throw new IllegalArgumentException("Invalid tag in image reference " + reference);
+            }
+        }
+    }
+
+    private static void checkDigest(String reference, String digest) {
+        // algorithm:encoded, the algorithm being lower case alphanumeric components separated by '+', '.', '_' or '-'
+        int colon = digest.indexOf(':');
+        if (colon <= 0 || colon == digest.length() - 1) {
+            throw new IllegalArgumentException("Invalid digest in image reference " + reference);
+        }
+        char previous = '+';
+        for (int i = 0; i < colon; i++) {
+            char c = digest.charAt(i);
+            boolean separator = c == '+' || c == '.' || c == '_' || c == '-';
+            if (!isAlphanumeric(c) && !(separator && isAlphanumeric(previous))) {
+                throw new IllegalArgumentException("Invalid digest in image reference " + reference);
+            }
+            previous = c;
+        }
+        if (!isAlphanumeric(previous)) {
+            throw new IllegalArgumentException("Invalid digest in image reference " + reference);
         }
-        String[] tagSplit = fullName.split(":");
-        String repository = tagSplit[0];
-        String tag = DEFAULT_TAG;
-        if (tagSplit.length > 1) {
-            tag = tagSplit[1];
+        String algorithm = digest.substring(0, colon);
+        int length = digest.length() - colon - 1;
+        boolean hex = "sha256".equals(algorithm) || "sha512".equals(algorithm);
+        if ("sha256".equals(algorithm) && length != 64 || "sha512".equals(algorithm) && length != 128) {
+            throw new IllegalArgumentException("Invalid digest in image reference " + reference);
+        }
+        for (int i = colon + 1; i < digest.length(); i++) {
+            char c = digest.charAt(i);
+            boolean valid = hex
+                ? c >= '0' && c <= '9' || c >= 'a' && c <= 'f'
+                : c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '=' || c == '_'
+                    || c == '-';
+            if (!valid) {
+                throw new IllegalArgumentException("Invalid digest in image reference " + reference);
+            }
         }
-        return new ImageIdentifier(registry, repository, tag);
     }
 
     public ImageIdentifier(String repository) {
@@ -47,9 +230,33 @@ public class ImageIdentifier implements Comparable<ImageIdentifier> {
     }
 
     public ImageIdentifier(String registry, String repository, String tag) {
-        this.registry = registry;
+        this(registry, repository, tag, null);
+    }
+
+    public ImageIdentifier(String registry, String repository, String tag, String digest) {
+        this.registry = registry == null || registry.isEmpty() ? null : registry;
         this.repository = repository;
         this.tag = tag;
+        this.digest = digest;
+        StringBuilder sb = new StringBuilder();
+        boolean defaultRegistry = this.registry == null || DEFAULT_REGISTRY.equals(this.registry)
+            || LEGACY_REGISTRY.equals(this.registry);
+        if (!defaultRegistry) {
+            sb.append(this.registry).append('/');
+        }
+        if (defaultRegistry && repository.startsWith(OFFICIAL_NAMESPACE)
+            && repository.indexOf('/', OFFICIAL_NAMESPACE.length()) < 0) {
+            sb.append(repository, OFFICIAL_NAMESPACE.length(), repository.length());
+        } else {
+            sb.append(repository);
+        }
+        if (digest != null) {
+            sb.append('@').append(digest);
+        } else if (tag != null) {
+            sb.append(':').append(tag);
+        }
+        this.canonical = sb.toString();
+        this.hash = canonical.hashCode();
     }
 
     public String getRegistry() {
@@ -60,26 +267,56 @@ public class ImageIdentifier implements Comparable<ImageIdentifier> {
         return repository;
     }
 
+    /**
+     * Registry and repository, as passed to the engine to pull the image.
+     */
+    public String getName() {
+        return registry != null ? registry + "/" + repository : repository;
+    }
+
     public String getTag() {
         return tag;
     }
 
+    public String getDigest() {
+        return digest;
+    }
+
     @Override
     public String toString() {
-        return (registry != null ? registry + "/" : "") + repository + ":" + tag;
+        return canonical;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ImageIdentifier)) {
+            return false;
+        }
+        ImageIdentifier other = (ImageIdentifier) o;
+        return hash == other.hash && canonical.equals(other.canonical);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
     }
 
     @Override
     public int compareTo(ImageIdentifier o) {
-        int val = this.repository.compareTo(o.repository);
-        if (val==0){
-            val = this.tag.compareTo(o.tag);
-            if (val==0){
-                if (this.registry !=null && !this.registry.isEmpty() && o.registry !=null && !o.registry.isEmpty()) {
-                    val = this.registry.compareTo(o.registry);
-                }
-            }
+        return this == o ? 0 : canonical.compareTo(o.canonical);
+    }
+
+
+    private static class Interned {
+        private final String reference;
+        private final ImageIdentifier iId;
+
+        public Interned(String reference, ImageIdentifier iId) {
+            this.reference = reference;
+            this.iId = iId;
         }
-        return val;
     }
 }
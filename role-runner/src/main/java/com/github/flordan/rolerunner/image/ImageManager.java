@@ -16,9 +16,27 @@
  */
 package com.github.flordan.rolerunner.image;
 
+import com.github.flordan.rolerunner.container.Teardown;
+import com.github.flordan.rolerunner.metrics.ImageCounter;
+import com.github.flordan.rolerunner.metrics.Phase;
+import com.github.flordan.rolerunner.metrics.RoleRunnerMetrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class ImageManager {
 
@@ -26,60 +44,305 @@ public class ImageManager {
         public void requestImage(ImageIdentifier iId, ImageManager handler);
 
         Image getImage(ImageIdentifier iId);
+
+        /**
+         * Images the engine holds, those kept from previous runs included.
+         */
+        Set<ImageIdentifier> getAvailableImages();
     }
 
     public interface ObtainCallback {
         public void obtained(Image img);
+
+        public default void failed(ImageIdentifier iId, Throwable cause) {
+        }
+
+        public default void progress(PullProgress progress) {
+        }
+
+        /**
+         * Whether a role is waiting for the image, as opposed to a fetch in the background.
+         */
+        public default boolean isAwaited() {
+            return false;
+        }
     }
 
+    private static final int REMOVERS = 4;
+
     private final ImageHandler handler;
-    private final TreeMap<ImageIdentifier, List<ObtainCallback>> pendingRequests;
-    private final List<Image> images;
+    private final Map<ImageIdentifier, List<ObtainCallback>> pendingRequests;
+    private final Set<Image> images;
+    private final Map<ImageIdentifier, Long> pullsStartedAt;
+    private final RequestHistory history;
+    private final Set<ImageIdentifier> pinned;
+    private final ExecutorService evictor;
+    // Images handed out whose container is not created yet; they are in use as much as those with containers
+    private final Map<Image, Integer> handedOut;
+    // Images being deleted by the evictor and the requests waiting for their deletion to end; guarded by this
+    private final Set<Image> evicting;
+    private final Map<Image, Set<ImageIdentifier>> deferred;
+    // Serializes the quota enforcements without blocking the obtains
+    private final Object evictionLock;
+    private volatile long diskQuota;
+    private volatile boolean keepOnExit;
+    // Whether the images the engine already held have been added to the cache
+    private volatile boolean seeded;
+    private volatile Path historyFile;
 
     public ImageManager(ImageHandler handler) {
         this.handler = handler;
-        images = new LinkedList<>();
-        pendingRequests = new TreeMap<>();
+        images = ConcurrentHashMap.newKeySet();
+        pendingRequests = new HashMap<>();
+        pullsStartedAt = new ConcurrentHashMap<>();
+        history = new RequestHistory();
+        pinned = ConcurrentHashMap.newKeySet();
+        handedOut = new ConcurrentHashMap<>();
+        evicting = new HashSet<>();
+        deferred = new HashMap<>();
+        evictionLock = new Object();
+        evictor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "image-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        diskQuota = 0;
+        keepOnExit = true;
+    }
+
+    /**
+     * Bytes the images obtained by the manager may take on disk; 0 for no limit. Once exceeded, the least recently
+     * used images without containers are deleted.
+     */
+    public void setDiskQuota(long bytes) {
+        this.diskQuota = bytes;
+        evictor.execute(this::enforceQuota);
+    }
+
+    public long getDiskQuota() {
+        return diskQuota;
+    }
+
+    /**
+     * Whether the images obtained are kept when the runner exits, so the next run does not pull them again.
+     */
+    public void setKeepOnExit(boolean keepOnExit) {
+        this.keepOnExit = keepOnExit;
+    }
+
+    /**
+     * Keeps the image from being evicted whatever the disk quota.
+     */
+    public void pin(ImageIdentifier iId) {
+        pinned.add(iId);
+    }
+
+    public void unpin(ImageIdentifier iId) {
+        pinned.remove(iId);
+        evictor.execute(this::enforceQuota);
+    }
+
+    public long getCachedBytes() {
+        seed();
+        long bytes = 0;
+        for (Image img : images) {
+            bytes += img.getSize();
+        }
+        return bytes;
+    }
+
+    public RequestHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * File the request history is loaded from now, if it exists, and saved to when the manager is closed. The file of
+     * another node can be used to seed the history of a fresh one.
+     */
+    public void setHistoryFile(Path file) {
+        this.historyFile = file;
+        if (file != null && Files.isRegularFile(file)) {
+            try {
+                System.out.println("Loaded " + history.load(file) + " images of the request history " + file);
+            } catch (IOException ioe) {
+                System.out.println("Could not load request history " + file + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records in the history that a role has been requested for the image.
+     */
+    public void roleRequested(ImageIdentifier iId) {
+        history.record(iId);
+    }
+
+    /**
+     * Whether no image is being obtained.
+     */
+    public boolean isIdle() {
+        synchronized (pendingRequests) {
+            return pendingRequests.isEmpty() && pullsStartedAt.isEmpty();
+        }
     }
 
     public boolean isImageAvailable(ImageIdentifier iId) {
         return handler.getImage(iId) != null;
     }
 
-    public final synchronized void obtainImage(ImageIdentifier iId, ObtainCallback callback) {
+    /**
+     * Hands the image to the callback, pulling it first if missing. The callback is invoked without holding any lock
+     * of the manager since it usually creates a container, a blocking call to the engine.
+     */
+    public final void obtainImage(ImageIdentifier iId, ObtainCallback callback) {
         System.out.println("IM obtaining " + iId);
-        Image img = handler.getImage(iId);
-        if (img != null) {
-            System.out.println("\tAlready Present");
-            callback.obtained(img);
-        } else {
-            if (callback!=null) {
-                synchronized (pendingRequests) {
-                    System.out.println("\tRequesting");
-                    List<ObtainCallback> cbs = pendingRequests.get(iId);
-                    if (cbs == null) {
-                        cbs = new LinkedList<>();
-                        pendingRequests.put(iId, cbs);
-                    }
-                    cbs.add(callback);
+        Image img;
+        synchronized (this) {
+            img = handler.getImage(iId);
+            if (img != null && evicting.contains(img)) {
+                // Resumed once the deletion ends, pulling the image again if it was deleted
+                System.out.println("\tBeing evicted");
+                deferred.computeIfAbsent(img, k -> new HashSet<>()).add(iId);
+                addPending(iId, callback);
+                return;
+            }
+            if (img != null) {
+                System.out.println("\tAlready Present");
+                // Images kept from previous runs become part of the cache once used
+                images.add(img);
+                img.touch();
+                if (callback != null) {
+                    hold(img);
                 }
+            } else {
+                pullsStartedAt.putIfAbsent(iId, System.nanoTime());
+                addPending(iId, callback);
             }
+        }
+        if (img == null) {
             handler.requestImage(iId, this);
+        } else if (callback != null) {
+            handOut(img, callback);
         }
     }
 
+    private void addPending(ImageIdentifier iId, ObtainCallback callback) {
+        if (callback == null) {
+            return;
+        }
+        synchronized (pendingRequests) {
+            System.out.println("\tRequesting");
+            List<ObtainCallback> cbs = pendingRequests.get(iId);
+            if (cbs == null) {
+                cbs = new LinkedList<>();
+                pendingRequests.put(iId, cbs);
+            }
+            cbs.add(callback);
+        }
+    }
+
+    // The image must be held; the hold ends once the callback returns
+    private void handOut(Image img, ObtainCallback callback) {
+        try {
+            callback.obtained(img);
+        } finally {
+            release(img);
+        }
+    }
+
+    /**
+     * Counts the image as in use until released, so it is not evicted before a container is created from it. The
+     * image is held while an ObtainCallback runs; callers creating the container later hold it from the callback.
+     */
+    public final void hold(Image img) {
+        handedOut.merge(img, 1, Integer::sum);
+    }
+
+    public final void release(Image img) {
+        handedOut.computeIfPresent(img, (k, count) -> count == 1 ? null : count - 1);
+    }
+
     public final void fetchedImage(Image img) {
         System.out.println("Obtained " + img.getTags());
-        images.add(img);
+        long now = System.nanoTime();
+        for (ImageIdentifier iId : img.getTags()) {
+            Long startedAt = pullsStartedAt.remove(iId);
+            if (startedAt != null) {
+                RoleRunnerMetrics.phaseCompleted(Phase.PULL, now - startedAt);
+                RoleRunnerMetrics.imageCounted(iId.toString(), ImageCounter.PULLED);
+            }
+        }
+        List<ObtainCallback> obtained = new ArrayList<>();
         synchronized (pendingRequests) {
             for (ImageIdentifier iId : img.getTags()) {
                 List<ObtainCallback> cbs = this.pendingRequests.remove(iId);
                 if (cbs != null) {
-                    for (ObtainCallback cb : cbs) {
-                        cb.obtained(img);
+                    obtained.addAll(cbs);
+                }
+            }
+        }
+        synchronized (this) {
+            images.add(img);
+            img.touch();
+            for (int i = 0; i < obtained.size(); i++) {
+                hold(img);
+            }
+        }
+        for (ObtainCallback cb : obtained) {
+            handOut(img, cb);
+        }
+        evictor.execute(this::enforceQuota);
+    }
+
+    public final void failedImage(ImageIdentifier iId, Throwable cause) {
+        System.out.println("Could not obtain " + iId);
+        if (pullsStartedAt.remove(iId) != null) {
+            RoleRunnerMetrics.imageCounted(iId.toString(), ImageCounter.PULL_FAILED);
+        }
+        List<ObtainCallback> cbs;
+        synchronized (pendingRequests) {
+            cbs = this.pendingRequests.remove(iId);
+        }
+        if (cbs != null) {
+            for (ObtainCallback cb : cbs) {
+                cb.failed(iId, cause);
+            }
+        }
+    }
+
+    public final void pullProgressed(PullProgress progress) {
+        List<ObtainCallback> cbs;
+        synchronized (pendingRequests) {
+            cbs = this.pendingRequests.get(progress.getImage());
+            cbs = cbs == null ? null : new LinkedList<>(cbs);
+        }
+        if (cbs != null) {
+            for (ObtainCallback cb : cbs) {
+                cb.progress(progress);
+            }
+        }
+    }
+
+    /**
+     * Whether any of the requests pending on the image comes from a role waiting for it.
+     */
+    public final boolean isAwaited(ImageIdentifier iId) {
+        synchronized (pendingRequests) {
+            List<ObtainCallback> cbs = this.pendingRequests.get(iId);
+            if (cbs != null) {
+                for (ObtainCallback cb : cbs) {
+                    if (cb.isAwaited()) {
+                        return true;
                     }
                 }
             }
+            return false;
+        }
+    }
+
+    public final void releasedImage(Image img) {
+        if (diskQuota > 0) {
+            evictor.execute(this::enforceQuota);
         }
     }
 
@@ -87,13 +350,185 @@ public class ImageManager {
         images.remove(img);
     }
 
+    /**
+     * Deletes the least recently used images that are not in use nor pinned until the images fit in the disk quota.
+     * The victims are picked under the obtain lock and deleted outside of it; requests for them meanwhile wait for the
+     * deletion to end. Returns once the evictions it started have ended.
+     */
+    public final void enforceQuota() {
+        synchronized (evictionLock) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        long quota = diskQuota;
+        if (quota <= 0) {
+            return;
+        }
+        seed();
+        List<Image> victims = new ArrayList<>();
+        synchronized (this) {
+            long used = 0;
+            for (Image img : images) {
+                if (!evicting.contains(img)) {
+                    used += img.getSize();
+                }
+            }
+            if (used <= quota) {
+                return;
+            }
+            List<Image> candidates = new ArrayList<>(images);
+            candidates.sort(Comparator.comparingLong(Image::getLastUsed));
+            for (Image img : candidates) {
+                if (used <= quota) {
+                    break;
+                }
+                if (!img.getContainers().isEmpty() || handedOut.containsKey(img) || isPinned(img)
+                    || !evicting.add(img)) {
+                    continue;
+                }
+                victims.add(img);
+                used -= img.getSize();
+            }
+        }
+        for (Image img : victims) {
+            System.out.println("Evicting " + img.getTags());
+            boolean deleted = false;
+            try {
+                img.delete();
+                images.remove(img);
+                deleted = true;
+            } catch (RuntimeException e) {
+                System.out.println("Could not evict " + img.getTags() + ": " + e.getMessage());
+            }
+            evicted(img, deleted);
+        }
+    }
+
+    private void evicted(Image img, boolean deleted) {
+        Set<ImageIdentifier> waiting;
+        synchronized (this) {
+            evicting.remove(img);
+            waiting = deferred.remove(img);
+        }
+        if (waiting == null) {
+            return;
+        }
+        for (ImageIdentifier iId : waiting) {
+            if (deleted) {
+                pullsStartedAt.putIfAbsent(iId, System.nanoTime());
+                handler.requestImage(iId, this);
+            } else {
+                List<ObtainCallback> cbs;
+                synchronized (pendingRequests) {
+                    cbs = pendingRequests.remove(iId);
+                }
+                if (cbs != null) {
+                    for (ObtainCallback cb : cbs) {
+                        hold(img);
+                        handOut(img, cb);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to the cache the images the engine held before the manager used it, e.g. kept on exit by a previous run, so
+     * they count against the quota and can be evicted unless pinned. Done on the first quota check rather than on
+     * construction, so the engine is only contacted once the cache is used.
+     */
+    private void seed() {
+        if (seeded) {
+            return;
+        }
+        synchronized (this) {
+            if (seeded) {
+                return;
+            }
+            for (ImageIdentifier iId : handler.getAvailableImages()) {
+                Image img = handler.getImage(iId);
+                if (img != null) {
+                    images.add(img);
+                }
+            }
+            seeded = true;
+        }
+    }
+
+    private boolean isPinned(Image img) {
+        for (ImageIdentifier iId : img.getTags()) {
+            if (pinned.contains(iId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public final void clear() {
-        List<Image> toDelete = new LinkedList<>();
-        for (Image img : images) {
-            toDelete.add(img);
+        clear(Teardown.DEFAULT_DEADLINE);
+    }
+
+    /**
+     * Deletes all the images obtained, several at once, waiting at most the given time. Returns the number of images
+     * not deleted in time.
+     */
+    public final int clear(Duration timeout) {
+        List<Image> toDelete = new LinkedList<>(images);
+        if (toDelete.isEmpty()) {
+            return 0;
+        }
+        ExecutorService removers = Executors.newFixedThreadPool(Math.min(REMOVERS, toDelete.size()), r -> {
+            Thread t = new Thread(r, "image-remover");
+            t.setDaemon(true);
+            return t;
+        });
+        for (Image img : toDelete) {
+            removers.execute(() -> {
+                try {
+                    img.delete();
+                    images.remove(img);
+                } catch (RuntimeException re) {
+                    System.out.println("Could not delete " + img.getTags() + ": " + re.getMessage());
+                }
+            });
         }
+        removers.shutdown();
+        try {
+            removers.awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        removers.shutdownNow();
+        int left = 0;
         for (Image img : toDelete) {
-            img.delete();
+            if (images.contains(img)) {
+                left++;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Releases the manager when the runner exits, saving the request history to its file if set and deleting the
+     * images obtained within the timeout unless they are kept on exit.
+     */
+    public final void close(Duration timeout) {
+        evictor.shutdownNow();
+        Path file = historyFile;
+        if (file != null) {
+            try {
+                history.save(file);
+            } catch (IOException ioe) {
+                System.out.println("Could not save request history " + file + ": " + ioe.getMessage());
+            }
+        }
+        if (!keepOnExit) {
+            int left = clear(timeout);
+            if (left > 0) {
+                System.out.println("Left " + left + " images behind");
+            }
         }
     }
 }
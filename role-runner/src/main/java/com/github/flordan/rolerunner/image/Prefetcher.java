@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.image;
+
+import com.github.flordan.rolerunner.metrics.ImageCounter;
+import com.github.flordan.rolerunner.metrics.RoleRunnerMetrics;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Pulls in the background the images the request history predicts, so the roles find them already available. It only
+ * prefetches while no image is being obtained, one image at a time, as long as the images prefetched and not yet
+ * requested fit the disk budget and the bytes prefetched in the last hour fit the bandwidth budget.
+ */
+public class Prefetcher {
+
+    public static final Duration DEFAULT_PERIOD = Duration.ofMinutes(1);
+    public static final long DEFAULT_DISK_BUDGET = 5L << 30;
+    public static final long DEFAULT_BANDWIDTH_BUDGET = 10L << 30;
+    public static final int DEFAULT_MIN_REQUESTS = 2;
+    public static final double DEFAULT_MIN_SCORE = 0.2;
+    private static final int CANDIDATES = 8;
+    private static final long HOUR_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private final ImageManager images;
+    private final Function<ImageIdentifier, CompletableFuture<Image>> fetcher;
+    private final ScheduledExecutorService timer;
+    private final Map<ImageIdentifier, Long> unused;
+    private final LinkedList<long[]> transfers;
+    private final AtomicBoolean inFlight;
+    private final AtomicLong prefetches;
+    private final AtomicLong hits;
+    private final AtomicLong coldStarts;
+    private ScheduledFuture<?> task;
+    private volatile long diskBudget;
+    private volatile long bandwidthBudget;
+    private volatile int minRequests;
+    private volatile double minScore;
+
+    public Prefetcher(ImageManager images, Function<ImageIdentifier, CompletableFuture<Image>> fetcher) {
+        this.images = images;
+        this.fetcher = fetcher;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "image-prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.unused = new ConcurrentHashMap<>();
+        this.transfers = new LinkedList<>();
+        this.inFlight = new AtomicBoolean();
+        this.prefetches = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.coldStarts = new AtomicLong();
+        this.diskBudget = DEFAULT_DISK_BUDGET;
+        this.bandwidthBudget = DEFAULT_BANDWIDTH_BUDGET;
+        this.minRequests = DEFAULT_MIN_REQUESTS;
+        this.minScore = DEFAULT_MIN_SCORE;
+    }
+
+    public synchronized void start(Duration period) {
+        stop();
+        long millis = period.toMillis();
+        task = timer.scheduleWithFixedDelay(this::prefetch, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    public void setDiskBudget(long bytes) {
+        this.diskBudget = bytes;
+    }
+
+    /**
+     * Bytes that can be prefetched in any hour.
+     */
+    public void setBandwidthBudget(long bytesPerHour) {
+        this.bandwidthBudget = bytesPerHour;
+    }
+
+    /**
+     * Minimum number of requests and score in the history for an image to be prefetched.
+     */
+    public void setThresholds(int minRequests, double minScore) {
+        this.minRequests = minRequests;
+        this.minScore = minScore;
+    }
+
+    public long getPrefetches() {
+        return prefetches.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getColdStarts() {
+        return coldStarts.get();
+    }
+
+    /**
+     * Share of the first requests of an image found already prefetched, out of those that had to wait for a pull or
+     * found it prefetched.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + coldStarts.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getUnusedBytes() {
+        long bytes = 0;
+        for (long size : unused.values()) {
+            bytes += size;
+        }
+        return bytes;
+    }
+
+    /**
+     * Accounts a role request for the image; available tells whether the image was there when requested.
+     */
+    public void requested(ImageIdentifier iId, boolean available) {
+        if (unused.remove(iId) != null) {
+            hits.incrementAndGet();
+            RoleRunnerMetrics.imageCounted(iId.toString(), ImageCounter.PREFETCH_HIT);
+        } else if (!available) {
+            coldStarts.incrementAndGet();
+        }
+    }
+
+    public void prefetch() {
+        if (!images.isIdle() || !inFlight.compareAndSet(false, true)) {
+            return;
+        }
+        boolean started = false;
+        try {
+            // Images removed since prefetched no longer count against the disk budget
+            unused.keySet().removeIf(iId -> !images.isImageAvailable(iId));
+            for (ImageIdentifier iId : images.getHistory().predict(minRequests, minScore, CANDIDATES)) {
+                if (images.isImageAvailable(iId)) {
+                    continue;
+                }
+                if (getUnusedBytes() >= diskBudget || getTransferredBytes() >= bandwidthBudget) {
+                    return;
+                }
+                System.out.println("Prefetching " + iId);
+                started = true;
+                fetcher.apply(iId).whenComplete((img, t) -> {
+                    if (t == null) {
+                        prefetched(iId, img);
+                    }
+                    inFlight.set(false);
+                });
+                return;
+            }
+        } finally {
+            if (!started) {
+                inFlight.set(false);
+            }
+        }
+    }
+
+    private void prefetched(ImageIdentifier iId, Image img) {
+        long size = img.getSize();
+        unused.put(iId, size);
+        synchronized (transfers) {
+            transfers.add(new long[]{System.nanoTime(), size});
+        }
+        prefetches.incrementAndGet();
+        RoleRunnerMetrics.imageCounted(iId.toString(), ImageCounter.PREFETCHED);
+    }
+
+    private long getTransferredBytes() {
+        long since = System.nanoTime() - HOUR_NANOS;
+        long bytes = 0;
+        synchronized (transfers) {
+            Iterator<long[]> it = transfers.iterator();
+            while (it.hasNext()) {
+                long[] transfer = it.next();
+                if (transfer[0] - since < 0) {
+                    it.remove();
+                } else {
+                    bytes += transfer[1];
+                }
+            }
+        }
+        return bytes;
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.image;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Progress of an image pull: the bytes downloaded for each layer, the current throughput and the estimated time left.
+ */
+public class PullProgress {
+
+    private static final long RATE_INTERVAL_NANOS = 500_000_000L;
+    private static final long NOTIFICATION_INTERVAL_NANOS = 100_000_000L;
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final ImageIdentifier iId;
+    private final long startedAt;
+    private final Map<String, Layer> layers;
+
+    // Rate sampling, guarded by this
+    private long sampledAt;
+    private long sampledBytes;
+    private double bytesPerSecond;
+    private long notifiedAt;
+
+    public PullProgress(ImageIdentifier iId) {
+        this.iId = iId;
+        this.startedAt = System.nanoTime();
+        this.layers = new ConcurrentHashMap<>();
+        this.sampledAt = startedAt;
+    }
+
+    public ImageIdentifier getImage() {
+        return iId;
+    }
+
+    /**
+     * Updates a layer and returns whether the change is worth notifying: the status of the layer changed or no
+     * notification was issued recently.
+     */
+    public boolean update(String layerId, String status, long downloaded, long total) {
+        Layer layer = layers.computeIfAbsent(layerId, Layer::new);
+        boolean statusChanged;
+        synchronized (layer) {
+            statusChanged = !status.equals(layer.status);
+            layer.status = status;
+            layer.downloaded = Math.max(layer.downloaded, downloaded);
+            layer.total = Math.max(layer.total, total);
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (now - sampledAt >= RATE_INTERVAL_NANOS) {
+                long bytes = getDownloadedBytes();
+                double rate = (bytes - sampledBytes) * 1e9 / (now - sampledAt);
+                bytesPerSecond = sampledBytes == 0 && bytesPerSecond == 0 ? rate
+                    : bytesPerSecond + RATE_SMOOTHING * (rate - bytesPerSecond);
+                sampledAt = now;
+                sampledBytes = bytes;
+            }
+            if (statusChanged || now - notifiedAt >= NOTIFICATION_INTERVAL_NANOS) {
+                notifiedAt = now;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public Collection<Layer> getLayers() {
+        return new ArrayList<>(layers.values());
+    }
+
+    public long getDownloadedBytes() {
+        long bytes = 0;
+        for (Layer layer : layers.values()) {
+            bytes += layer.downloaded;
+        }
+        return bytes;
+    }
+
+    /**
+     * Bytes to download as far as known; layers whose size is not reported yet are not included.
+     */
+    public long getTotalBytes() {
+        long bytes = 0;
+        for (Layer layer : layers.values()) {
+            bytes += layer.total;
+        }
+        return bytes;
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return (long) bytesPerSecond;
+    }
+
+    public Duration getElapsed() {
+        return Duration.ofNanos(System.nanoTime() - startedAt);
+    }
+
+    /**
+     * Time left at the current throughput; null until there is a throughput to estimate it.
+     */
+    public Duration getEta() {
+        long rate = getBytesPerSecond();
+        if (rate <= 0) {
+            return null;
+        }
+        long left = Math.max(0, getTotalBytes() - getDownloadedBytes());
+        return Duration.ofMillis(left * 1000 / rate);
+    }
+
+    @Override
+    public String toString() {
+        Duration eta = getEta();
+        return iId + ": " + getDownloadedBytes() + "/" + getTotalBytes() + " bytes in " + layers.size() + " layers, "
+            + getBytesPerSecond() + " B/s" + (eta != null ? ", ETA " + eta.toSeconds() + "s" : "");
+    }
+
+
+    public static class Layer {
+        private final String id;
+        private volatile String status;
+        private volatile long downloaded;
+        private volatile long total;
+
+        public Layer(String id) {
+            this.id = id;
+            this.status = "";
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public long getDownloadedBytes() {
+            return downloaded;
+        }
+
+        public long getTotalBytes() {
+            return total;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.image;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the pulls requested to an engine begin. At most maxConcurrent pulls run at once and, with a bandwidth
+ * budget, a new pull is only admitted while the aggregate throughput of the running ones stays below it. The engine
+ * does the downloads, so the budget bounds the admissions rather than throttling the bytes. Pulls awaited by a role
+ * request go before background fetches; the priority is checked when a slot frees, so a fetch queued in the
+ * background is promoted as soon as a role needs its image.
+ */
+public class PullScheduler {
+
+    public interface Pull {
+
+        public ImageIdentifier getImage();
+
+        public boolean isUrgent();
+
+        public long getBytesPerSecond();
+
+        /**
+         * Starts the pull; the engine must report finished(pull) once it ends, whatever the outcome.
+         */
+        public void begin();
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENT = 3;
+    // Time for a pull to ramp up before its throughput counts in the admission of another one
+    private static final long RAMP_UP_MILLIS = 1_000;
+
+    private final LinkedList<Pull> queued;
+    private final Set<Pull> active;
+    private final ScheduledExecutorService timer;
+    private volatile int maxConcurrent;
+    private volatile long bandwidthBudget;
+    private long admittedAt;
+    private boolean recheckScheduled;
+
+    public PullScheduler() {
+        this(DEFAULT_MAX_CONCURRENT, 0);
+    }
+
+    public PullScheduler(int maxConcurrent, long bandwidthBudget) {
+        this.queued = new LinkedList<>();
+        this.active = new HashSet<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pull-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.bandwidthBudget = bandwidthBudget;
+    }
+
+    /**
+     * Stops the timer rechecking the admissions; pulls already begun are left to the engine.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        dispatch();
+    }
+
+    public long getBandwidthBudget() {
+        return bandwidthBudget;
+    }
+
+    /**
+     * Aggregate bytes per second the running pulls may reach before admitting another; 0 disables the budget.
+     */
+    public void setBandwidthBudget(long bytesPerSecond) {
+        this.bandwidthBudget = bytesPerSecond;
+        dispatch();
+    }
+
+    public synchronized int getQueued() {
+        return queued.size();
+    }
+
+    public synchronized int getActive() {
+        return active.size();
+    }
+
+    public synchronized long getBytesPerSecond() {
+        long rate = 0;
+        for (Pull pull : active) {
+            rate += pull.getBytesPerSecond();
+        }
+        return rate;
+    }
+
+    public void submit(Pull pull) {
+        synchronized (this) {
+            queued.add(pull);
+        }
+        dispatch();
+    }
+
+    public void finished(Pull pull) {
+        boolean removed;
+        synchronized (this) {
+            removed = active.remove(pull) || queued.remove(pull);
+        }
+        if (removed) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Re-evaluates the queue; to be called when the urgency of a queued pull may have changed.
+     */
+    public void dispatch() {
+        List<Pull> admitted = new LinkedList<>();
+        synchronized (this) {
+            while (!queued.isEmpty() && active.size() < maxConcurrent) {
+                if (!withinBudget()) {
+                    scheduleRecheck();
+                    break;
+                }
+                Pull next = next();
+                active.add(next);
+                admitted.add(next);
+                admittedAt = System.currentTimeMillis();
+            }
+        }
+        for (Pull pull : admitted) {
+            try {
+                pull.begin();
+            } catch (RuntimeException re) {
+                System.out.println("Could not begin pull of " + pull.getImage() + ": " + re.getMessage());
+                finished(pull);
+            }
+        }
+    }
+
+    private Pull next() {
+        Iterator<Pull> it = queued.iterator();
+        while (it.hasNext()) {
+            Pull pull = it.next();
+            if (pull.isUrgent()) {
+                it.remove();
+                return pull;
+            }
+        }
+        return queued.removeFirst();
+    }
+
+    private boolean withinBudget() {
+        long budget = bandwidthBudget;
+        if (budget <= 0 || active.isEmpty()) {
+            return true;
+        }
+        if (System.currentTimeMillis() - admittedAt < RAMP_UP_MILLIS) {
+            return false;
+        }
+        long rate = 0;
+        for (Pull pull : active) {
+            rate += pull.getBytesPerSecond();
+        }
+        return rate < budget;
+    }
+
+    private void scheduleRecheck() {
+        if (!recheckScheduled) {
+            recheckScheduled = true;
+            timer.schedule(() -> {
+                synchronized (this) {
+                    recheckScheduled = false;
+                }
+                dispatch();
+            }, RAMP_UP_MILLIS / 2, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * History of the role requests per image: how often the image is requested (decaying with a half-life of a day), at
+ * which hours of the day and which image tends to be requested right after which. It scores how likely an image is
+ * to be requested soon.
+ * <p>
+ * The history can be saved to a file and loaded on the next start, or on another node, so predictions do not start
+ * from scratch.
+ */
+public class RequestHistory {
+
+    public static final int MAX_IMAGES = 1_024;
+    private static final int MAGIC = 0x52524848;
+    private static final int VERSION = 1;
+    private static final double HALF_LIFE_MILLIS = Duration.ofDays(1).toMillis();
+    private static final double FREQUENCY_WEIGHT = 0.4;
+    private static final double HOUR_WEIGHT = 0.3;
+    private static final double FOLLOWER_WEIGHT = 0.3;
+
+    private final Clock clock;
+    private final ZoneId zone;
+    private final Map<ImageIdentifier, Entry> entries;
+    private ImageIdentifier last;
+
+    public RequestHistory() {
+        this(Clock.systemDefaultZone());
+    }
+
+    public RequestHistory(Clock clock) {
+        this.clock = clock;
+        this.zone = clock.getZone();
+        this.entries = new HashMap<>();
+    }
+
+    public synchronized void record(ImageIdentifier iId) {
+        long now = clock.millis();
+        Entry entry = entries.get(iId);
+        if (entry == null) {
+            if (entries.size() >= MAX_IMAGES) {
+                evict(now);
+            }
+            entry = new Entry();
+            entries.put(iId, entry);
+        }
+        entry.requested(now, hourOf(now));
+        if (last != null && !last.equals(iId)) {
+            Entry previous = entries.get(last);
+            if (previous != null) {
+                previous.followers.merge(iId, 1, Integer::sum);
+            }
+        }
+        last = iId;
+    }
+
+    public synchronized long getRequests(ImageIdentifier iId) {
+        Entry entry = entries.get(iId);
+        return entry == null ? 0 : entry.requests;
+    }
+
+    /**
+     * Likelihood, between 0 and 1, of the image being requested soon.
+     */
+    public synchronized double score(ImageIdentifier iId) {
+        long now = clock.millis();
+        return score(iId, now, hourOf(now), maxFrequency(now));
+    }
+
+    /**
+     * Images requested at least minRequests times sorted by decreasing score, keeping those scoring above minScore.
+     */
+    public synchronized List<ImageIdentifier> predict(int minRequests, double minScore, int max) {
+        long now = clock.millis();
+        int hour = hourOf(now);
+        double maxFrequency = maxFrequency(now);
+        List<ImageIdentifier> candidates = new ArrayList<>();
+        Map<ImageIdentifier, Double> scores = new HashMap<>();
+        for (Map.Entry<ImageIdentifier, Entry> e : entries.entrySet()) {
+            if (e.getValue().requests < minRequests) {
+                continue;
+            }
+            double score = score(e.getKey(), now, hour, maxFrequency);
+            if (score >= minScore) {
+                candidates.add(e.getKey());
+                scores.put(e.getKey(), score);
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(scores.get(b), scores.get(a)));
+        return candidates.size() > max ? new ArrayList<>(candidates.subList(0, max)) : candidates;
+    }
+
+    private double score(ImageIdentifier iId, long now, int hour, double maxFrequency) {
+        Entry entry = entries.get(iId);
+        if (entry == null) {
+            return 0;
+        }
+        double frequency = maxFrequency > 0 ? entry.frequency(now) / maxFrequency : 0;
+        // Requests at this hour or the next one, as a share of all the requests of the image
+        double hourly = (double) (entry.hours[hour] + entry.hours[(hour + 1) % 24]) / entry.requests;
+        double follower = 0;
+        if (last != null) {
+            Entry previous = entries.get(last);
+            if (previous != null && !previous.followers.isEmpty()) {
+                int total = 0;
+                for (int count : previous.followers.values()) {
+                    total += count;
+                }
+                follower = (double) previous.followers.getOrDefault(iId, 0) / total;
+            }
+        }
+        return FREQUENCY_WEIGHT * frequency + HOUR_WEIGHT * hourly + FOLLOWER_WEIGHT * follower;
+    }
+
+    private double maxFrequency(long now) {
+        double max = 0;
+        for (Entry entry : entries.values()) {
+            max = Math.max(max, entry.frequency(now));
+        }
+        return max;
+    }
+
+    private void evict(long now) {
+        ImageIdentifier coldest = null;
+        double coldestFrequency = Double.MAX_VALUE;
+        for (Map.Entry<ImageIdentifier, Entry> e : entries.entrySet()) {
+            double frequency = e.getValue().frequency(now);
+            if (frequency < coldestFrequency) {
+                coldest = e.getKey();
+                coldestFrequency = frequency;
+            }
+        }
+        entries.remove(coldest);
+        for (Entry entry : entries.values()) {
+            entry.followers.remove(coldest);
+        }
+        if (coldest.equals(last)) {
+            last = null;
+        }
+    }
+
+    /**
+     * Writes the history to the file, replacing it once complete.
+     */
+    public synchronized void save(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(last == null ? "" : last.toString());
+            out.writeInt(entries.size());
+            for (Map.Entry<ImageIdentifier, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey().toString());
+                out.writeLong(entry.requests);
+                out.writeDouble(entry.decayed);
+                out.writeLong(entry.updatedAt);
+                for (int count : entry.hours) {
+                    out.writeInt(count);
+                }
+                out.writeInt(entry.followers.size());
+                for (Map.Entry<ImageIdentifier, Integer> follower : entry.followers.entrySet()) {
+                    out.writeUTF(follower.getKey().toString());
+                    out.writeInt(follower.getValue());
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adds the images of a history saved to the file, e.g. by a previous run or another node, that this one does not
+     * know yet. Returns the number of images added.
+     */
+    public synchronized int load(Path file) throws IOException {
+        int added = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a request history: " + file);
+            }
+            ImageIdentifier saved = ImageIdentifier.tryParse(in.readUTF());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ImageIdentifier iId = ImageIdentifier.tryParse(in.readUTF());
+                Entry entry = new Entry();
+                entry.requests = in.readLong();
+                entry.decayed = in.readDouble();
+                entry.updatedAt = in.readLong();
+                for (int h = 0; h < entry.hours.length; h++) {
+                    entry.hours[h] = in.readInt();
+                }
+                int followers = in.readInt();
+                for (int f = 0; f < followers; f++) {
+                    ImageIdentifier follower = ImageIdentifier.tryParse(in.readUTF());
+                    int times = in.readInt();
+                    if (follower != null) {
+                        entry.followers.put(follower, times);
+                    }
+                }
+                if (iId != null && !entries.containsKey(iId) && entries.size() < MAX_IMAGES) {
+                    entries.put(iId, entry);
+                    added++;
+                }
+            }
+            if (last == null) {
+                last = saved;
+            }
+        }
+        return added;
+    }
+
+    private int hourOf(long millis) {
+        return Instant.ofEpochMilli(millis).atZone(zone).getHour();
+    }
+
+    private static class Entry {
+        private final int[] hours;
+        private final Map<ImageIdentifier, Integer> followers;
+        private long requests;
+        private double decayed;
+        private long updatedAt;
+
+        public Entry() {
+            this.hours = new int[24];
+            this.followers = new HashMap<>();
+        }
+
+        public void requested(long now, int hour) {
+            decayed = frequency(now) + 1;
+            updatedAt = now;
+            requests++;
+            hours[hour]++;
+        }
+
+        public double frequency(long now) {
+            return decayed * Math.pow(0.5, (now - updatedAt) / HALF_LIFE_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.metrics;
+
+import com.github.flordan.rolerunner.container.Container.Status;
+
+/**
+ * Service provider interface to forward the role-runner measurements to an external metrics system. Implementations
+ * are discovered with java.util.ServiceLoader while a RoleRunner is alive or registered through
+ * RoleRunnerMetrics.addListener. They are invoked on the thread that takes the measurement, so they must not block.
+ */
+public interface MetricsListener {
+
+    public default void phaseCompleted(Phase phase, long nanos) {
+    }
+
+    public default void statusEntered(Status status) {
+    }
+
+    public default void imageCounted(String image, ImageCounter counter) {
+    }
+
+    public default void daemonCall(String operation, long nanos, boolean failed) {
+    }
+}
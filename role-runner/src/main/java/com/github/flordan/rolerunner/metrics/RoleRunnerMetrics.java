@@ -0,0 +1,247 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.metrics;
+
+import com.github.flordan.rolerunner.container.Container.Status;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide measurements of the role lifecycle. While a RoleRunner is alive, they are published as the MBean
+ * com.github.flordan.rolerunner:type=RoleRunnerMetrics and forwarded to the registered MetricsListeners.
+ */
+public class RoleRunnerMetrics {
+
+    public static final String OBJECT_NAME = "com.github.flordan.rolerunner:type=RoleRunnerMetrics";
+
+    private static final Map<Phase, LatencyHistogram> PHASES;
+    private static final Map<Status, LongAdder> STATUSES;
+    private static final Map<String, LatencyHistogram> DAEMON_CALLS;
+    private static final Map<String, LongAdder> DAEMON_FAILURES;
+    private static final Map<String, Map<ImageCounter, LongAdder>> IMAGES;
+    private static final List<MetricsListener> LISTENERS;
+    private static final List<MetricsListener> DISCOVERED;
+    private static int registrations;
+
+    static {
+        PHASES = new EnumMap<>(Phase.class);
+        for (Phase phase : Phase.values()) {
+            PHASES.put(phase, new LatencyHistogram());
+        }
+        STATUSES = new EnumMap<>(Status.class);
+        for (Status status : Status.values()) {
+            STATUSES.put(status, new LongAdder());
+        }
+        DAEMON_CALLS = new ConcurrentHashMap<>();
+        DAEMON_FAILURES = new ConcurrentHashMap<>();
+        IMAGES = new ConcurrentHashMap<>();
+        LISTENERS = new CopyOnWriteArrayList<>();
+        DISCOVERED = new ArrayList<>();
+    }
+
+    private RoleRunnerMetrics() throws InstantiationException {
+        throw new InstantiationException();
+    }
+
+    /**
+     * Publishes the MBean and adds the MetricsListeners discovered with java.util.ServiceLoader, the first time it is
+     * called until every call is matched by unregister. Called by each RoleRunner when created.
+     */
+    public static synchronized void register() {
+        if (registrations++ > 0) {
+            return;
+        }
+        for (MetricsListener listener : ServiceLoader.load(MetricsListener.class)) {
+            DISCOVERED.add(listener);
+            LISTENERS.add(listener);
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MBean(), name);
+            }
+        } catch (JMException | SecurityException e) {
+            System.out.println("Could not register role-runner metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Withdraws the MBean and the discovered listeners once every register call has been matched. Called by each
+     * RoleRunner when shut down.
+     */
+    public static synchronized void unregister() {
+        if (registrations == 0 || --registrations > 0) {
+            return;
+        }
+        LISTENERS.removeAll(DISCOVERED);
+        DISCOVERED.clear();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException | SecurityException e) {
+            System.out.println("Could not unregister role-runner metrics MBean: " + e.getMessage());
+        }
+    }
+
+    public static void addListener(MetricsListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    public static void removeListener(MetricsListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    public static void phaseCompleted(Phase phase, long nanos) {
+        PHASES.get(phase).record(nanos);
+        for (MetricsListener listener : LISTENERS) {
+            listener.phaseCompleted(phase, nanos);
+        }
+    }
+
+    public static void statusEntered(Status status) {
+        STATUSES.get(status).increment();
+        for (MetricsListener listener : LISTENERS) {
+            listener.statusEntered(status);
+        }
+    }
+
+    public static void imageCounted(String image, ImageCounter counter) {
+        IMAGES.computeIfAbsent(image, k -> {
+            Map<ImageCounter, LongAdder> counters = new EnumMap<>(ImageCounter.class);
+            for (ImageCounter c : ImageCounter.values()) {
+                counters.put(c, new LongAdder());
+            }
+            return counters;
+        }).get(counter).increment();
+        for (MetricsListener listener : LISTENERS) {
+            listener.imageCounted(image, counter);
+        }
+    }
+
+    public static void daemonCall(String operation, long nanos, boolean failed) {
+        DAEMON_CALLS.computeIfAbsent(operation, k -> new LatencyHistogram()).record(nanos);
+        if (failed) {
+            DAEMON_FAILURES.computeIfAbsent(operation, k -> new LongAdder()).increment();
+        }
+        for (MetricsListener listener : LISTENERS) {
+            listener.daemonCall(operation, nanos, failed);
+        }
+    }
+
+    public static LatencyHistogram getPhase(Phase phase) {
+        return PHASES.get(phase);
+    }
+
+    public static LatencyHistogram getDaemonCall(String operation) {
+        return DAEMON_CALLS.get(operation);
+    }
+
+    public static long getStatusTransitions(Status status) {
+        return STATUSES.get(status).sum();
+    }
+
+    public static long getImageCount(String image, ImageCounter counter) {
+        Map<ImageCounter, LongAdder> counters = IMAGES.get(image);
+        return counters == null ? 0 : counters.get(counter).sum();
+    }
+
+    public static void reset() {
+        for (LatencyHistogram histogram : PHASES.values()) {
+            histogram.reset();
+        }
+        for (LongAdder adder : STATUSES.values()) {
+            adder.reset();
+        }
+        DAEMON_CALLS.clear();
+        DAEMON_FAILURES.clear();
+        IMAGES.clear();
+    }
+
+
+    private static class MBean implements RoleRunnerMetricsMXBean {
+
+        @Override
+        public Map<String, LatencyHistogram.Snapshot> getPhases() {
+            Map<String, LatencyHistogram.Snapshot> phases = new TreeMap<>();
+            for (Map.Entry<Phase, LatencyHistogram> phase : PHASES.entrySet()) {
+                phases.put(phase.getKey().name(), phase.getValue().snapshot());
+            }
+            return phases;
+        }
+
+        @Override
+        public Map<String, LatencyHistogram.Snapshot> getDaemonCalls() {
+            Map<String, LatencyHistogram.Snapshot> calls = new TreeMap<>();
+            for (Map.Entry<String, LatencyHistogram> call : DAEMON_CALLS.entrySet()) {
+                calls.put(call.getKey(), call.getValue().snapshot());
+            }
+            return calls;
+        }
+
+        @Override
+        public Map<String, Long> getDaemonCallFailures() {
+            Map<String, Long> failures = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> failure : DAEMON_FAILURES.entrySet()) {
+                failures.put(failure.getKey(), failure.getValue().sum());
+            }
+            return failures;
+        }
+
+        @Override
+        public Map<String, Long> getStatusTransitions() {
+            Map<String, Long> statuses = new TreeMap<>();
+            for (Map.Entry<Status, LongAdder> status : STATUSES.entrySet()) {
+                statuses.put(status.getKey().name(), status.getValue().sum());
+            }
+            return statuses;
+        }
+
+        @Override
+        public Map<String, Map<String, Long>> getImageCounters() {
+            Map<String, Map<String, Long>> images = new TreeMap<>();
+            for (Map.Entry<String, Map<ImageCounter, LongAdder>> image : IMAGES.entrySet()) {
+                Map<String, Long> counters = new TreeMap<>();
+                for (Map.Entry<ImageCounter, LongAdder> counter : image.getValue().entrySet()) {
+                    counters.put(counter.getKey().name(), counter.getValue().sum());
+                }
+                images.put(image.getKey(), counters);
+            }
+            return images;
+        }
+
+        @Override
+        public void reset() {
+            RoleRunnerMetrics.reset();
+        }
+    }
+}
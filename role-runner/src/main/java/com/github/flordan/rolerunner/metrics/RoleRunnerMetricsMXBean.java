@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.metrics;
+
+import java.util.Map;
+
+public interface RoleRunnerMetricsMXBean {
+
+    public Map<String, LatencyHistogram.Snapshot> getPhases();
+
+    public Map<String, LatencyHistogram.Snapshot> getDaemonCalls();
+
+    public Map<String, Long> getDaemonCallFailures();
+
+    public Map<String, Long> getStatusTransitions();
+
+    public Map<String, Map<String, Long>> getImageCounters();
+
+    public void reset();
+}
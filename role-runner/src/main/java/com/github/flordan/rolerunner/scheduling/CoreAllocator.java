@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.scheduling;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hands out disjoint sets of cores to the roles asking for dedicated ones. Each set is taken from a single NUMA node
+ * when one has enough free cores, choosing the node left with the fewest free to keep larger blocks for later
+ * requests; otherwise it spans the nodes with the most free cores.
+ */
+public class CoreAllocator {
+
+    public static final Path NODES_DIR = Paths.get("/sys/devices/system/node");
+
+    private final Map<Integer, BitSet> nodes;
+    private final Map<Integer, BitSet> free;
+
+    /**
+     * Allocator over the given cores of each NUMA node.
+     */
+    public CoreAllocator(Map<Integer, List<Integer>> topology) {
+        this.nodes = new TreeMap<>();
+        this.free = new TreeMap<>();
+        for (Map.Entry<Integer, List<Integer>> node : topology.entrySet()) {
+            BitSet cores = new BitSet();
+            for (int core : node.getValue()) {
+                cores.set(core);
+            }
+            this.nodes.put(node.getKey(), cores);
+            this.free.put(node.getKey(), (BitSet) cores.clone());
+        }
+    }
+
+    /**
+     * Allocator over the cores of this host, read from sysfs. Hosts not exposing their NUMA nodes are taken as a single
+     * node with all the available processors.
+     */
+    public static CoreAllocator fromSystem() {
+        Map<Integer, List<Integer>> topology = new TreeMap<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(NODES_DIR, "node[0-9]*")) {
+            for (Path dir : dirs) {
+                int node = Integer.parseInt(dir.getFileName().toString().substring(4));
+                List<Integer> cores = parseList(Files.readString(dir.resolve("cpulist")));
+                if (!cores.isEmpty()) {
+                    topology.put(node, cores);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            topology.clear();
+        }
+        if (topology.isEmpty()) {
+            return ofCores(Runtime.getRuntime().availableProcessors());
+        }
+        return new CoreAllocator(topology);
+    }
+
+    /**
+     * Allocator over cores 0 to count - 1 taken as a single node, for hosts whose topology is unknown.
+     */
+    public static CoreAllocator ofCores(int count) {
+        List<Integer> cores = new ArrayList<>();
+        for (int core = 0; core < count; core++) {
+            cores.add(core);
+        }
+        Map<Integer, List<Integer>> topology = new TreeMap<>();
+        topology.put(0, cores);
+        return new CoreAllocator(topology);
+    }
+
+    /**
+     * Parses a list in the kernel's cpulist format, e.g. 0-3,8,10-11.
+     */
+    public static List<Integer> parseList(String list) {
+        List<Integer> values = new ArrayList<>();
+        for (String range : list.trim().split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+            for (int value = first; value <= last; value++) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Formats the set bits in the kernel's cpulist format.
+     */
+    public static String formatList(BitSet values) {
+        StringBuilder sb = new StringBuilder();
+        int first = values.nextSetBit(0);
+        while (first >= 0) {
+            int last = values.nextClearBit(first) - 1;
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(first);
+            if (last > first) {
+                sb.append('-').append(last);
+            }
+            first = values.nextSetBit(last + 1);
+        }
+        return sb.toString();
+    }
+
+    public synchronized int getFreeCores() {
+        int count = 0;
+        for (BitSet cores : free.values()) {
+            count += cores.cardinality();
+        }
+        return count;
+    }
+
+    /**
+     * Takes the given number of free cores. Returns null if there are not as many free.
+     */
+    public synchronized Allocation allocate(int count) {
+        if (count <= 0 || getFreeCores() < count) {
+            return null;
+        }
+        BitSet cpus = new BitSet();
+        BitSet mems = new BitSet();
+        Integer fit = null;
+        for (Map.Entry<Integer, BitSet> node : free.entrySet()) {
+            int available = node.getValue().cardinality();
+            if (available >= count && (fit == null || available < free.get(fit).cardinality())) {
+                fit = node.getKey();
+            }
+        }
+        if (fit != null) {
+            take(fit, count, cpus, mems);
+        } else {
+            List<Integer> order = new ArrayList<>(free.keySet());
+            order.sort((a, b) -> free.get(b).cardinality() - free.get(a).cardinality());
+            int missing = count;
+            for (Integer node : order) {
+                missing -= take(node, missing, cpus, mems);
+                if (missing == 0) {
+                    break;
+                }
+            }
+        }
+        return new Allocation(cpus, mems);
+    }
+
+    private int take(int node, int count, BitSet cpus, BitSet mems) {
+        BitSet available = free.get(node);
+        int taken = 0;
+        for (int core = available.nextSetBit(0); core >= 0 && taken < count; core = available.nextSetBit(core + 1)) {
+            available.clear(core);
+            cpus.set(core);
+            taken++;
+        }
+        if (taken > 0) {
+            mems.set(node);
+        }
+        return taken;
+    }
+
+    /**
+     * Returns the cores of an allocation to the free ones.
+     */
+    public synchronized void release(Allocation allocation) {
+        for (Map.Entry<Integer, BitSet> node : nodes.entrySet()) {
+            BitSet returned = (BitSet) allocation.cpus.clone();
+            returned.and(node.getValue());
+            free.get(node.getKey()).or(returned);
+        }
+    }
+
+
+    /**
+     * Cores handed out to a role and the NUMA nodes they belong to.
+     */
+    public static class Allocation {
+        private final BitSet cpus;
+        private final BitSet mems;
+
+        private Allocation(BitSet cpus, BitSet mems) {
+            this.cpus = cpus;
+            this.mems = mems;
+        }
+
+        public int getCoreCount() {
+            return cpus.cardinality();
+        }
+
+        public String getCpus() {
+            return formatList(cpus);
+        }
+
+        public String getMems() {
+            return formatList(mems);
+        }
+
+        @Override
+        public String toString() {
+            return "cpus " + getCpus() + " mems " + getMems();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.scheduling;
+
+import com.github.flordan.rolerunner.RoleRunner;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the engines a SchedulingRoleRunner places roles on, with the bookkeeping the placement policies rely on: the
+ * roles placed on it and not destroyed yet and the images requested on it, which will be present soon.
+ */
+public class Endpoint {
+
+    private final String name;
+    private final RoleRunner runner;
+    private final AtomicInteger roles;
+    private final Set<ImageIdentifier> requested;
+
+    public Endpoint(String name, RoleRunner runner) {
+        this.name = name;
+        this.runner = runner;
+        this.roles = new AtomicInteger();
+        this.requested = ConcurrentHashMap.newKeySet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public RoleRunner getRunner() {
+        return runner;
+    }
+
+    /**
+     * Roles placed on the endpoint, starting or running, not destroyed yet.
+     */
+    public int getRoles() {
+        return roles.get();
+    }
+
+    /**
+     * Whether the image is present on the endpoint or has already been requested on it.
+     */
+    public boolean hasImage(ImageIdentifier iId) {
+        return requested.contains(iId) || runner.isImageAvailable(iId);
+    }
+
+    /**
+     * Resources of the endpoint's host, null if unknown.
+     */
+    public Resources getCapacity() {
+        return runner.getCapacity();
+    }
+
+    void requested(ImageIdentifier iId) {
+        requested.add(iId);
+    }
+
+    void placed(ImageIdentifier iId) {
+        roles.incrementAndGet();
+        requested.add(iId);
+    }
+
+    void released() {
+        roles.decrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + roles.get() + " roles]";
+    }
+}
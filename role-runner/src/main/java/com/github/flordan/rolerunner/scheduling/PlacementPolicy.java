@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.scheduling;
+
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the endpoint a role is started on.
+ */
+public interface PlacementPolicy {
+
+    /**
+     * Chooses, among the endpoints (never empty), where to start a role of the image.
+     */
+    Endpoint place(ImageIdentifier iId, List<Endpoint> endpoints);
+
+    /**
+     * Places the role on the endpoint with the fewest roles.
+     */
+    static PlacementPolicy leastLoaded() {
+        return (iId, endpoints) -> fewestRoles(endpoints);
+    }
+
+    /**
+     * Places the role on the least loaded of the endpoints where the image is present or already requested, so the
+     * image is only pulled where none has it.
+     */
+    static PlacementPolicy imageLocality() {
+        return (iId, endpoints) -> {
+            List<Endpoint> local = new ArrayList<>();
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.hasImage(iId)) {
+                    local.add(endpoint);
+                }
+            }
+            return fewestRoles(local.isEmpty() ? endpoints : local);
+        };
+    }
+
+    /**
+     * Places the role on the endpoint left with the largest share of its CPUs and memory free, counting each role
+     * placed as taking the given demand. Endpoints of unknown capacity are only used when no other is known.
+     */
+    static PlacementPolicy headroom(Resources demand) {
+        return (iId, endpoints) -> {
+            Endpoint best = null;
+            double bestFree = Double.NEGATIVE_INFINITY;
+            for (Endpoint endpoint : endpoints) {
+                Resources capacity = endpoint.getCapacity();
+                if (capacity == null || capacity.getCpus() <= 0 || capacity.getMemory() <= 0) {
+                    continue;
+                }
+                int roles = endpoint.getRoles() + 1;
+                double cpus = 1 - roles * demand.getCpus() / capacity.getCpus();
+                double memory = 1 - (double) roles * demand.getMemory() / capacity.getMemory();
+                double free = Math.min(cpus, memory);
+                if (free > bestFree) {
+                    best = endpoint;
+                    bestFree = free;
+                }
+            }
+            return best != null ? best : fewestRoles(endpoints);
+        };
+    }
+
+    private static Endpoint fewestRoles(List<Endpoint> endpoints) {
+        Endpoint best = null;
+        for (Endpoint endpoint : endpoints) {
+            if (best == null || endpoint.getRoles() < best.getRoles()) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+}
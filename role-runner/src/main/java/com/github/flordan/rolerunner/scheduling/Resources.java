@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.scheduling;
+
+/**
+ * Amount of CPUs and memory, either offered by an engine's host or needed by a role.
+ */
+public final class Resources {
+
+    private final double cpus;
+    private final long memory;
+
+    public Resources(double cpus, long memory) {
+        this.cpus = cpus;
+        this.memory = memory;
+    }
+
+    public double getCpus() {
+        return cpus;
+    }
+
+    /**
+     * Memory in bytes.
+     */
+    public long getMemory() {
+        return memory;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Resources)) {
+            return false;
+        }
+        Resources other = (Resources) o;
+        return Double.compare(cpus, other.cpus) == 0 && memory == other.memory;
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(cpus) * 31 + Long.hashCode(memory);
+    }
+
+    @Override
+    public String toString() {
+        return cpus + " CPUs, " + (memory >> 20) + " MiB";
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.scheduling;
+
+import com.github.flordan.rolerunner.RoleRunner;
+import com.github.flordan.rolerunner.container.Container;
+import com.github.flordan.rolerunner.container.ContainerSpec;
+import com.github.flordan.rolerunner.image.Image;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import com.github.flordan.rolerunner.image.PullProgress;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * RoleRunner spreading its roles over several engines. Each role is started on the endpoint the placement policy
+ * chooses and stopped and destroyed through the same endpoint; the available images are those of any endpoint.
+ */
+public class SchedulingRoleRunner implements RoleRunner {
+
+    private final List<Endpoint> endpoints;
+    private final Map<Container, Endpoint> placements;
+    private volatile PlacementPolicy policy;
+
+    public SchedulingRoleRunner(List<Endpoint> endpoints) {
+        this(endpoints, PlacementPolicy.imageLocality());
+    }
+
+    public SchedulingRoleRunner(List<Endpoint> endpoints, PlacementPolicy policy) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints to schedule roles on");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.placements = new ConcurrentHashMap<>();
+        this.policy = policy;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public PlacementPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(PlacementPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Endpoint running the container, null if the container was not started by this runner or is already destroyed.
+     */
+    public Endpoint getEndpoint(Container cntr) {
+        return placements.get(cntr);
+    }
+
+    @Override
+    public boolean isImageAvailable(ImageIdentifier tag) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.getRunner().isImageAvailable(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Set<ImageIdentifier> getAvailableImages() {
+        Set<ImageIdentifier> images = new HashSet<>();
+        for (Endpoint endpoint : endpoints) {
+            images.addAll(endpoint.getRunner().getAvailableImages());
+        }
+        return images;
+    }
+
+    /**
+     * Fetches the image on the endpoint the policy would start a role of it on.
+     */
+    @Override
+    public void fetchImage(ImageIdentifier iId) {
+        fetchImageAsync(iId);
+    }
+
+    @Override
+    public CompletableFuture<Image> fetchImageAsync(ImageIdentifier iId) {
+        return fetchImageAsync(iId, null);
+    }
+
+    @Override
+    public CompletableFuture<Image> fetchImageAsync(ImageIdentifier iId, Consumer<PullProgress> progress) {
+        Endpoint endpoint;
+        synchronized (this) {
+            endpoint = policy.place(iId, endpoints);
+            endpoint.requested(iId);
+        }
+        return endpoint.getRunner().fetchImageAsync(iId, progress);
+    }
+
+    @Override
+    public void startRole(ImageIdentifier iId) {
+        startRoleAsync(iId, null);
+    }
+
+    @Override
+    public void startRole(ImageIdentifier iId, ContainerSpec spec) {
+        startRoleAsync(iId, spec, null);
+    }
+
+    @Override
+    public CompletableFuture<Container> startRoleAsync(ImageIdentifier iId, Duration deadline) {
+        return startRoleAsync(iId, ContainerSpec.DEFAULT, deadline);
+    }
+
+    @Override
+    public CompletableFuture<Container> startRoleAsync(ImageIdentifier iId, ContainerSpec spec, Duration deadline) {
+        Endpoint endpoint;
+        // Placements are serialized so that each one sees the roles placed before
+        synchronized (this) {
+            endpoint = policy.place(iId, endpoints);
+            endpoint.placed(iId);
+        }
+        CompletableFuture<Container> started;
+        try {
+            started = endpoint.getRunner().startRoleAsync(iId, spec, deadline);
+        } catch (RuntimeException re) {
+            endpoint.released();
+            throw re;
+        }
+        return started.whenComplete((cntr, failure) -> {
+            if (failure != null) {
+                endpoint.released();
+                return;
+            }
+            placements.put(cntr, endpoint);
+            cntr.whenStatus(Container.Status.DESTROYED).thenRun(() -> {
+                placements.remove(cntr);
+                endpoint.released();
+            });
+        });
+    }
+
+    @Override
+    public CompletableFuture<Container> stopRoleAsync(Container cntr) {
+        Endpoint endpoint = placements.get(cntr);
+        if (endpoint == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Unknown container " + cntr));
+        }
+        return endpoint.getRunner().stopRoleAsync(cntr);
+    }
+
+    @Override
+    public CompletableFuture<Container> destroyRoleAsync(Container cntr) {
+        Endpoint endpoint = placements.get(cntr);
+        if (endpoint == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Unknown container " + cntr));
+        }
+        return endpoint.getRunner().destroyRoleAsync(cntr);
+    }
+
+    /**
+     * Total resources of the endpoints reporting theirs, null if none does.
+     */
+    @Override
+    public Resources getCapacity() {
+        double cpus = 0;
+        long memory = 0;
+        boolean known = false;
+        for (Endpoint endpoint : endpoints) {
+            Resources capacity = endpoint.getCapacity();
+            if (capacity != null) {
+                cpus += capacity.getCpus();
+                memory += capacity.getMemory();
+                known = true;
+            }
+        }
+        return known ? new Resources(cpus, memory) : null;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.container;
+
+import com.github.flordan.rolerunner.image.Image;
+import com.github.flordan.rolerunner.image.ImageIdentifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContainerLifecycleTest {
+
+    private ExecutorService engine;
+    private StubImage image;
+
+    @Before
+    public void setUp() {
+        engine = Executors.newSingleThreadExecutor();
+        image = new StubImage();
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdownNow();
+    }
+
+    @Test
+    public void sequentialLifecycle() throws Exception {
+        StubContainer cntr = new StubContainer(image, engine);
+        cntr.created();
+        assertEquals(Container.Status.CREATED, cntr.getStatus());
+
+        cntr.start();
+        awaitStatus(cntr, Container.Status.RUNNING);
+        cntr.stop();
+        awaitStatus(cntr, Container.Status.STOPPED);
+        cntr.destroy();
+        awaitStatus(cntr, Container.Status.DESTROYED);
+
+        assertEquals(1, cntr.starts.get());
+        assertEquals(1, cntr.stops.get());
+        assertEquals(1, cntr.destroys.get());
+    }
+
+    @Test
+    public void restartAfterStop() throws Exception {
+        StubContainer cntr = new StubContainer(image, engine);
+        cntr.created();
+        for (int i = 0; i < 3; i++) {
+            cntr.start();
+            awaitStatus(cntr, Container.Status.RUNNING);
+            cntr.stop();
+            awaitStatus(cntr, Container.Status.STOPPED);
+        }
+        cntr.destroy();
+        awaitStatus(cntr, Container.Status.DESTROYED);
+
+        assertEquals(3, cntr.starts.get());
+        assertEquals(3, cntr.stops.get());
+        assertEquals(1, cntr.destroys.get());
+    }
+
+    @Test
+    public void destroyedContainersAreNotRecycled() throws Exception {
+        ContainerManager manager = new ContainerManager();
+        ContainerRecycler recycler = new ContainerRecycler(new ImageIdentifier("stub"), 1);
+        StubContainer cntr = new StubContainer(image, engine);
+        cntr.created();
+        cntr.start();
+        awaitStatus(cntr, Container.Status.RUNNING);
+
+        AtomicBoolean recycled = new AtomicBoolean();
+        cntr.whenStatus(Container.Status.STOPPED)
+            .thenRun(() -> recycled.set(recycler.recycle(manager, cntr, ContainerSpec.DEFAULT)));
+        CompletableFuture<Container> stopped = cntr.whenStatus(Container.Status.STOPPED);
+        // Goes through STOPPED with the destroy still pending
+        cntr.destroy();
+        awaitStatus(cntr, Container.Status.DESTROYED);
+
+        assertFalse(recycled.get());
+        assertEquals(0, recycler.getStoppedCount());
+        assertEquals(cntr, stopped.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void destroyWhileStartingStopsFirst() throws Exception {
+        StubContainer cntr = new StubContainer(image, engine);
+        cntr.created();
+        CountDownLatch hold = new CountDownLatch(1);
+        engine.execute(() -> {
+            try {
+                hold.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        cntr.start();
+        assertEquals(Container.Status.STARTING, cntr.getStatus());
+        cntr.destroy();
+        cntr.start();
+        hold.countDown();
+        awaitStatus(cntr, Container.Status.DESTROYED);
+
+        assertEquals(1, cntr.starts.get());
+        assertEquals(1, cntr.stops.get());
+        assertEquals(1, cntr.destroys.get());
+    }
+
+    @Test
+    public void concurrentStartStopDestroy() throws Exception {
+        int containerCount = 200;
+        int threadCount = 8;
+        int operations = 2_000;
+
+        List<StubContainer> containers = new ArrayList<>();
+        for (int i = 0; i < containerCount; i++) {
+            StubContainer cntr = new StubContainer(image, engine);
+            cntr.created();
+            containers.add(cntr);
+        }
+
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    go.await();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                for (int op = 0; op < operations; op++) {
+                    StubContainer cntr = containers.get(random.nextInt(containerCount));
+                    switch (random.nextInt(10)) {
+                        case 0:
+                            cntr.destroy();
+                            break;
+                        case 1:
+                        case 2:
+                        case 3:
+                        case 4:
+                            cntr.stop();
+                            break;
+                        default:
+                            cntr.start();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (StubContainer cntr : containers) {
+            cntr.destroy();
+        }
+        for (StubContainer cntr : containers) {
+            awaitStatus(cntr, Container.Status.DESTROYED);
+        }
+
+        for (StubContainer cntr : containers) {
+            assertFalse("Concurrent engine calls on the same container", cntr.overlapped.get());
+            assertEquals(1, cntr.destroys.get());
+            assertEquals(cntr.starts.get(), cntr.stops.get());
+        }
+        assertTrue(image.getContainers().isEmpty());
+    }
+
+    private static void awaitStatus(Container cntr, Container.Status status) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cntr.getStatus() != status) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Container stuck in " + cntr.getStatus() + " waiting for " + status);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+
+    private static class StubImage extends Image {
+
+        @Override
+        public void delete() {
+        }
+
+        @Override
+        public void createContainer(ContainerManager monitor) {
+        }
+    }
+
+
+    private static class StubContainer extends Container {
+        private final ExecutorService engine;
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private final AtomicBoolean overlapped = new AtomicBoolean();
+        private final AtomicInteger starts = new AtomicInteger();
+        private final AtomicInteger stops = new AtomicInteger();
+        private final AtomicInteger destroys = new AtomicInteger();
+
+        public StubContainer(StubImage image, ExecutorService engine) {
+            super(image);
+            this.engine = engine;
+            image.addContainer(this);
+        }
+
+        private void enter() {
+            if (!busy.compareAndSet(false, true)) {
+                overlapped.set(true);
+            }
+        }
+
+        @Override
+        public void specificStart() {
+            enter();
+            starts.incrementAndGet();
+            engine.execute(() -> {
+                busy.set(false);
+                started();
+            });
+        }
+
+        @Override
+        public void specificStop() {
+            enter();
+            stops.incrementAndGet();
+            engine.execute(() -> {
+                busy.set(false);
+                stopped();
+            });
+        }
+
+        @Override
+        public void specificDestroy() {
+            enter();
+            destroys.incrementAndGet();
+            engine.execute(() -> {
+                busy.set(false);
+                destroyed();
+            });
+        }
+
+        @Override
+        public boolean canExec() {
+            return false;
+        }
+
+        @Override
+        public int exec(List<String> command, Duration timeout) {
+            throw new IllegalStateException("Cannot run commands in " + this);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.image;
+
+import com.github.flordan.rolerunner.container.ContainerManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageCacheTest {
+
+    private static final ImageIdentifier WEB = ImageIdentifier.parse("team/web:1.0");
+    private static final ImageIdentifier DB = ImageIdentifier.parse("team/db:1.0");
+    private static final ImageIdentifier BATCH = ImageIdentifier.parse("team/batch:1.0");
+
+    private final Map<ImageIdentifier, StubImage> present = new ConcurrentHashMap<>();
+    private ImageManager manager;
+
+    @Before
+    public void setUp() {
+        manager = new ImageManager(new ImageManager.ImageHandler() {
+            @Override
+            public void requestImage(ImageIdentifier iId, ImageManager handler) {
+                StubImage img = new StubImage(handler, iId);
+                present.put(iId, img);
+                img.fetched();
+            }
+
+            @Override
+            public Image getImage(ImageIdentifier iId) {
+                return present.get(iId);
+            }
+
+            @Override
+            public Set<ImageIdentifier> getAvailableImages() {
+                return present.keySet();
+            }
+        });
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        manager.obtainImage(WEB, null);
+        Thread.sleep(5);
+        manager.obtainImage(DB, null);
+        Thread.sleep(5);
+        // Using WEB again leaves DB as the least recently used
+        manager.obtainImage(WEB, null);
+        Thread.sleep(5);
+        manager.obtainImage(BATCH, null);
+
+        manager.setDiskQuota(250);
+        manager.enforceQuota();
+        assertTrue(manager.isImageAvailable(WEB));
+        assertFalse(manager.isImageAvailable(DB));
+        assertTrue(manager.isImageAvailable(BATCH));
+        assertEquals(200, manager.getCachedBytes());
+    }
+
+    @Test
+    public void keepsPinnedImages() throws Exception {
+        manager.pin(WEB);
+        manager.obtainImage(WEB, null);
+        Thread.sleep(5);
+        manager.obtainImage(DB, null);
+
+        manager.setDiskQuota(150);
+        manager.enforceQuota();
+        assertTrue(manager.isImageAvailable(WEB));
+        assertFalse(manager.isImageAvailable(DB));
+
+        manager.setDiskQuota(50);
+        manager.enforceQuota();
+        assertTrue(manager.isImageAvailable(WEB));
+    }
+
+    @Test
+    public void countsImagesKeptFromPreviousRuns() throws Exception {
+        present.put(DB, new StubImage(manager, DB));
+        Thread.sleep(5);
+        manager.obtainImage(WEB, null);
+
+        assertEquals(200, manager.getCachedBytes());
+        manager.setDiskQuota(150);
+        manager.enforceQuota();
+        assertTrue(manager.isImageAvailable(WEB));
+        assertFalse(manager.isImageAvailable(DB));
+    }
+
+    private class StubImage extends Image {
+        private final ImageIdentifier iId;
+
+        public StubImage(ImageManager monitor, ImageIdentifier iId) {
+            super(monitor);
+            this.iId = iId;
+            addTag(iId);
+            setSize(100);
+        }
+
+        @Override
+        public void delete() {
+            present.remove(iId);
+            deleted();
+        }
+
+        @Override
+        public void createContainer(ContainerManager monitor) {
+        }
+    }
+}
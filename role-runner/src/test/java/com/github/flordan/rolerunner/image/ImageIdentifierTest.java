@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.image;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ImageIdentifierTest {
+
+    @Test
+    public void parseReferences() {
+        check("busybox", null, "busybox", "latest", null);
+        check("busybox:1.36", null, "busybox", "1.36", null);
+        check("library/busybox:1.36", null, "library/busybox", "1.36", null);
+        check("docker.io/library/busybox", "docker.io", "library/busybox", "latest", null);
+        check("localhost/role", "localhost", "role", "latest", null);
+        check("localhost:5000/org/repo:tag", "localhost:5000", "org/repo", "tag", null);
+        check("Registry/role:1", "Registry", "role", "1", null);
+        check("my-org/my_role.v2:1.0-rc.1", null, "my-org/my_role.v2", "1.0-rc.1", null);
+        String digest = "sha256:4f2b6e0c9a1d8b7e3c5a2f1e0d9c8b7a6f5e4d3c2b1a09f8e7d6c5b4a3928170";
+        check("repo@" + digest, null, "repo", null, digest);
+        check("host:443/repo:1.0@" + digest, "host:443", "repo", "1.0", digest);
+    }
+
+    @Test
+    public void rejectInvalidReferences() {
+        for (String invalid : new String[]{"", "<none>:<none>", "Busybox", "repo:", "repo:-tag", "/repo", "repo/",
+            "org//repo", "localhost:5000/", "repo@sha256", "repo@sha256:xyz", ".repo", "re..po", "repo@sha256:abcd",
+            "repo@SHA256:" + "ab".repeat(32), "repo@sha256:" + "AB".repeat(32), "repo@sha-:abcd", "repo@+sha:abcd"}) {
+            try {
+                ImageIdentifier.parse(invalid);
+                fail("Parsed invalid reference " + invalid);
+            } catch (IllegalArgumentException iae) {
+                // Expected
+            }
+            assertNull(ImageIdentifier.tryParse(invalid));
+        }
+    }
+
+    @Test
+    public void equalIdentifiersAreInterchangeableKeys() {
+        ImageIdentifier parsed = ImageIdentifier.parse("busybox");
+        ImageIdentifier built = new ImageIdentifier("busybox", "latest");
+        assertEquals(parsed, built);
+        assertEquals(parsed.hashCode(), built.hashCode());
+        assertEquals(0, parsed.compareTo(built));
+        assertEquals(parsed, new ImageIdentifier("", "busybox", "latest"));
+        assertSame(parsed, ImageIdentifier.parse("busybox"));
+
+        Map<ImageIdentifier, String> map = new HashMap<>();
+        map.put(built, "found");
+        assertEquals("found", map.get(ImageIdentifier.parse("busybox:latest")));
+        assertNull(map.get(ImageIdentifier.parse("localhost/busybox")));
+    }
+
+    @Test
+    public void defaultRegistryAndOfficialNamespaceAreLeftOut() {
+        ImageIdentifier reported = ImageIdentifier.parse("busybox:latest");
+        assertEquals(reported, ImageIdentifier.parse("busybox"));
+        assertEquals(reported, ImageIdentifier.parse("library/busybox"));
+        assertEquals(reported, ImageIdentifier.parse("docker.io/library/busybox"));
+        assertEquals(reported, ImageIdentifier.parse("index.docker.io/library/busybox:latest"));
+        assertEquals("busybox:latest", ImageIdentifier.parse("docker.io/library/busybox").toString());
+        assertEquals("team/web:1.0", ImageIdentifier.parse("docker.io/team/web:1.0").toString());
+        assertEquals("localhost/library/busybox:latest", ImageIdentifier.parse("localhost/library/busybox").toString());
+        assertEquals("library/team/web:1.0", ImageIdentifier.parse("library/team/web:1.0").toString());
+    }
+
+    @Test
+    public void digestsIdentifyRegardlessOfTag() {
+        String digest = "sha256:4f2b6e0c9a1d8b7e3c5a2f1e0d9c8b7a6f5e4d3c2b1a09f8e7d6c5b4a3928170";
+        ImageIdentifier requested = ImageIdentifier.parse("host:443/repo:1.0@" + digest);
+        ImageIdentifier reported = ImageIdentifier.parse("host:443/repo@" + digest);
+        assertEquals(reported, requested);
+        assertEquals(reported.hashCode(), requested.hashCode());
+        assertEquals("1.0", requested.getTag());
+        assertEquals("host:443/repo@" + digest, requested.toString());
+    }
+
+    private static void check(String reference, String registry, String repository, String tag, String digest) {
+        ImageIdentifier iId = ImageIdentifier.parse(reference);
+        assertEquals(registry, iId.getRegistry());
+        assertEquals(repository, iId.getRepository());
+        assertEquals(tag, iId.getTag());
+        assertEquals(digest, iId.getDigest());
+        assertEquals(iId, ImageIdentifier.parse(iId.toString()));
+    }
+}
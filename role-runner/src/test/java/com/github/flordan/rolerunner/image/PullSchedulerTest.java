@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.image;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+public class PullSchedulerTest {
+
+    private final List<String> begun = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void urgentPullsGoFirst() {
+        PullScheduler scheduler = new PullScheduler(1, 0);
+        StubPull first = new StubPull("first", false);
+        StubPull background = new StubPull("background", false);
+        StubPull role = new StubPull("role", false);
+        scheduler.submit(first);
+        scheduler.submit(background);
+        scheduler.submit(role);
+        assertEquals(List.of("first:latest"), begun);
+        assertEquals(2, scheduler.getQueued());
+
+        // A role starts waiting for the image after its pull was queued
+        role.urgent = true;
+        scheduler.finished(first);
+        assertEquals(List.of("first:latest", "role:latest"), begun);
+        scheduler.finished(role);
+        assertEquals(List.of("first:latest", "role:latest", "background:latest"), begun);
+        scheduler.finished(background);
+        assertEquals(0, scheduler.getActive());
+    }
+
+    @Test
+    public void budgetHoldsAdmissions() throws Exception {
+        PullScheduler scheduler = new PullScheduler(4, 1_000);
+        StubPull saturating = new StubPull("saturating", false);
+        StubPull waiting = new StubPull("waiting", false);
+        scheduler.submit(saturating);
+        saturating.rate = 5_000;
+        scheduler.submit(waiting);
+        Thread.sleep(1_600);
+        assertEquals(List.of("saturating:latest"), begun);
+
+        saturating.rate = 100;
+        Thread.sleep(1_000);
+        assertEquals(List.of("saturating:latest", "waiting:latest"), begun);
+    }
+
+
+    private class StubPull implements PullScheduler.Pull {
+        private final ImageIdentifier iId;
+        private volatile boolean urgent;
+        private volatile long rate;
+
+        StubPull(String name, boolean urgent) {
+            this.iId = new ImageIdentifier(name);
+            this.urgent = urgent;
+        }
+
+        @Override
+        public ImageIdentifier getImage() {
+            return iId;
+        }
+
+        @Override
+        public boolean isUrgent() {
+            return urgent;
+        }
+
+        @Override
+        public long getBytesPerSecond() {
+            return rate;
+        }
+
+        @Override
+        public void begin() {
+            begun.add(iId.toString());
+        }
+    }
+}
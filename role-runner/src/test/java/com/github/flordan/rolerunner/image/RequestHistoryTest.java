@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.image;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestHistoryTest {
+
+    private static final ImageIdentifier WEB = ImageIdentifier.parse("team/web:1.0");
+    private static final ImageIdentifier DB = ImageIdentifier.parse("team/db:1.0");
+    private static final ImageIdentifier BATCH = ImageIdentifier.parse("team/batch:1.0");
+
+    @Test
+    public void followersAndFrequencyRankImages() {
+        StepClock clock = new StepClock();
+        RequestHistory history = new RequestHistory(clock);
+        for (int i = 0; i < 5; i++) {
+            history.record(WEB);
+            history.record(DB);
+            clock.advance(Duration.ofMinutes(1));
+        }
+        history.record(BATCH);
+        clock.advance(Duration.ofMinutes(1));
+        history.record(WEB);
+
+        assertEquals(6, history.getRequests(WEB));
+        // DB always followed WEB, BATCH has been requested once
+        assertEquals(DB, history.predict(1, 0, 3).get(0));
+        assertEquals(2, history.predict(2, 0, 3).size());
+        assertTrue(history.score(DB) > history.score(BATCH));
+    }
+
+    @Test
+    public void requestsDecay() {
+        StepClock clock = new StepClock();
+        RequestHistory history = new RequestHistory(clock);
+        history.record(WEB);
+        history.record(WEB);
+        double fresh = history.score(WEB);
+        clock.advance(Duration.ofDays(3));
+        history.record(DB);
+        assertTrue(history.score(WEB) < fresh);
+        assertTrue(history.score(DB) > history.score(WEB));
+    }
+
+    @Test
+    public void savedHistoryPredictsOnAnotherNode() throws Exception {
+        StepClock clock = new StepClock();
+        RequestHistory history = new RequestHistory(clock);
+        for (int i = 0; i < 3; i++) {
+            history.record(WEB);
+            history.record(DB);
+        }
+        Path file = Files.createTempFile("history", ".bin");
+        try {
+            history.save(file);
+            RequestHistory fresh = new RequestHistory(clock);
+            assertEquals(2, fresh.load(file));
+            assertEquals(3, fresh.getRequests(WEB));
+            assertEquals(history.predict(2, 0, 3), fresh.predict(2, 0, 3));
+            assertEquals(history.score(WEB), fresh.score(WEB), 1e-9);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static class StepClock extends Clock {
+        private Instant now = Instant.parse("2024-01-01T09:00:00Z");
+
+        public void advance(Duration d) {
+            now = now.plus(d);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2023 Francesc Lordan Gomis
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.github.flordan.rolerunner.scheduling;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CoreAllocatorTest {
+
+    @Test
+    public void parseAndFormatCpuLists() {
+        assertEquals(List.of(0, 1, 2, 3, 8, 10, 11), CoreAllocator.parseList("0-3,8,10-11\n"));
+        CoreAllocator allocator = new CoreAllocator(Map.of(0, CoreAllocator.parseList("0-3,8,10-11")));
+        assertEquals("0-3,8,10-11", allocator.allocate(7).getCpus());
+    }
+
+    @Test
+    public void prefersSingleNodes() {
+        CoreAllocator allocator = new CoreAllocator(Map.of(0, List.of(0, 1, 2, 3), 1, List.of(4, 5, 6, 7)));
+        CoreAllocator.Allocation first = allocator.allocate(3);
+        assertEquals("0-2", first.getCpus());
+        assertEquals("0", first.getMems());
+
+        // Does not fit in what is left of node 0
+        CoreAllocator.Allocation second = allocator.allocate(2);
+        assertEquals("4-5", second.getCpus());
+        assertEquals("1", second.getMems());
+
+        // Best fit: node 0 has a single core left
+        assertEquals("3", allocator.allocate(1).getCpus());
+
+        CoreAllocator.Allocation rest = allocator.allocate(2);
+        assertEquals("6-7", rest.getCpus());
+        assertNull(allocator.allocate(1));
+
+        allocator.release(first);
+        allocator.release(rest);
+        CoreAllocator.Allocation across = allocator.allocate(5);
+        assertEquals("0-2,6-7", across.getCpus());
+        assertEquals("0-1", across.getMems());
+        assertEquals(0, allocator.getFreeCores());
+    }
+}
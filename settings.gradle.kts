@@ -14,3 +14,5 @@ rootProject.name = "RoleRunner"
 include("app")
 include("role-runner")
 include("role-runner:role-runner-docker")
+include("role-runner:role-runner-benchmarks")
+include("role-runner:role-runner-sim")